@@ -12,14 +12,215 @@
 #include <chrono>
 #include <map>
 #include <mutex>
+#include <atomic>
 #include <string>
+#include <vector>
+#include <cmath>
+#include <cstdarg>
+#include <cstdint>
 #include <cstdio>
 #include <cstdlib>
+#include <cstring>
+
+#ifdef _WIN32
+#include <io.h>
+#include <fcntl.h>
+#include <windows.h>
+#else
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#endif
 
 using namespace std;
 
 const int DEPTH_LEVELS_COUNT = 10;
 
+// Binary protocol, see BinaryIpcFormat.java for the description.
+// Requested by Java side with "protocol" command, after that all output
+// is written as frames. Commands are accepted in both formats.
+const unsigned char MAGIC[] = { 0, 'B', 'M', 'I', 'P', 'C' };
+const unsigned char VERSION = 1;
+
+const unsigned char FRAME_TEXT = 1;
+const unsigned char FRAME_ALIAS = 2;
+const unsigned char FRAME_DEPTH = 3;
+const unsigned char FRAME_TRADE = 4;
+const unsigned char FRAME_TRANSPORT = 8;
+const unsigned char FRAME_COMMAND = 16;
+
+const unsigned char TRADE_IS_BID_AGGRESSOR = 2;
+const unsigned char TRADE_IS_EXECUTION_START = 4;
+const unsigned char TRADE_IS_EXECUTION_END = 8;
+
+atomic<bool> binaryMode(false);
+
+// Shared memory ring, see SharedMemoryRing.java for the layout.
+// Optionally used instead of stdout once binary mode is enabled.
+const int32_t RING_MAGIC = 0x424D5247;
+const int32_t RING_VERSION = 1;
+const size_t WRITE_POSITION_OFFSET = 64;
+const size_t READ_POSITION_OFFSET = 128;
+const size_t PRODUCER_STATE_OFFSET = 192;
+const size_t DATA_OFFSET = 256;
+const int32_t PRODUCER_ATTACHED = 1;
+const int32_t PRODUCER_CLOSED = 2;
+
+// How long to spin before sleeping when the ring is full
+const int RING_SPIN_ITERATIONS = 10000;
+
+struct RingWriter {
+	char * base = nullptr;
+	size_t mappedSize = 0;
+	size_t capacity = 0;
+	// Only modified by the producer, so no need to read it back
+	long long writePosition = 0;
+	// Set when adapter is closing, so writer doesn't wait for a consumer
+	// that might be gone
+	atomic<bool> isAbandoned{ false };
+#ifdef _WIN32
+	HANDLE file = INVALID_HANDLE_VALUE;
+	HANDLE mapping = NULL;
+#endif
+
+	atomic<long long> & counter(size_t offset) {
+		return *reinterpret_cast<atomic<long long> *>(base + offset);
+	}
+
+	atomic<int32_t> & state() {
+		return *reinterpret_cast<atomic<int32_t> *>(base + PRODUCER_STATE_OFFSET);
+	}
+
+	bool open(const string & path) {
+#ifdef _WIN32
+		file = CreateFileA(path.c_str(), GENERIC_READ | GENERIC_WRITE,
+			FILE_SHARE_READ | FILE_SHARE_WRITE | FILE_SHARE_DELETE, NULL, OPEN_EXISTING, 0, NULL);
+		if (file == INVALID_HANDLE_VALUE) {
+			return false;
+		}
+		LARGE_INTEGER size;
+		if (!GetFileSizeEx(file, &size)) {
+			return false;
+		}
+		mappedSize = (size_t)size.QuadPart;
+		mapping = CreateFileMappingA(file, NULL, PAGE_READWRITE, 0, 0, NULL);
+		if (mapping == NULL) {
+			return false;
+		}
+		base = (char *)MapViewOfFile(mapping, FILE_MAP_ALL_ACCESS, 0, 0, 0);
+		if (base == NULL) {
+			base = nullptr;
+			return false;
+		}
+#else
+		int fd = ::open(path.c_str(), O_RDWR);
+		if (fd < 0) {
+			return false;
+		}
+		struct stat fileStat;
+		if (fstat(fd, &fileStat) != 0) {
+			::close(fd);
+			return false;
+		}
+		mappedSize = (size_t)fileStat.st_size;
+		void * mapped = mmap(nullptr, mappedSize, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+		::close(fd);
+		if (mapped == MAP_FAILED) {
+			return false;
+		}
+		base = (char *)mapped;
+#endif
+		int32_t magic, version, ringCapacity;
+		memcpy(&magic, base, 4);
+		memcpy(&version, base + 4, 4);
+		memcpy(&ringCapacity, base + 8, 4);
+		if (magic != RING_MAGIC || version != RING_VERSION || ringCapacity <= 0
+			|| (ringCapacity & (ringCapacity - 1)) != 0
+			|| DATA_OFFSET + (size_t)ringCapacity > mappedSize) {
+			return false;
+		}
+		capacity = (size_t)ringCapacity;
+		writePosition = counter(WRITE_POSITION_OFFSET).load(memory_order_acquire);
+		state().store(PRODUCER_ATTACHED, memory_order_release);
+		return true;
+	}
+
+	// Copies data into the ring, waiting for the consumer if it is full.
+	// Data larger than the ring is written in parts.
+	void write(const char * data, size_t length) {
+		atomic<long long> & readPosition = counter(READ_POSITION_OFFSET);
+		atomic<long long> & publishedPosition = counter(WRITE_POSITION_OFFSET);
+		int spins = 0;
+		while (length > 0) {
+			size_t freeSpace = capacity - (size_t)(writePosition - readPosition.load(memory_order_acquire));
+			if (freeSpace == 0) {
+				if (isAbandoned) {
+					return;
+				}
+				// Consumer is behind. Waiting instead of dropping data,
+				// same as writing into a full pipe would.
+				if (++spins < RING_SPIN_ITERATIONS) {
+					this_thread::yield();
+				} else {
+					this_thread::sleep_for(chrono::microseconds(50));
+				}
+				continue;
+			}
+			spins = 0;
+
+			size_t count = length < freeSpace ? length : freeSpace;
+			size_t index = (size_t)writePosition & (capacity - 1);
+			size_t firstPart = count < capacity - index ? count : capacity - index;
+			memcpy(base + DATA_OFFSET + index, data, firstPart);
+			memcpy(base + DATA_OFFSET, data + firstPart, count - firstPart);
+
+			writePosition += count;
+			// Release, so consumer sees the data once it sees the position
+			publishedPosition.store(writePosition, memory_order_release);
+			data += count;
+			length -= count;
+		}
+	}
+
+	void close() {
+		if (base == nullptr) {
+			return;
+		}
+		state().store(PRODUCER_CLOSED, memory_order_release);
+#ifdef _WIN32
+		UnmapViewOfFile(base);
+		CloseHandle(mapping);
+		CloseHandle(file);
+#else
+		munmap(base, mappedSize);
+#endif
+		base = nullptr;
+	}
+};
+
+RingWriter ringWriter;
+atomic<bool> ringMode(false);
+// Ring has a single producer, so writes of different threads are serialized
+mutex ringMutex;
+
+// Destination of everything adapter reports
+void writeOutput(const char * data, size_t length) {
+	if (ringMode) {
+		std::lock_guard<std::mutex> lock(ringMutex);
+		ringWriter.write(data, length);
+	} else {
+		fwrite(data, 1, length, stdout);
+	}
+}
+
+void flushOutput() {
+	// Ring data is visible to the consumer as soon as it is written
+	if (!ringMode) {
+		fflush(stdout);
+	}
+}
+
 // We don't really need to report time
 // (bookmap will ignore it in realtimemode),
 // but just for consistency
@@ -33,63 +234,203 @@ const char * toString(bool b) {
 	return b ? "true" : "false";
 }
 
+// Builds a single frame. Reused by each thread, so writing an event
+// does not allocate once the buffer has grown.
+struct FrameWriter {
+	string buffer;
+
+	void start(unsigned char tag) {
+		buffer.clear();
+		// Length placeholder, filled in send()
+		buffer.append(4, '\0');
+		buffer.push_back((char)tag);
+	}
+
+	void writeByte(unsigned char value) {
+		buffer.push_back((char)value);
+	}
+
+	void writeInt(int32_t value) {
+		uint32_t bits = (uint32_t)value;
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			buffer.push_back((char)(bits >> shift));
+		}
+	}
+
+	void writeLong(int64_t value) {
+		writeInt((int32_t)(value >> 32));
+		writeInt((int32_t)value);
+	}
+
+	void writeDouble(double value) {
+		int64_t bits;
+		memcpy(&bits, &value, sizeof(bits));
+		writeLong(bits);
+	}
+
+	// String taking the rest of the frame
+	void writeBytes(const char * data, size_t length) {
+		buffer.append(data, length);
+	}
+
+	// Writes the whole frame with a single call, so frames written by
+	// different threads are not interleaved
+	void send() {
+		uint32_t length = (uint32_t)(buffer.size() - 4);
+		for (int i = 0; i < 4; ++i) {
+			buffer[i] = (char)(length >> (24 - 8 * i));
+		}
+		writeOutput(buffer.data(), buffer.size());
+	}
+};
+
+thread_local FrameWriter frameWriter;
+
+void enableBinaryMode() {
+	fflush(stdout);
+#ifdef _WIN32
+	// Otherwise '\n' bytes in frames would be replaced with "\r\n"
+	_setmode(_fileno(stdout), _O_BINARY);
+#endif
+	fwrite(MAGIC, 1, sizeof(MAGIC), stdout);
+	fwrite(&VERSION, 1, 1, stdout);
+	fflush(stdout);
+	binaryMode = true;
+}
+
+// Switches output to the shared memory ring, only possible in binary mode
+void enableRingMode(const string & path) {
+	if (!binaryMode || ringMode || !ringWriter.open(path)) {
+		// Output stays on stdout, Java side will notice that
+		return;
+	}
+
+	// Last frame written to stdout, the rest goes to the ring
+	frameWriter.start(FRAME_TRANSPORT);
+	frameWriter.writeBytes("shm", 3);
+	frameWriter.send();
+	fflush(stdout);
+	ringMode = true;
+}
+
+// Writes event in the text format: as a line in text mode,
+// or wrapped into a text frame in binary mode
+void writeTextEvent(const char * format, ...) {
+	char line[4096];
+	va_list args;
+	va_start(args, format);
+	// Leaving space for the line terminator
+	int length = vsnprintf(line, sizeof(line) - 1, format, args);
+	va_end(args);
+	if (length < 0) {
+		return;
+	}
+	if (length >= (int)sizeof(line) - 1) {
+		length = sizeof(line) - 2;
+	}
+
+	if (binaryMode) {
+		frameWriter.start(FRAME_TEXT);
+		frameWriter.writeBytes(line, length);
+		frameWriter.send();
+	} else {
+		// Single call, same as for frames
+		line[length] = '\n';
+		writeOutput(line, length + 1);
+	}
+}
+
+// Should be called before the alias id is used in any other frame
+void onAliasDefined(int aliasId, const string & alias) {
+	if (binaryMode) {
+		frameWriter.start(FRAME_ALIAS);
+		frameWriter.writeInt(aliasId);
+		frameWriter.writeBytes(alias.data(), alias.size());
+		frameWriter.send();
+	}
+}
+
 // Primitive way to generate JSON. Will break if strings contain some
 // characters, like " or \n. Used for simplicity.
-void onDepth(string alias, bool isBid, int price, int size) {
-	printf("Depth {\"alias\":\"%s\",\"isBid\":%s,\"price\":%d,\"size\":%d,\"time\":%lld}\n",
-		alias.c_str(), toString(isBid), price, size, getTime());
+void onDepth(const string & alias, int aliasId, bool isBid, int price, int size) {
+	if (binaryMode) {
+		frameWriter.start(FRAME_DEPTH);
+		frameWriter.writeLong(getTime());
+		frameWriter.writeInt(aliasId);
+		frameWriter.writeByte(isBid ? 1 : 0);
+		frameWriter.writeInt(price);
+		frameWriter.writeInt(size);
+		frameWriter.send();
+	} else {
+		writeTextEvent("Depth {\"alias\":\"%s\",\"isBid\":%s,\"price\":%d,\"size\":%d,\"time\":%lld}",
+			alias.c_str(), toString(isBid), price, size, getTime());
+	}
 }
 
-void onTrade(string alias, bool isBid, int price, int size) {
-	printf("Trade {\"alias\":\"%s\",\"price\":%d,\"size\":%d,\"tradeInfo\":{\
+void onTrade(const string & alias, int aliasId, bool isBid, int price, int size) {
+	if (binaryMode) {
+		frameWriter.start(FRAME_TRADE);
+		frameWriter.writeLong(getTime());
+		frameWriter.writeInt(aliasId);
+		frameWriter.writeDouble(price);
+		frameWriter.writeInt(size);
+		frameWriter.writeByte((isBid ? TRADE_IS_BID_AGGRESSOR : 0)
+			| TRADE_IS_EXECUTION_START | TRADE_IS_EXECUTION_END);
+		frameWriter.send();
+	} else {
+		writeTextEvent("Trade {\"alias\":\"%s\",\"price\":%d,\"size\":%d,\"tradeInfo\":{\
 \"isOtc\":false,\"isBidAggressor\":%s,\"isExecutionStart\":true,\"isExecutionEnd\":true}\
-,\"time\":%lld}\n",
-		alias.c_str(), price, size, toString(isBid), getTime());
+,\"time\":%lld}",
+			alias.c_str(), price, size, toString(isBid), getTime());
+	}
 }
 
 void onInstrumentAdded(string alias, string symbol, string exchange, string type,
 	double pips, double multiplier, string fullName, bool isFullDepth,
 	double sizeMultiplier) {
-	printf("InstrumentAdded {\"alias\":\"%s\",\"instrumentInfo\":\
+	writeTextEvent("InstrumentAdded {\"alias\":\"%s\",\"instrumentInfo\":\
 {\"pips\":%lf,\"multiplier\":%lf,\"fullName\":\"%s\",\"isFullDepth\":%s,\
 \"sizeMultiplier\":%lf,\"symbol\":\"%s\",\"exchange\":\"%s\",\"type\":\"%s\"},\
-\"time\":%lld}\n",
+\"time\":%lld}",
 		alias.c_str(), pips, multiplier, fullName.c_str(), toString(isFullDepth),
 		sizeMultiplier, symbol.c_str(), exchange.c_str(), type.c_str(), getTime());
 	// Flushing because otherwise user will have to wait while it's in buffer
-	fflush(stdout);
+	flushOutput();
 }
 
 void onInstrumentAlreadySubscribed(string symbol, string exchange, string type) {
-	printf("InstrumentAlreadySubscribed {\"symbol\":\"%s\",\"exchange\":\"%s\",\
-\"type\":\"%s\",\"time\":%lld}\n",
+	writeTextEvent("InstrumentAlreadySubscribed {\"symbol\":\"%s\",\"exchange\":\"%s\",\
+\"type\":\"%s\",\"time\":%lld}",
 	symbol.c_str(), exchange.c_str(), type.c_str(), getTime());
 	// Flushing because otherwise user will have to wait while it's in buffer
-	fflush(stdout);
+	flushOutput();
 }
 
 void onLoginSuccessful() {
-	printf("LoginSuccessful {\"time\":%lld}\n", getTime());
+	writeTextEvent("LoginSuccessful {\"time\":%lld}", getTime());
 	// Flushing because otherwise user will have to wait while it's in buffer
-	fflush(stdout);
+	flushOutput();
 }
 
 void onLoginFailed(string reason, string message) {
-	printf("LoginFailed {\"reason\":\"%s\",\"message\":\"%s\",\"time\":%lld}\n",
+	writeTextEvent("LoginFailed {\"reason\":\"%s\",\"message\":\"%s\",\"time\":%lld}",
 		reason.c_str(), message.c_str(), getTime());
 	// Flushing because otherwise user will have to wait while it's in buffer
-	fflush(stdout);
+	flushOutput();
 }
 
 struct Instrument {
 
 	string alias;
+	// Identifies alias in binary frames
+	int aliasId;
 	double pips;
 
 	int basePrice;
 
-	Instrument(string alias, double pips) {
+	Instrument(string alias, int aliasId, double pips) {
 		this->alias = alias;
+		this->aliasId = aliasId;
 		this->pips = pips;
 
 		// Pick random price that will be used to generate the data
@@ -108,14 +449,14 @@ struct Instrument {
 		// random data
 		for (int i = 0; i < DEPTH_LEVELS_COUNT; ++i) {
 			int levelsOffset = i;
-			onDepth(alias, true, bestBid - levelsOffset, getRandomSize());
-			onDepth(alias, false, bestAsk + levelsOffset, getRandomSize());
+			onDepth(alias, aliasId, true, bestBid - levelsOffset, getRandomSize());
+			onDepth(alias, aliasId, false, bestAsk + levelsOffset, getRandomSize());
 		}
 
 		// Trade on best bid, ask agressor
-		onTrade(alias, false, bestBid, 1);
+		onTrade(alias, aliasId, false, bestBid, 1);
 		// Trade on best ask, bid agressor
-		onTrade(alias, true, bestAsk, 1);
+		onTrade(alias, aliasId, true, bestAsk, 1);
 
 		// With 10% chance change BBO
 		if (rand() % 100 < 10) {
@@ -124,8 +465,8 @@ struct Instrument {
 				// Moving up - erasing best ask, erasing last reported bid
 				// level (emulating exchange only reporting few levels)
 				++basePrice;
-				onDepth(alias, false, bestAsk, 0);
-				onDepth(alias, true, bestBid - (DEPTH_LEVELS_COUNT - 1), 0);
+				onDepth(alias, aliasId, false, bestAsk, 0);
+				onDepth(alias, aliasId, true, bestBid - (DEPTH_LEVELS_COUNT - 1), 0);
 				// Could also populate new best bid and add last best ask,
 				// but this can be omitted - those will be populated during
 				// next simulation step
@@ -134,8 +475,8 @@ struct Instrument {
 				// Moving down - erasing best bid, erasing last reported ask
 				// level (emulating exchange only reporting few levels)
 				--basePrice;
-				onDepth(alias, true, bestBid, 0);
-				onDepth(alias, false, bestAsk + (DEPTH_LEVELS_COUNT - 1), 0);
+				onDepth(alias, aliasId, true, bestBid, 0);
+				onDepth(alias, aliasId, false, bestAsk + (DEPTH_LEVELS_COUNT - 1), 0);
 				// Could also populate new best ask and add last best bid,
 				// but this can be omitted - those will be populated during
 				// next simulation step
@@ -161,6 +502,7 @@ bool closing = false;
 
 mutex instrumentsMutex;
 map<string, Instrument> instruments;
+int nextAliasId = 0;
 
 void login(string user, string password, bool demo) {
 	// With real connection provider would attempt establishing connection here.
@@ -200,8 +542,10 @@ void subscribe(string symbol, string exchange, string type) {
 		// from external source
 		double pips = rand() % 100 > 50 ? 0.5 : 0.25;
 
-		instruments.emplace(alias, Instrument(alias, pips));
+		int aliasId = nextAliasId++;
+		instruments.emplace(alias, Instrument(alias, aliasId, pips));
 
+		onAliasDefined(aliasId, alias);
 		onInstrumentAdded(alias, symbol, exchange, type, pips, 1, "Full name:" + alias, false, 1);
 	}
 }
@@ -221,7 +565,7 @@ void simulateStep() {
 	// But this probably doesn't make a practical difference
 	// as 200K+ events per second can be pushed both ways,
 	// bottlenecking the actual processing.
-	fflush(stdout);
+	flushOutput();
 }
 
 void simulate() {
@@ -236,47 +580,298 @@ void simulate() {
 	}
 }
 
+// Requests (see RequestChannel.java) are commands that get a Response
+// event with the same request id, containing either a result or an error.
+// Requests are handled in the command thread, so no locking is needed
+// for the data they use.
+void onResponse(long long requestId, const string & result, const string & error) {
+	if (error.empty()) {
+		writeTextEvent("Response {\"requestId\":%lld,\"result\":\"%s\",\"time\":%lld}",
+			requestId, result.c_str(), getTime());
+	} else {
+		writeTextEvent("Response {\"requestId\":%lld,\"error\":\"%s\",\"time\":%lld}",
+			requestId, error.c_str(), getTime());
+	}
+	// Flushing because otherwise user will have to wait while it's in buffer
+	flushOutput();
+}
+
+// This demo only accepts limit orders and keeps them working
+// (modifications and cancellations are supported), it never fills them.
+struct Order {
+	string alias;
+	bool isBuy;
+	int size;
+	double limitPrice;
+	string clientId;
+};
+
+map<string, Order> orders;
+int nextOrderId = 0;
+
+double parseDouble(const string & value) {
+	// Java sends "NaN" for missing prices
+	return value == "NaN" ? NAN : strtod(value.c_str(), nullptr);
+}
+
+// NaN is not valid JSON, but Bookmap parser accepts it in this form
+string formatDouble(double value) {
+	if (std::isnan(value)) {
+		return "NaN";
+	}
+	char buffer[32];
+	snprintf(buffer, sizeof(buffer), "%.17g", value);
+	return buffer;
+}
+
+void onOrderUpdated(const string & orderId, const Order & order, const char * status) {
+	writeTextEvent("OrderUpdated {\"orderInfoUpdate\":{\"instrumentAlias\":\"%s\",\
+\"orderId\":\"%s\",\"isBuy\":%s,\"type\":\"LMT\",\"clientId\":\"%s\",\
+\"doNotIncrease\":false,\"filled\":0,\"unfilled\":%d,\"averageFillPrice\":NaN,\
+\"duration\":\"GTC\",\"status\":\"%s\",\"limitPrice\":%s,\"stopPrice\":NaN,\
+\"isSimulated\":false,\"unfilledChanged\":true,\"statusChanged\":true,\
+\"limitPriceChanged\":true},\"time\":%lld}",
+		order.alias.c_str(), orderId.c_str(), toString(order.isBuy), order.clientId.c_str(),
+		order.size, status, formatDouble(order.limitPrice).c_str(), getTime());
+}
+
+// Each of the order requests returns error message, empty if succeeded
+
+string sendOrder(const vector<string> & arguments, string & result) {
+	// alias, isBuy, size, limitPrice, stopPrice, clientId
+	Order order;
+	order.alias = arguments[0];
+	order.isBuy = arguments[1] == "true";
+	order.size = atoi(arguments[2].c_str());
+	order.limitPrice = parseDouble(arguments[3]);
+	order.clientId = arguments[5];
+
+	{
+		std::lock_guard<std::mutex> lock(instrumentsMutex);
+		if (instruments.find(order.alias) == instruments.end()) {
+			return "Not subscribed to " + order.alias;
+		}
+	}
+	if (std::isnan(order.limitPrice) || !std::isnan(parseDouble(arguments[4]))) {
+		return "This adapter only supports limit orders";
+	}
+	if (order.size <= 0) {
+		return "Invalid order size";
+	}
+
+	string orderId = "native-" + to_string(++nextOrderId);
+	orders[orderId] = order;
+	onOrderUpdated(orderId, order, "WORKING");
+	result = orderId;
+	return "";
+}
+
+string cancelOrder(const string & orderId) {
+	auto entry = orders.find(orderId);
+	if (entry == orders.end()) {
+		return "Unknown order " + orderId;
+	}
+	onOrderUpdated(orderId, entry->second, "CANCELLED");
+	orders.erase(entry);
+	return "";
+}
+
+string resizeOrder(const string & orderId, int size) {
+	auto entry = orders.find(orderId);
+	if (entry == orders.end()) {
+		return "Unknown order " + orderId;
+	}
+	if (size <= 0) {
+		return "Invalid order size";
+	}
+	entry->second.size = size;
+	onOrderUpdated(orderId, entry->second, "WORKING");
+	return "";
+}
+
+string moveOrder(const string & orderId, double limitPrice) {
+	auto entry = orders.find(orderId);
+	if (entry == orders.end()) {
+		return "Unknown order " + orderId;
+	}
+	if (std::isnan(limitPrice)) {
+		return "This adapter only supports limit orders";
+	}
+	entry->second.limitPrice = limitPrice;
+	onOrderUpdated(orderId, entry->second, "WORKING");
+	return "";
+}
+
+void handleRequest(const vector<string> & command) {
+	// "request", request id, request name, number of arguments, arguments
+	long long requestId = strtoll(command[1].c_str(), nullptr, 10);
+	const string & name = command[2];
+	vector<string> arguments(command.begin() + 4, command.end());
+
+	string result;
+	string error;
+	if (name == "sendOrder" && arguments.size() == 6) {
+		error = sendOrder(arguments, result);
+	} else if (name == "cancelOrder" && arguments.size() == 1) {
+		error = cancelOrder(arguments[0]);
+	} else if (name == "resizeOrder" && arguments.size() == 2) {
+		error = resizeOrder(arguments[0], atoi(arguments[1].c_str()));
+	} else if (name == "moveOrder" && arguments.size() == 3) {
+		error = moveOrder(arguments[0], parseDouble(arguments[1]));
+	} else {
+		error = "Unsupported request " + name;
+	}
+	onResponse(requestId, result, error);
+}
+
+// Number of lines following the command name in the text format
+// (for requests - before the variable number of arguments)
+int getArgumentsCount(const string & command) {
+	if (command == "login" || command == "subscribe" || command == "request") {
+		return 3;
+	} else if (command == "unsubscribe" || command == "protocol") {
+		return 1;
+	} else if (command == "transport") {
+		return 2;
+	}
+	return 0;
+}
+
+bool readBinaryString(string & value, const char * & position, const char * end) {
+	if (end - position < 2) {
+		return false;
+	}
+	size_t length = ((unsigned char)position[0] << 8) | (unsigned char)position[1];
+	position += 2;
+	if ((size_t)(end - position) < length) {
+		return false;
+	}
+	value.assign(position, length);
+	position += length;
+	return true;
+}
+
+// Reads command name and arguments in either format. Binary frames
+// start with 0 byte (high byte of the length), text commands can't.
+bool readCommand(vector<string> & command) {
+	command.clear();
+
+	int first = cin.peek();
+	if (first == EOF) {
+		return false;
+	}
+
+	if (first == 0) {
+		unsigned char lengthBytes[4];
+		if (!cin.read((char *)lengthBytes, 4)) {
+			return false;
+		}
+		uint32_t length = ((uint32_t)lengthBytes[0] << 24) | (lengthBytes[1] << 16)
+			| (lengthBytes[2] << 8) | lengthBytes[3];
+		string frame(length, '\0');
+		if (length == 0 || !cin.read(&frame[0], length)) {
+			return false;
+		}
+		if ((unsigned char)frame[0] != FRAME_COMMAND) {
+			// Unknown frame, ignoring it
+			return true;
+		}
+
+		const char * position = frame.data() + 1;
+		const char * end = frame.data() + frame.size();
+		string value;
+		while (position < end && readBinaryString(value, position, end)) {
+			command.push_back(value);
+		}
+		return true;
+	}
+
+	string line;
+	if (!getline(cin, line)) {
+		return false;
+	}
+	command.push_back(line);
+	int argumentsCount = getArgumentsCount(line);
+	for (int i = 0; i < argumentsCount; ++i) {
+		if (!getline(cin, line)) {
+			return false;
+		}
+		command.push_back(line);
+	}
+	if (command[0] == "request") {
+		int requestArgumentsCount = atoi(command[3].c_str());
+		for (int i = 0; i < requestArgumentsCount; ++i) {
+			if (!getline(cin, line)) {
+				return false;
+			}
+			command.push_back(line);
+		}
+	}
+	return true;
+}
+
 int main() {
 
+#ifdef _WIN32
+	// Binary commands may contain bytes that text mode would translate
+	_setmode(_fileno(stdin), _O_BINARY);
+#endif
+
 	thread simulationThread(simulate);
 
 	bool readSuccess;
-	string command;
+	vector<string> command;
+	string name;
 	do {
-		readSuccess = !getline(cin, command).eof();
+		readSuccess = readCommand(command);
+		name = command.empty() ? "" : command[0];
 		if (!readSuccess) {
 			// Do nothing. This is end of file.
 			// (bookmap died without closing the module). 
 			// If we ignore EOF subprocess might stay e.g.
 			// if bookmap was killed via task manager.
-		} else if (command == "login") {
-			
-			string user, password, demoString;
-			getline(cin, user);
-			getline(cin, password);
-			getline(cin, demoString);
-			bool demo = demoString == "true";
+		} else if (name == "protocol" && command.size() == 2) {
 
-			login(user, password, demo);
+			// Only binary is supported besides the default text protocol
+			if (command[1] == "binary" && !binaryMode) {
+				std::lock_guard<std::mutex> lock(instrumentsMutex);
+				enableBinaryMode();
+			}
 
-		} else if (command == "subscribe") {
+		} else if (name == "transport" && command.size() == 3) {
 
-			string symbol, exchange, type;
-			getline(cin, symbol);
-			getline(cin, exchange);
-			getline(cin, type);
+			// Only shared memory ring is supported besides stdout
+			if (command[1] == "shm") {
+				std::lock_guard<std::mutex> lock(instrumentsMutex);
+				enableRingMode(command[2]);
+			}
+
+		} else if (name == "login" && command.size() == 4) {
+			
+			bool demo = command[3] == "true";
 
-			subscribe(symbol, exchange, type);
+			login(command[1], command[2], demo);
 
-		} else if (command == "unsubscribe") {
-			string alias;
-			getline(cin, alias);
-			unsubscribe(alias);
+		} else if (name == "subscribe" && command.size() == 4) {
+
+			subscribe(command[1], command[2], command[3]);
+
+		} else if (name == "request" && command.size() >= 4) {
+			handleRequest(command);
+		} else if (name == "unsubscribe" && command.size() == 2) {
+			unsubscribe(command[1]);
 		}
-	} while (command != "close" && readSuccess);
+	} while (name != "close" && readSuccess);
 
 	closing = true;
+	ringWriter.isAbandoned = true;
 	simulationThread.join();
 
+	if (ringMode) {
+		// Lets Java side know that there will be no more data
+		std::lock_guard<std::mutex> lock(ringMutex);
+		ringWriter.close();
+	}
+
 	return 0;
 }
@@ -0,0 +1,91 @@
+package velox.api.layer0.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding and dispatching of a single line by {@link TextStreamParser}, per
+ * event type. IndicatorPointUserMessage goes through the generic Gson path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextStreamParserBenchmark {
+
+    private static final int LINES_COUNT = 1 << 12;
+
+    @Param({"Depth", "Trade", "MboSend", "MboReplace", "MboCancel", "IndicatorPointUserMessage"})
+    public String eventType;
+
+    private TextStreamParser parser;
+    private byte[][] lines;
+    private int index;
+
+    @Setup
+    public void setup() {
+        parser = new TextStreamParser();
+
+        Random random = new Random(0);
+        lines = new byte[LINES_COUNT][];
+        long time = 1_500_000_000_000_000_000L;
+        for (int i = 0; i < LINES_COUNT; ++i) {
+            time += random.nextInt(1_000_000);
+            String alias = "ESZ0@RITHMIC" + random.nextInt(4);
+            int price = 12000 + random.nextInt(100);
+            int size = 1 + random.nextInt(50);
+            String data;
+            switch (eventType) {
+            case "Depth":
+                data = "{\"alias\":\"" + alias + "\",\"isBid\":" + random.nextBoolean() + ",\"price\":" + price
+                        + ",\"size\":" + size + ",\"time\":" + time + "}";
+                break;
+            case "Trade":
+                data = "{\"alias\":\"" + alias + "\",\"price\":" + price + ".25,\"size\":" + size
+                        + ",\"tradeInfo\":{\"isOtc\":false,\"isBidAggressor\":" + random.nextBoolean()
+                        + ",\"isExecutionStart\":true,\"isExecutionEnd\":true},\"time\":" + time + "}";
+                break;
+            case "MboSend":
+                data = "{\"alias\":\"" + alias + "\",\"orderId\":\"" + random.nextInt(100_000) + "\",\"isBid\":"
+                        + random.nextBoolean() + ",\"price\":" + price + ",\"size\":" + size + ",\"time\":" + time + "}";
+                break;
+            case "MboReplace":
+                data = "{\"alias\":\"" + alias + "\",\"orderId\":\"" + random.nextInt(100_000) + "\",\"price\":"
+                        + price + ",\"size\":" + size + ",\"time\":" + time + "}";
+                break;
+            case "MboCancel":
+                data = "{\"alias\":\"" + alias + "\",\"orderId\":\"" + random.nextInt(100_000) + "\",\"time\":" + time + "}";
+                break;
+            case "IndicatorPointUserMessage":
+                data = "{\"id\":" + random.nextInt(20) + ",\"price\":" + random.nextDouble() + ",\"time\":" + time + "}";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event type " + eventType);
+            }
+            lines[i] = (eventType + " " + data).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public long readLine() throws IOException {
+        byte[] line = lines[index++ & (LINES_COUNT - 1)];
+        parser.readLine(line, 0, line.length);
+        return parser.getCurrentTime();
+    }
+}
@@ -0,0 +1,57 @@
+package velox.api.layer0.live;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import velox.api.layer1.data.ExecutionInfo;
+
+/**
+ * {@link TradeAudit#recalculateInfo(boolean, ExecutionInfo)} for a stream of
+ * executions that open, increase, reduce and flip the position
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TradeAuditBenchmark {
+
+    private static final int EXECUTIONS_COUNT = 1 << 12;
+
+    private final TradeAudit tradeAudit = new TradeAudit(new TradeAuditTotals());
+
+    private boolean[] isBuys;
+    private ExecutionInfo[] executions;
+    private int index;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        isBuys = new boolean[EXECUTIONS_COUNT];
+        executions = new ExecutionInfo[EXECUTIONS_COUNT];
+        for (int i = 0; i < EXECUTIONS_COUNT; ++i) {
+            isBuys[i] = random.nextBoolean();
+            double price = 3000 + random.nextInt(400) * 0.25;
+            executions[i] = new ExecutionInfo("order" + i, 1 + random.nextInt(5), price, "execution" + i, i);
+        }
+    }
+
+    @Benchmark
+    public int recalculateInfo() {
+        int i = index++ & (EXECUTIONS_COUNT - 1);
+        tradeAudit.recalculateInfo(isBuys[i], executions[i]);
+        return tradeAudit.position;
+    }
+}
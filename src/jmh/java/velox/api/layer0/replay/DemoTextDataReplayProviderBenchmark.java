@@ -0,0 +1,66 @@
+package velox.api.layer0.replay;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of a single line of the simple format by
+ * {@link DemoTextDataReplayProvider}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DemoTextDataReplayProviderBenchmark {
+
+    private static final int LINES_COUNT = 1 << 12;
+
+    @Param({"onDepth", "onTrade"})
+    public String eventType;
+
+    private DemoTextDataReplayProvider provider;
+    private String[] lines;
+    private int index;
+
+    @Setup
+    public void setup() {
+        provider = new DemoTextDataReplayProvider();
+
+        Random random = new Random(0);
+        lines = new String[LINES_COUNT];
+        long time = 1_500_000_000_000_000_000L;
+        for (int i = 0; i < LINES_COUNT; ++i) {
+            time += random.nextInt(1_000_000);
+            String alias = "ESZ0@RITHMIC" + random.nextInt(4);
+            int price = 12000 + random.nextInt(100);
+            int size = 1 + random.nextInt(50);
+            if (eventType.equals("onDepth")) {
+                lines[i] = time + ";;;onDepth;;;" + alias + ";;;" + random.nextBoolean() + ";;;" + price + ";;;" + size;
+            } else {
+                lines[i] = time + ";;;onTrade;;;" + alias + ";;;" + price + ".25;;;" + size
+                        + ";;;{\"isOtc\":false,\"isBidAggressor\":" + random.nextBoolean()
+                        + ",\"isExecutionStart\":true,\"isExecutionEnd\":true}";
+            }
+        }
+    }
+
+    @Benchmark
+    public long readLine() {
+        provider.readLine(lines[index++ & (LINES_COUNT - 1)]);
+        return provider.getCurrentTime();
+    }
+}
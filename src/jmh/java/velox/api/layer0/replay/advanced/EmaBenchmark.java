@@ -0,0 +1,114 @@
+package velox.api.layer0.replay.advanced;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Ema} updates and reads with trade-like irregular time steps, and
+ * updates of all horizons of {@link IndicatorsPack} with separate {@link Ema}s
+ * vs an {@link EmaBank}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmaBenchmark {
+
+    private static final int UPDATES_COUNT = 1 << 12;
+    private static final int HORIZONS_COUNT = 10;
+
+    private final Ema ema = new Ema(1e9);
+
+    private final Ema[] emas = new Ema[HORIZONS_COUNT];
+    private EmaBank emaBank;
+
+    private long[] times;
+    private double[] values;
+    private int index;
+    private long timeOffset;
+    private long sameTime;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        times = new long[UPDATES_COUNT];
+        values = new double[UPDATES_COUNT];
+        long time = 0;
+        for (int i = 0; i < UPDATES_COUNT; ++i) {
+            time += random.nextInt(10_000_000);
+            times[i] = time;
+            values[i] = 1 + random.nextInt(20);
+        }
+
+        // Same half-lives as in HandlerBookmapIndicators
+        double[] halfLives = new double[HORIZONS_COUNT];
+        for (int i = 0; i < HORIZONS_COUNT; ++i) {
+            halfLives[i] = 1e9 * Math.pow(2, i);
+            emas[i] = new Ema(halfLives[i]);
+        }
+        emaBank = new EmaBank(halfLives);
+    }
+
+    private long nextTime(int i) {
+        if (i == 0) {
+            // Keeping time monotonic when wrapping around
+            timeOffset += times[UPDATES_COUNT - 1];
+        }
+        return timeOffset + times[i];
+    }
+
+    @Benchmark
+    public double onUpdate() {
+        int i = index++ & (UPDATES_COUNT - 1);
+        ema.onUpdate(nextTime(i), values[i]);
+        return ema.getValue(timeOffset + times[i]);
+    }
+
+    @Benchmark
+    public double getValue() {
+        int i = index++ & (UPDATES_COUNT - 1);
+        return ema.getValue(nextTime(i));
+    }
+
+    @Benchmark
+    public double onUpdateSeparate() {
+        int i = index++ & (UPDATES_COUNT - 1);
+        long time = nextTime(i);
+        for (Ema e : emas) {
+            e.onUpdate(time, values[i]);
+        }
+        return emas[HORIZONS_COUNT - 1].getValue(time);
+    }
+
+    @Benchmark
+    public double onUpdateBank() {
+        int i = index++ & (UPDATES_COUNT - 1);
+        long time = nextTime(i);
+        emaBank.onUpdate(time, values[i]);
+        return emaBank.getValue(time, HORIZONS_COUNT - 1);
+    }
+
+    /** Groups of 4 trades with the same timestamp, e.g. a sweep of the book */
+    @Benchmark
+    public double onUpdateBankSameTime() {
+        int i = index++ & (UPDATES_COUNT - 1);
+        if ((i & 3) == 0) {
+            sameTime = nextTime(i);
+        }
+        emaBank.onUpdate(sameTime, values[i]);
+        return emaBank.getValue(sameTime, HORIZONS_COUNT - 1);
+    }
+}
@@ -0,0 +1,115 @@
+package velox.api.layer0.replay.advanced;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import velox.api.layer0.data.IndicatorDefinitionUserMessage;
+import velox.api.layer0.data.IndicatorPointUserMessage;
+import velox.api.layer0.data.TextDataMessage;
+import velox.api.layer1.data.InstrumentInfo;
+
+/**
+ * Processing of a single CSV line by {@link HandlerBookmapSimple} and
+ * {@link HandlerBookmapIndicators} (which also updates indicators)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBookmapSimpleBenchmark {
+
+    private static final int LINES_COUNT = 1 << 12;
+    private static final int INSTRUMENTS_COUNT = 10;
+
+    @Param({"simple", "indicators"})
+    public String handlerType;
+
+    private HandlerBookmapSimple handler;
+    private String[] lines;
+    private int index;
+
+    private static class CountingListener implements HandlerListener {
+        long events;
+
+        @Override
+        public void onFileEnd() {
+        }
+
+        @Override
+        public void onDepth(long t, String alias, boolean isBuy, int price, int size) {
+            ++events;
+        }
+
+        @Override
+        public void onTrade(long t, String alias, double price, int size, boolean isBidAggressor) {
+            ++events;
+        }
+
+        @Override
+        public void onInstrument(long t, InstrumentInfo instrumentInfo) {
+        }
+
+        @Override
+        public void onTextData(long t, TextDataMessage textDataMessage) {
+            ++events;
+        }
+
+        @Override
+        public void onIndicatorDefinition(long t, IndicatorDefinitionUserMessage indicatorDefinitionUserMessage) {
+        }
+
+        @Override
+        public void onIndicatorPoint(long t, IndicatorPointUserMessage indicatorPointUserMessage) {
+            ++events;
+        }
+    }
+
+    private final CountingListener listener = new CountingListener();
+
+    @Setup
+    public void setup() throws Exception {
+        handler = handlerType.equals("simple")
+                ? new HandlerBookmapSimple(listener, null)
+                : new HandlerBookmapIndicators(listener, null);
+
+        for (int id = 0; id < INSTRUMENTS_COUNT; ++id) {
+            handler.processLine("20200102 09:30:00.000000000," + id
+                    + ",InstrumentAdded,alias=INSTR" + id + ",pips=0.25,multiplier=1");
+        }
+
+        Random random = new Random(0);
+        lines = new String[LINES_COUNT];
+        for (int i = 0; i < LINES_COUNT; ++i) {
+            String time = String.format("20200102 09:%02d:%02d.%09d",
+                    30 + i * 29 / LINES_COUNT, random.nextInt(60), random.nextInt(1_000_000_000));
+            int id = random.nextInt(INSTRUMENTS_COUNT);
+            String side = random.nextBoolean() ? "Buy" : "Sell";
+            int price = 12000 + random.nextInt(100);
+            if (random.nextInt(10) == 0) {
+                lines[i] = time + "," + id + ",Trade," + side + "," + price + "," + (1 + random.nextInt(10));
+            } else {
+                lines[i] = time + "," + id + ",Quote," + side + "," + price + "," + random.nextInt(50);
+            }
+        }
+    }
+
+    @Benchmark
+    public long processLine() throws Exception {
+        handler.processLine(lines[index++ & (LINES_COUNT - 1)]);
+        return listener.events;
+    }
+}
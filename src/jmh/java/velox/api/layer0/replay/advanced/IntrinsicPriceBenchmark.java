@@ -0,0 +1,54 @@
+package velox.api.layer0.replay.advanced;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link IntrinsicPrice#calcIntrinsic(boolean, long)} on a book with
+ * realistic depth, for hypothetical market order sizes covering few or many
+ * levels
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntrinsicPriceBenchmark {
+
+    private static final int LEVELS_COUNT = 1000;
+
+    @Param({"10", "1000", "20000"})
+    public long hypotheticalMarketOrderSize;
+
+    private final IntrinsicPrice intrinsicPrice = new IntrinsicPrice();
+    private boolean isBid;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        long mid = 100_000;
+        for (int i = 1; i <= LEVELS_COUNT; ++i) {
+            intrinsicPrice.onDepth(true, mid - i, 1 + random.nextInt(50));
+            intrinsicPrice.onDepth(false, mid + i, 1 + random.nextInt(50));
+        }
+    }
+
+    @Benchmark
+    public double calcIntrinsic() {
+        isBid = !isBid;
+        return intrinsicPrice.calcIntrinsic(isBid, hypotheticalMarketOrderSize);
+    }
+}
@@ -0,0 +1,70 @@
+package velox.api.layer0.replay.advanced;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Level updates of {@link OrderBookMbp}: random walk of the BBO with updates
+ * concentrated near it, as in real depth data
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderBookMbpBenchmark {
+
+    private static final int UPDATES_COUNT = 1 << 16;
+
+    @Param({"100", "1000"})
+    public int depth;
+
+    private final OrderBookMbp orderBook = new OrderBookMbp();
+
+    private boolean[] isBids;
+    private long[] prices;
+    private long[] sizes;
+    private int index;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        isBids = new boolean[UPDATES_COUNT];
+        prices = new long[UPDATES_COUNT];
+        sizes = new long[UPDATES_COUNT];
+        long mid = 100_000;
+        for (int i = 0; i < UPDATES_COUNT; ++i) {
+            if (random.nextInt(100) == 0) {
+                mid += random.nextInt(3) - 1;
+            }
+            boolean isBid = random.nextBoolean();
+            long distance = 1 + (long) Math.abs(random.nextGaussian() * depth / 3);
+            isBids[i] = isBid;
+            prices[i] = isBid ? mid - distance : mid + distance;
+            sizes[i] = random.nextInt(5) == 0 ? 0 : 1 + random.nextInt(100);
+        }
+        for (int i = 0; i < UPDATES_COUNT; ++i) {
+            orderBook.onDepth(isBids[i], prices[i], sizes[i]);
+        }
+    }
+
+    @Benchmark
+    public long onDepth() {
+        int i = index++ & (UPDATES_COUNT - 1);
+        orderBook.onDepth(isBids[i], prices[i], sizes[i]);
+        return orderBook.bids.getBestPrice();
+    }
+}
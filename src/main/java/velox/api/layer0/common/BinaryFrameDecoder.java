@@ -0,0 +1,245 @@
+package velox.api.layer0.common;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Reads frames of {@link BinaryIpcFormat} (after the header) from an input
+ * stream. Frames are decoded straight from the internal buffer into a
+ * {@link TextEventDecoder.EventSlot}, so the same consumer code can handle
+ * both formats. Aliases are only decoded once per {@link BinaryIpcFormat#FRAME_ALIAS},
+ * order ids of MBO events are the only per-event allocation.
+ * </p>
+ * <p>
+ * Text frames are not decoded, those are exposed as a range of the internal
+ * buffer instead (see {@link #isText()}), same as lines of
+ * {@link ByteLineReader}.
+ * </p>
+ */
+public class BinaryFrameDecoder implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    private final InputStream inputStream;
+
+    private byte[] buffer;
+    /** Start of the data that was not decoded yet */
+    private int position = 0;
+    /** End of valid data in the buffer */
+    private int limit = 0;
+
+    /** Aliases by id, as defined by {@link BinaryIpcFormat#FRAME_ALIAS} */
+    private String[] aliases = new String[16];
+
+    private boolean isText;
+    private int textStart;
+    private int textEnd;
+
+    public BinaryFrameDecoder(InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    public BinaryFrameDecoder(InputStream inputStream, int bufferSize) {
+        this.inputStream = inputStream;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Reads frames until an event or a text frame is found. Alias definitions
+     * and unknown frames are consumed silently.
+     *
+     * @param slot filled with the event, unless the frame is a text one
+     * @return false if end of stream was reached
+     * @throws IOException if stream is corrupted or ends in the middle of a
+     *                     frame
+     */
+    public boolean readFrame(TextEventDecoder.EventSlot slot) throws IOException {
+        while (true) {
+            if (!fill(4)) {
+                if (position == limit) {
+                    return false;
+                }
+                throw new EOFException("Stream ended in the middle of a frame");
+            }
+            int length = getInt(position);
+            if (length <= 0 || length > BinaryIpcFormat.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (!fill(4 + length)) {
+                throw new EOFException("Stream ended in the middle of a frame");
+            }
+
+            int start = position + 4;
+            int end = start + length;
+            position = end;
+            if (decode(start, end, slot)) {
+                return true;
+            }
+        }
+    }
+
+    /** @return true if last frame was a text one */
+    public boolean isText() {
+        return isText;
+    }
+
+    /** @return buffer containing the text of the last frame */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getTextStart() {
+        return textStart;
+    }
+
+    public int getTextEnd() {
+        return textEnd;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+    /**
+     * @param start position of the tag
+     * @param end end of the frame
+     * @return true if frame should be returned to the caller
+     */
+    private boolean decode(int start, int end, TextEventDecoder.EventSlot slot) throws IOException {
+        byte tag = buffer[start];
+        int offset = start + 1;
+        isText = false;
+
+        switch (tag) {
+        case BinaryIpcFormat.FRAME_TEXT:
+            isText = true;
+            textStart = offset;
+            textEnd = end;
+            return true;
+        case BinaryIpcFormat.FRAME_ALIAS:
+            checkLength(offset + 4, end);
+            defineAlias(getInt(offset), getString(offset + 4, end));
+            return false;
+        case BinaryIpcFormat.FRAME_DEPTH:
+            checkLength(offset + 21, end);
+            slot.type = TextEventDecoder.Type.DEPTH;
+            readHeader(offset, slot);
+            slot.isBid = buffer[offset + 12] != 0;
+            slot.price = getInt(offset + 13);
+            slot.size = getInt(offset + 17);
+            slot.orderId = null;
+            return true;
+        case BinaryIpcFormat.FRAME_TRADE:
+            checkLength(offset + 25, end);
+            slot.type = TextEventDecoder.Type.TRADE;
+            readHeader(offset, slot);
+            slot.tradePrice = Double.longBitsToDouble(getLong(offset + 12));
+            slot.size = getInt(offset + 20);
+            slot.tradeInfo = TextEventDecoder.getTradeInfo(buffer[offset + 24]);
+            slot.orderId = null;
+            return true;
+        case BinaryIpcFormat.FRAME_MBO_SEND:
+            checkLength(offset + 21, end);
+            slot.type = TextEventDecoder.Type.MBO_SEND;
+            readHeader(offset, slot);
+            slot.isBid = buffer[offset + 12] != 0;
+            slot.price = getInt(offset + 13);
+            slot.size = getInt(offset + 17);
+            slot.orderId = getString(offset + 21, end);
+            return true;
+        case BinaryIpcFormat.FRAME_MBO_REPLACE:
+            checkLength(offset + 20, end);
+            slot.type = TextEventDecoder.Type.MBO_REPLACE;
+            readHeader(offset, slot);
+            slot.price = getInt(offset + 12);
+            slot.size = getInt(offset + 16);
+            slot.orderId = getString(offset + 20, end);
+            return true;
+        case BinaryIpcFormat.FRAME_MBO_CANCEL:
+            checkLength(offset + 12, end);
+            slot.type = TextEventDecoder.Type.MBO_CANCEL;
+            readHeader(offset, slot);
+            slot.orderId = getString(offset + 12, end);
+            return true;
+        default:
+            // Unknown frame, skipping it
+            return false;
+        }
+    }
+
+    /** Reads time and alias that all event frames start with */
+    private void readHeader(int offset, TextEventDecoder.EventSlot slot) throws IOException {
+        slot.time = getLong(offset);
+        int aliasId = getInt(offset + 8);
+        if (aliasId < 0 || aliasId >= aliases.length || aliases[aliasId] == null) {
+            throw new IOException("Undefined alias id " + aliasId);
+        }
+        slot.alias = aliases[aliasId];
+    }
+
+    private void defineAlias(int aliasId, String alias) throws IOException {
+        if (aliasId < 0) {
+            throw new IOException("Invalid alias id " + aliasId);
+        }
+        if (aliasId >= aliases.length) {
+            aliases = Arrays.copyOf(aliases, Math.max(aliases.length * 2, aliasId + 1));
+        }
+        aliases[aliasId] = alias;
+    }
+
+    private static void checkLength(int payloadEnd, int frameEnd) throws IOException {
+        if (payloadEnd > frameEnd) {
+            throw new IOException("Frame is too short");
+        }
+    }
+
+    private String getString(int start, int end) {
+        return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private int getInt(int offset) {
+        return (buffer[offset] & 0xFF) << 24
+                | (buffer[offset + 1] & 0xFF) << 16
+                | (buffer[offset + 2] & 0xFF) << 8
+                | (buffer[offset + 3] & 0xFF);
+    }
+
+    private long getLong(int offset) {
+        return (long) getInt(offset) << 32 | (getInt(offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Makes sure at least count bytes starting from {@link #position} are in
+     * the buffer, compacting or growing it if needed
+     *
+     * @return false if stream ended first
+     */
+    private boolean fill(int count) throws IOException {
+        if (limit - position >= count) {
+            return true;
+        }
+
+        if (position + count > buffer.length) {
+            byte[] target = count > buffer.length ? new byte[Math.max(buffer.length * 2, count)] : buffer;
+            System.arraycopy(buffer, position, target, 0, limit - position);
+            buffer = target;
+            limit -= position;
+            position = 0;
+        }
+
+        while (limit - position < count) {
+            int read = inputStream.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,188 @@
+package velox.api.layer0.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ * Binary framing that an external executable can use instead of JSON lines
+ * (see velox.api.layer0.live.advanced.FullTextDataRealtimeProvider and
+ * cpp/FullTextDataRealtimeProvider). Frequent events become fixed layout
+ * records, so neither side formats or parses numbers.
+ * </p>
+ * <p>
+ * Negotiation: before login Java side sends text command
+ * {@link #PROTOCOL_COMMAND} with {@link #PROTOCOL_BINARY} argument. Executable
+ * that supports binary mode writes {@link #MAGIC} and {@link #VERSION} (one
+ * byte) and uses frames for everything it writes after that. Older
+ * executables ignore unknown commands and keep writing text, which is
+ * detected by the absence of the magic (see {@link #readHeader(InputStream)}).
+ * Once binary mode is confirmed, Java side sends commands as
+ * {@link #FRAME_COMMAND} frames. First byte of a frame is always 0 (frames are
+ * much shorter than 2^24 bytes), so executable can tell those from text
+ * commands without any extra state.
+ * </p>
+ * <p>
+ * Java side can also request a different transport for the output of the
+ * executable with {@link #TRANSPORT_COMMAND} command (sent after
+ * {@link #PROTOCOL_COMMAND}, arguments are {@link #TRANSPORT_SHARED_MEMORY}
+ * and the path of the {@link SharedMemoryRing} file). If executable switches,
+ * it writes {@link #FRAME_TRANSPORT} right after the header and everything
+ * else goes to the ring (see {@link #readTransportSwitch(InputStream)}).
+ * </p>
+ * <p>
+ * Frame is the length of the rest of the frame (int) followed by the tag
+ * (byte) and the payload. Numbers are big-endian. Strings at the end of the
+ * payload take the rest of the frame, other strings are prefixed by length
+ * (unsigned short). All strings are UTF-8.
+ * </p>
+ * <ul>
+ * <li>{@link #FRAME_TEXT}: event in the text format, without the line
+ * terminator. Used for everything that has no dedicated frame.</li>
+ * <li>{@link #FRAME_ALIAS}: alias id (int), alias. Has to be sent before the
+ * id is used by other frames, ids can be reused for other aliases later.</li>
+ * <li>{@link #FRAME_DEPTH}: time (long), alias id (int), isBid (byte), price
+ * (int), size (int)</li>
+ * <li>{@link #FRAME_TRADE}: time (long), alias id (int), price (double), size
+ * (int), flags (byte, {@link #TRADE_IS_OTC} and others)</li>
+ * <li>{@link #FRAME_MBO_SEND}: time (long), alias id (int), isBid (byte),
+ * price (int), size (int), order id</li>
+ * <li>{@link #FRAME_MBO_REPLACE}: time (long), alias id (int), price (int),
+ * size (int), order id</li>
+ * <li>{@link #FRAME_MBO_CANCEL}: time (long), alias id (int), order id</li>
+ * <li>{@link #FRAME_TRANSPORT}: name of the transport that executable
+ * switched to, nothing else is written to the original stream after it</li>
+ * <li>{@link #FRAME_COMMAND}: command and its arguments, each prefixed by
+ * length</li>
+ * </ul>
+ * <p>
+ * Frames with unknown tags are skipped, so new ones can be added without
+ * changing the version.
+ * </p>
+ */
+public class BinaryIpcFormat {
+
+    public static final String PROTOCOL_COMMAND = "protocol";
+    public static final String PROTOCOL_BINARY = "binary";
+    public static final String TRANSPORT_COMMAND = "transport";
+    public static final String TRANSPORT_SHARED_MEMORY = "shm";
+
+    public static final byte[] MAGIC = {0, 'B', 'M', 'I', 'P', 'C'};
+    public static final int VERSION = 1;
+
+    /** Frames longer than this are treated as corrupted stream */
+    public static final int MAX_FRAME_LENGTH = 1 << 24;
+
+    public static final byte FRAME_TEXT = 1;
+    public static final byte FRAME_ALIAS = 2;
+    public static final byte FRAME_DEPTH = 3;
+    public static final byte FRAME_TRADE = 4;
+    public static final byte FRAME_MBO_SEND = 5;
+    public static final byte FRAME_MBO_REPLACE = 6;
+    public static final byte FRAME_MBO_CANCEL = 7;
+    public static final byte FRAME_TRANSPORT = 8;
+    public static final byte FRAME_COMMAND = 16;
+
+    public static final int TRADE_IS_OTC = 1;
+    public static final int TRADE_IS_BID_AGGRESSOR = 2;
+    public static final int TRADE_IS_EXECUTION_START = 4;
+    public static final int TRADE_IS_EXECUTION_END = 8;
+
+    private BinaryIpcFormat() {
+    }
+
+    /**
+     * Checks if the stream starts with the binary mode header. Blocks until
+     * the first bytes are available. Header is consumed if present, otherwise
+     * stream is reset to where it was.
+     *
+     * @param inputStream has to support mark/reset
+     * @return true if executable confirmed binary mode
+     * @throws IOException if header is present, but version is not supported
+     */
+    public static boolean readHeader(InputStream inputStream) throws IOException {
+        inputStream.mark(MAGIC.length + 1);
+        for (byte expected : MAGIC) {
+            if (inputStream.read() != expected) {
+                inputStream.reset();
+                return false;
+            }
+        }
+
+        int version = inputStream.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary protocol version " + version);
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the next frame is {@link #FRAME_TRANSPORT}, should be called
+     * right after {@link #readHeader(InputStream)}. Blocks until the first
+     * bytes of the frame are available. Frame is consumed if it is the
+     * transport one, otherwise stream is reset to where it was.
+     *
+     * @param inputStream has to support mark/reset
+     * @return name of the transport executable switched to, null if it did
+     *         not
+     */
+    public static String readTransportSwitch(InputStream inputStream) throws IOException {
+        inputStream.mark(5);
+        byte[] prefix = new byte[5];
+        if (readFully(inputStream, prefix) < prefix.length || prefix[4] != FRAME_TRANSPORT) {
+            inputStream.reset();
+            return null;
+        }
+
+        int length = (prefix[0] & 0xFF) << 24 | (prefix[1] & 0xFF) << 16 | (prefix[2] & 0xFF) << 8
+                | (prefix[3] & 0xFF);
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] name = new byte[length - 1];
+        if (readFully(inputStream, name) < name.length) {
+            throw new IOException("Stream ended in the middle of a frame");
+        }
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static int readFully(InputStream inputStream, byte[] target) throws IOException {
+        int filled = 0;
+        while (filled < target.length) {
+            int read = inputStream.read(target, filled, target.length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+
+    /**
+     * @return {@link #FRAME_COMMAND} frame with provided command and arguments
+     */
+    public static byte[] encodeCommand(String... lines) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(FRAME_COMMAND);
+        for (String line : lines) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("Command argument is too long: " + bytes.length);
+            }
+            payload.write(bytes.length >>> 8);
+            payload.write(bytes.length);
+            payload.write(bytes, 0, bytes.length);
+        }
+
+        int length = payload.size();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(length + 4);
+        frame.write(length >>> 24);
+        frame.write(length >>> 16);
+        frame.write(length >>> 8);
+        frame.write(length);
+        frame.write(payload.toByteArray(), 0, length);
+        return frame.toByteArray();
+    }
+}
@@ -0,0 +1,468 @@
+package velox.api.layer0.common;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import com.google.gson.Gson;
+
+import velox.api.layer0.common.TextStreamParser.Event;
+import velox.api.layer0.common.TextStreamParser.EventDepth;
+import velox.api.layer0.common.TextStreamParser.EventInstrumentAdded;
+import velox.api.layer0.common.TextStreamParser.EventInstrumentRemoved;
+import velox.api.layer0.common.TextStreamParser.EventMboCancel;
+import velox.api.layer0.common.TextStreamParser.EventMboReplace;
+import velox.api.layer0.common.TextStreamParser.EventMboSend;
+
+/**
+ * <p>
+ * Sidecar index that allows starting replay of a file in
+ * {@link TextStreamParser} format from the middle instead of reading it from
+ * the beginning.
+ * </p>
+ * <p>
+ * Index is a list of checkpoints. Each checkpoint stores time, offset of the
+ * line where it was taken, and a snapshot of the state at that point, written
+ * in the same text format: definitions that are still relevant (instruments,
+ * indicators) followed by Depth and MboSend lines recreating the order books.
+ * So {@link #openFrom(File, long)} just prepends the snapshot to the stream
+ * positioned at the checkpoint, and the parser does not need to know about
+ * seeking at all.
+ * </p>
+ * <p>
+ * Offsets refer to uncompressed data. For .bmtext.gz files the data before the
+ * checkpoint still has to be inflated (but not parsed) when seeking, since
+ * gzip stream can't be entered in the middle.
+ * </p>
+ * <p>
+ * Index is stored next to the source as {@value #FILE_EXTENSION} and can be
+ * built in advance by running this class with file names as arguments.
+ * </p>
+ */
+public class BmtextSeekIndex {
+
+    public static final String FILE_EXTENSION = ".bmidx";
+
+    /** Default distance between checkpoints - 1 minute of data time */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 60_000_000_000L;
+
+    private static final byte[] MAGIC = "BMIDX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    public static class Checkpoint {
+        public final long time;
+        /** Offset of the first line after the checkpoint in the uncompressed source */
+        public final long offset;
+        /** Offset of the snapshot in the index file */
+        private final long snapshotOffset;
+
+        private Checkpoint(long time, long offset, long snapshotOffset) {
+            this.time = time;
+            this.offset = offset;
+            this.snapshotOffset = snapshotOffset;
+        }
+    }
+
+    private final File indexFile;
+    private final List<Checkpoint> checkpoints;
+
+    private BmtextSeekIndex(File indexFile, List<Checkpoint> checkpoints) {
+        this.indexFile = indexFile;
+        this.checkpoints = checkpoints;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: BmtextSeekIndex <file.bmtext[.gz]>...");
+            return;
+        }
+        for (String fileName : args) {
+            File source = new File(fileName);
+            build(source, getIndexFile(source), DEFAULT_CHECKPOINT_INTERVAL);
+            System.out.println("Index written for " + source);
+        }
+    }
+
+    public static File getIndexFile(File source) {
+        return new File(source.getPath() + FILE_EXTENSION);
+    }
+
+    /**
+     * Opens the source, starting from the last checkpoint at or before
+     * provided time. Index is built first if it does not exist yet or is
+     * outdated.
+     *
+     * @return uncompressed stream in the format accepted by
+     *         {@link TextStreamParser}
+     */
+    public static InputStream openFrom(File source, long time) throws IOException {
+        BmtextSeekIndex index = load(source);
+        if (index == null) {
+            build(source, getIndexFile(source), DEFAULT_CHECKPOINT_INTERVAL);
+            index = load(source);
+        }
+
+        Checkpoint checkpoint = index.find(time);
+        InputStream inputStream = open(source);
+        if (checkpoint == null) {
+            return inputStream;
+        }
+
+        try {
+            skipFully(inputStream, checkpoint.offset);
+            byte[] snapshot = index.readSnapshot(checkpoint);
+            return new SequenceInputStream(new ByteArrayInputStream(snapshot), inputStream);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return index for the source, or null if there is no valid index
+     */
+    public static BmtextSeekIndex load(File source) throws IOException {
+        File indexFile = getIndexFile(source);
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+            byte[] magic = new byte[MAGIC.length];
+            file.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || file.readInt() != VERSION) {
+                return null;
+            }
+            // Source was modified after index was built
+            if (file.readLong() != source.length() || file.readLong() != source.lastModified()) {
+                return null;
+            }
+
+            file.seek(file.length() - Long.BYTES);
+            file.seek(file.readLong());
+            int count = file.readInt();
+            List<Checkpoint> checkpoints = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                checkpoints.add(new Checkpoint(file.readLong(), file.readLong(), file.readLong()));
+            }
+            return new BmtextSeekIndex(indexFile, checkpoints);
+        } catch (@SuppressWarnings("unused") EOFException e) {
+            // Index was not fully written
+            return null;
+        }
+    }
+
+    /**
+     * @return last checkpoint at or before provided time, or null if there is
+     *         no such checkpoint
+     */
+    public Checkpoint find(long time) {
+        int low = 0;
+        int high = checkpoints.size() - 1;
+        Checkpoint result = null;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Checkpoint checkpoint = checkpoints.get(middle);
+            if (checkpoint.time <= time) {
+                result = checkpoint;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    public List<Checkpoint> getCheckpoints() {
+        return Collections.unmodifiableList(checkpoints);
+    }
+
+    /**
+     * @return snapshot lines (UTF-8, each terminated with '\n')
+     */
+    public byte[] readSnapshot(Checkpoint checkpoint) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+            file.seek(checkpoint.snapshotOffset);
+            byte[] snapshot = new byte[file.readInt()];
+            file.readFully(snapshot);
+            return snapshot;
+        }
+    }
+
+    private static InputStream open(File source) throws IOException {
+        InputStream inputStream = new FileInputStream(source);
+        if (source.getName().endsWith(".gz")) {
+            inputStream = new GZIPInputStream(inputStream, 1 << 16);
+        }
+        return inputStream;
+    }
+
+    private static void skipFully(InputStream inputStream, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = inputStream.skip(bytes);
+            if (skipped <= 0) {
+                if (inputStream.read() < 0) {
+                    throw new EOFException("Checkpoint is beyond the end of file");
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /**
+     * Reads the whole source and writes the index
+     *
+     * @param checkpointInterval minimal distance between checkpoints in
+     *                           nanoseconds of data time
+     */
+    public static void build(File source, File indexFile, long checkpointInterval) throws IOException {
+        // Writing into a temporary file, so that partially written index is
+        // never picked up
+        File temporaryFile = new File(indexFile.getPath() + ".tmp");
+        try (ByteLineReader reader = new ByteLineReader(open(source));
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            output.write(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(source.length());
+            output.writeLong(source.lastModified());
+
+            new Builder(output, checkpointInterval).build(reader);
+        }
+
+        if (indexFile.exists() && !indexFile.delete() || !temporaryFile.renameTo(indexFile)) {
+            throw new IOException("Failed to write " + indexFile);
+        }
+    }
+
+    /** Book state of a single instrument */
+    private static class InstrumentState {
+        final TreeMap<Integer, Integer> bids = new TreeMap<>(Collections.reverseOrder());
+        final TreeMap<Integer, Integer> asks = new TreeMap<>();
+        /** Active MBO orders in the order of their queue priority */
+        final LinkedHashMap<String, EventMboSend> orders = new LinkedHashMap<>();
+    }
+
+    private static class Builder {
+        private final Gson gson = new Gson();
+        private final TextEventDecoder decoder = new TextEventDecoder();
+        private final TextEventDecoder.EventSlot slot = new TextEventDecoder.EventSlot();
+
+        private final DataOutputStream output;
+        private final long checkpointInterval;
+        private long written;
+
+        private final List<Checkpoint> checkpoints = new ArrayList<>();
+        private long nextCheckpointTime = Long.MIN_VALUE;
+
+        /**
+         * Lines that have to be replayed before any data, in the original order.
+         * Keyed by alias for instruments so those can be dropped on removal.
+         */
+        private final LinkedHashMap<String, String> definitions = new LinkedHashMap<>();
+        private int indicatorsCount = 0;
+
+        private final Map<String, InstrumentState> instruments = new HashMap<>();
+
+        Builder(DataOutputStream output, long checkpointInterval) {
+            this.output = output;
+            this.checkpointInterval = checkpointInterval;
+            this.written = output.size();
+        }
+
+        void build(ByteLineReader reader) throws IOException {
+            while (reader.readLine()) {
+                byte[] buffer = reader.getBuffer();
+                int lineStart = reader.getLineStart();
+                int lineEnd = reader.getLineEnd();
+                long offset = reader.getLineOffset();
+
+                if (decoder.decode(buffer, lineStart, lineEnd, slot)) {
+                    onCheckpointCandidate(slot.time, offset);
+                    onDecodedEvent(slot);
+                } else {
+                    onLine(new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8), offset);
+                }
+            }
+
+            long tableOffset = written;
+            output.writeInt(checkpoints.size());
+            for (Checkpoint checkpoint : checkpoints) {
+                output.writeLong(checkpoint.time);
+                output.writeLong(checkpoint.offset);
+                output.writeLong(checkpoint.snapshotOffset);
+            }
+            output.writeLong(tableOffset);
+        }
+
+        private void onDecodedEvent(TextEventDecoder.EventSlot event) {
+            InstrumentState state = getState(event.alias);
+            switch (event.type) {
+            case DEPTH:
+                onDepth(state, event.isBid, event.price, event.size);
+                break;
+            case MBO_SEND:
+                onMboSend(state, event.alias, event.orderId, event.isBid, event.price, event.size);
+                break;
+            case MBO_REPLACE:
+                onMboReplace(state, event.orderId, event.price, event.size);
+                break;
+            case MBO_CANCEL:
+                state.orders.remove(event.orderId);
+                break;
+            default:
+                // Trades do not change the state
+                break;
+            }
+        }
+
+        private void onLine(String line, long offset) throws IOException {
+            String[] tokens = line.split(" ", 2);
+            if (tokens.length < 2) {
+                return;
+            }
+            String eventCode = tokens[0];
+            String eventData = tokens[1];
+            onCheckpointCandidate(gson.fromJson(eventData, Event.class).time, offset);
+
+            switch (eventCode) {
+            case "InstrumentAdded": {
+                EventInstrumentAdded event = gson.fromJson(eventData, EventInstrumentAdded.class);
+                String key = "InstrumentAdded " + event.alias;
+                definitions.remove(key);
+                definitions.put(key, line);
+                instruments.remove(event.alias);
+                break;
+            }
+            case "InstrumentRemoved": {
+                EventInstrumentRemoved event = gson.fromJson(eventData, EventInstrumentRemoved.class);
+                definitions.remove("InstrumentAdded " + event.alias);
+                instruments.remove(event.alias);
+                break;
+            }
+            case "IndicatorDefinitionUserMessage":
+                definitions.put("IndicatorDefinitionUserMessage " + indicatorsCount++, line);
+                break;
+            // Hot events that TextEventDecoder left for Gson
+            case "Depth": {
+                EventDepth event = gson.fromJson(eventData, EventDepth.class);
+                onDepth(getState(event.alias), event.isBid, event.price, event.size);
+                break;
+            }
+            case "MboSend": {
+                EventMboSend event = gson.fromJson(eventData, EventMboSend.class);
+                onMboSend(getState(event.alias), event.alias, event.orderId, event.isBid, event.price, event.size);
+                break;
+            }
+            case "MboReplace": {
+                EventMboReplace event = gson.fromJson(eventData, EventMboReplace.class);
+                onMboReplace(getState(event.alias), event.orderId, event.price, event.size);
+                break;
+            }
+            case "MboCancel": {
+                EventMboCancel event = gson.fromJson(eventData, EventMboCancel.class);
+                getState(event.alias).orders.remove(event.orderId);
+                break;
+            }
+            default:
+                break;
+            }
+        }
+
+        private InstrumentState getState(String alias) {
+            return instruments.computeIfAbsent(alias, k -> new InstrumentState());
+        }
+
+        private static void onDepth(InstrumentState state, boolean isBid, int price, int size) {
+            TreeMap<Integer, Integer> book = isBid ? state.bids : state.asks;
+            if (size == 0) {
+                book.remove(price);
+            } else {
+                book.put(price, size);
+            }
+        }
+
+        private static void onMboSend(InstrumentState state, String alias, String orderId,
+                boolean isBid, int price, int size) {
+            EventMboSend order = new EventMboSend();
+            order.alias = alias;
+            order.orderId = orderId;
+            order.isBid = isBid;
+            order.price = price;
+            order.size = size;
+            state.orders.put(orderId, order);
+        }
+
+        private static void onMboReplace(InstrumentState state, String orderId, int price, int size) {
+            // Replaced order loses its priority - moving it to the end
+            EventMboSend order = state.orders.remove(orderId);
+            if (order != null) {
+                order.price = price;
+                order.size = size;
+                state.orders.put(orderId, order);
+            }
+        }
+
+        /**
+         * Called before applying each line. Snapshot is taken before the line,
+         * so replay from the checkpoint starts exactly at it.
+         */
+        private void onCheckpointCandidate(long time, long offset) throws IOException {
+            if (time < nextCheckpointTime) {
+                return;
+            }
+            nextCheckpointTime = time + checkpointInterval;
+
+            StringBuilder snapshot = new StringBuilder();
+            for (String line : definitions.values()) {
+                snapshot.append(line).append('\n');
+            }
+            for (Map.Entry<String, InstrumentState> entry : instruments.entrySet()) {
+                appendState(snapshot, time, entry.getKey(), entry.getValue());
+            }
+            byte[] bytes = snapshot.toString().getBytes(StandardCharsets.UTF_8);
+
+            checkpoints.add(new Checkpoint(time, offset, written));
+            output.writeInt(bytes.length);
+            output.write(bytes);
+            written += Integer.BYTES + bytes.length;
+        }
+
+        private void appendState(StringBuilder snapshot, long time, String alias, InstrumentState state) {
+            EventDepth depth = new EventDepth();
+            depth.time = time;
+            depth.alias = alias;
+            for (boolean isBid : new boolean[] {true, false}) {
+                depth.isBid = isBid;
+                for (Map.Entry<Integer, Integer> level : (isBid ? state.bids : state.asks).entrySet()) {
+                    depth.price = level.getKey();
+                    depth.size = level.getValue();
+                    snapshot.append("Depth ").append(gson.toJson(depth)).append('\n');
+                }
+            }
+            for (EventMboSend order : state.orders.values()) {
+                order.time = time;
+                snapshot.append("MboSend ").append(gson.toJson(order)).append('\n');
+            }
+        }
+    }
+}
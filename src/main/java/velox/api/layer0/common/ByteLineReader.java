@@ -0,0 +1,136 @@
+package velox.api.layer0.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * Splits an input stream into lines without creating a String for each of
+ * them. After successful {@link #readLine()} the line is available as a range
+ * of the internal buffer ({@link #getBuffer()}, {@link #getLineStart()},
+ * {@link #getLineEnd()}), and stays valid until the next call.
+ * </p>
+ * <p>
+ * Line terminator is '\n', optional preceding '\r' is stripped. Since '\n' can
+ * not appear inside a multi-byte UTF-8 sequence, this is safe for UTF-8 data.
+ * </p>
+ */
+public class ByteLineReader implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    private final InputStream inputStream;
+
+    private byte[] buffer;
+    /** Start of the data that was not returned as a line yet */
+    private int position = 0;
+    /** End of valid data in the buffer */
+    private int limit = 0;
+    /** Where to continue searching for '\n', avoids rescanning long lines */
+    private int scanPosition = 0;
+    /** Number of bytes dropped from the buffer start, to compute stream offsets */
+    private long discarded = 0;
+
+    private int lineStart;
+    private int lineEnd;
+
+    public ByteLineReader(InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ByteLineReader(InputStream inputStream, int bufferSize) {
+        this.inputStream = inputStream;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Reads next line
+     *
+     * @return false if end of stream was reached and there are no more lines
+     */
+    public boolean readLine() throws IOException {
+        while (true) {
+            for (int i = scanPosition; i < limit; ++i) {
+                if (buffer[i] == '\n') {
+                    setLine(position, i);
+                    position = i + 1;
+                    scanPosition = position;
+                    return true;
+                }
+            }
+            scanPosition = limit;
+
+            if (!fill()) {
+                if (position < limit) {
+                    // Last line without terminator
+                    setLine(position, limit);
+                    position = limit;
+                    scanPosition = limit;
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    private void setLine(int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') {
+            --end;
+        }
+        lineStart = start;
+        lineEnd = end;
+    }
+
+    /**
+     * Reads more data, compacting or growing the buffer if needed.
+     *
+     * @return false if end of stream was reached
+     */
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            discarded += position;
+            int remaining = limit - position;
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+            scanPosition -= position;
+            limit = remaining;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            byte[] newBuffer = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, newBuffer, 0, limit);
+            buffer = newBuffer;
+        }
+        int read = inputStream.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLineStart() {
+        return lineStart;
+    }
+
+    public int getLineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * @return offset of the current line start from the beginning of the
+     *         stream
+     */
+    public long getLineOffset() {
+        return discarded + lineStart;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+}
@@ -0,0 +1,163 @@
+package velox.api.layer0.common;
+
+import java.util.Arrays;
+
+import velox.api.layer1.Layer1ApiDataListener;
+import velox.api.layer1.data.TradeInfo;
+
+/**
+ * <p>
+ * Collects depth and trade updates that happen at the same time, so that those
+ * can be delivered to each listener in one loop instead of one
+ * <code>dataListeners.forEach(...)</code> per update. Storage is reused
+ * between batches, so adding updates does not allocate once the batch has
+ * grown to its typical size.
+ * </p>
+ * <p>
+ * Listeners that implement {@link Listener} get the whole batch in a single
+ * call, others get regular {@link Layer1ApiDataListener#onDepth} /
+ * {@link Layer1ApiDataListener#onTrade} calls in the original order.
+ * </p>
+ * <p>
+ * Batch is not thread safe, it is expected to be filled and flushed by the
+ * thread that produces the data.
+ * </p>
+ */
+public class DataEventBatch {
+
+    /** Optional interface for data listeners that can process a batch at once */
+    public interface Listener {
+        /**
+         * Batch content is only valid during this call
+         */
+        void onDataBatch(DataEventBatch batch);
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int count = 0;
+
+    private boolean[] isTrades = new boolean[INITIAL_CAPACITY];
+    private String[] aliases = new String[INITIAL_CAPACITY];
+    private boolean[] isBids = new boolean[INITIAL_CAPACITY];
+    private int[] prices = new int[INITIAL_CAPACITY];
+    private double[] tradePrices = new double[INITIAL_CAPACITY];
+    private int[] sizes = new int[INITIAL_CAPACITY];
+    private TradeInfo[] tradeInfos = new TradeInfo[INITIAL_CAPACITY];
+
+    public void addDepth(String alias, boolean isBid, int price, int size) {
+        int i = next();
+        isTrades[i] = false;
+        aliases[i] = alias;
+        isBids[i] = isBid;
+        prices[i] = price;
+        sizes[i] = size;
+    }
+
+    public void addTrade(String alias, double price, int size, TradeInfo tradeInfo) {
+        int i = next();
+        isTrades[i] = true;
+        aliases[i] = alias;
+        tradePrices[i] = price;
+        sizes[i] = size;
+        tradeInfos[i] = tradeInfo;
+    }
+
+    private int next() {
+        if (count == isTrades.length) {
+            int capacity = count * 2;
+            isTrades = Arrays.copyOf(isTrades, capacity);
+            aliases = Arrays.copyOf(aliases, capacity);
+            isBids = Arrays.copyOf(isBids, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            tradePrices = Arrays.copyOf(tradePrices, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            tradeInfos = Arrays.copyOf(tradeInfos, capacity);
+        }
+        return count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public boolean isTrade(int i) {
+        return isTrades[i];
+    }
+
+    public String getAlias(int i) {
+        return aliases[i];
+    }
+
+    /** Only meaningful for depth updates */
+    public boolean isBid(int i) {
+        return isBids[i];
+    }
+
+    /** Only meaningful for depth updates */
+    public int getPrice(int i) {
+        return prices[i];
+    }
+
+    /** Only meaningful for trades */
+    public double getTradePrice(int i) {
+        return tradePrices[i];
+    }
+
+    public int getSize(int i) {
+        return sizes[i];
+    }
+
+    /** Only meaningful for trades */
+    public TradeInfo getTradeInfo(int i) {
+        return tradeInfos[i];
+    }
+
+    /**
+     * Delivers collected updates as individual calls
+     */
+    public void dispatchTo(Layer1ApiDataListener listener) {
+        for (int i = 0; i < count; ++i) {
+            if (isTrades[i]) {
+                listener.onTrade(aliases[i], tradePrices[i], sizes[i], tradeInfos[i]);
+            } else {
+                listener.onDepth(aliases[i], isBids[i], prices[i], sizes[i]);
+            }
+        }
+    }
+
+    /**
+     * Delivers collected updates to all listeners, batch is not cleared
+     */
+    public void dispatchToAll(Iterable<? extends Layer1ApiDataListener> listeners) {
+        if (count == 0) {
+            return;
+        }
+        for (Layer1ApiDataListener listener : listeners) {
+            if (listener instanceof Listener) {
+                ((Listener) listener).onDataBatch(this);
+            } else {
+                dispatchTo(listener);
+            }
+        }
+    }
+
+    /**
+     * Delivers collected updates to all listeners and clears the batch
+     */
+    public void flush(Iterable<? extends Layer1ApiDataListener> listeners) {
+        dispatchToAll(listeners);
+        clear();
+    }
+
+    public void clear() {
+        // Not keeping trade infos reachable, other references are either
+        // primitives or aliases that live as long as the instrument
+        Arrays.fill(tradeInfos, 0, count, null);
+        count = 0;
+    }
+}
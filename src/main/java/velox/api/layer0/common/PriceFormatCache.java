@@ -0,0 +1,111 @@
+package velox.api.layer0.common;
+
+import velox.api.layer1.providers.helper.PriceFormatHelper;
+
+/**
+ * <p>
+ * Caches formatted prices of a single instrument, keyed by price level (price
+ * divided by pips). Bookmap formats prices for the price axis and tooltips on
+ * every repaint, so mostly the same few hundred levels are formatted over and
+ * over again.
+ * </p>
+ * <p>
+ * Cache is a bounded 2-way set associative table: each level maps to a set of
+ * two slots, and the least recently used slot of the set is replaced on a
+ * miss. Entries are immutable, so reads take no locks - a racing reader can at
+ * worst miss an entry that was just written and format the price again.
+ * </p>
+ * <p>
+ * Formatted values depend on pips, so the cache should be replaced when the
+ * instrument is added again.
+ * </p>
+ */
+public class PriceFormatCache {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private static class Entry {
+        final long level;
+        final String formatted;
+        /**
+         * Written without synchronization, approximate order is good enough
+         * for eviction
+         */
+        long lastUsed;
+
+        Entry(long level, String formatted, long lastUsed) {
+            this.level = level;
+            this.formatted = formatted;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final double pips;
+    private final Entry[] entries;
+    private final int setsMask;
+
+    /** Access counter, updated without synchronization (see Entry#lastUsed) */
+    private long clock = 0;
+
+    public PriceFormatCache(double pips) {
+        this(pips, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum number of cached levels, rounded up to a power
+     *                 of two
+     */
+    public PriceFormatCache(double pips, int capacity) {
+        this.pips = pips;
+
+        int setsCount = Integer.highestOneBit(Math.max(capacity / 2, 1) * 2 - 1);
+        this.entries = new Entry[setsCount * 2];
+        this.setsMask = setsCount - 1;
+    }
+
+    public double getPips() {
+        return pips;
+    }
+
+    /**
+     * Same as {@link PriceFormatHelper#formatPriceDefault(double, double)} with
+     * pips of this cache
+     */
+    public String formatPrice(double price) {
+        long level = Math.round(price / pips);
+        if (level * pips != price) {
+            // Not a price level, nothing to key the cache on
+            return PriceFormatHelper.formatPriceDefault(pips, price);
+        }
+
+        Entry[] entries = this.entries;
+        int index = setIndex(level) * 2;
+        long now = ++clock;
+
+        Entry first = entries[index];
+        if (first != null && first.level == level) {
+            first.lastUsed = now;
+            return first.formatted;
+        }
+        Entry second = entries[index + 1];
+        if (second != null && second.level == level) {
+            second.lastUsed = now;
+            return second.formatted;
+        }
+
+        String formatted = PriceFormatHelper.formatPriceDefault(pips, price);
+        Entry entry = new Entry(level, formatted, now);
+        if (first == null || (second != null && first.lastUsed <= second.lastUsed)) {
+            entries[index] = entry;
+        } else {
+            entries[index + 1] = entry;
+        }
+        return formatted;
+    }
+
+    private int setIndex(long level) {
+        // Adjacent levels are requested together (price axis), and those get
+        // into different sets this way
+        return (int) level & setsMask;
+    }
+}
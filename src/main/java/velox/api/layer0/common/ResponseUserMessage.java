@@ -0,0 +1,23 @@
+package velox.api.layer0.common;
+
+/**
+ * <p>
+ * Response of an external executable to a request with the same id (see
+ * velox.api.layer0.live.advanced.FullTextDataRealtimeProvider). Reported by
+ * {@link TextStreamParser} through onUserMessage, so requests can be matched
+ * with responses by whoever sent them.
+ * </p>
+ */
+public class ResponseUserMessage {
+    public final long requestId;
+    /** Null if request failed */
+    public final String result;
+    /** Null if request succeeded */
+    public final String error;
+
+    public ResponseUserMessage(long requestId, String result, String error) {
+        this.requestId = requestId;
+        this.result = result;
+        this.error = error;
+    }
+}
@@ -0,0 +1,229 @@
+package velox.api.layer0.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * <p>
+ * Single producer/single consumer byte ring in a memory-mapped file, used as a
+ * replacement for the standard output of an external executable (see
+ * {@link BinaryIpcFormat#TRANSPORT_SHARED_MEMORY}). When the file is under
+ * /dev/shm, data never leaves memory and neither side makes system calls
+ * while there is data to process. Java side is the consumer, it creates and
+ * removes the file.
+ * </p>
+ * <p>
+ * Layout (native byte order, counters on separate cache lines):
+ * </p>
+ * <ul>
+ * <li>0: {@link #RING_MAGIC} (int), {@link #RING_VERSION} (int), capacity of
+ * the data area (int, power of 2)</li>
+ * <li>{@link #WRITE_POSITION_OFFSET}: total number of bytes written (long),
+ * updated by the producer with release semantics after the data is
+ * copied</li>
+ * <li>{@link #READ_POSITION_OFFSET}: total number of bytes read (long),
+ * updated by the consumer after the data is copied out</li>
+ * <li>{@link #PRODUCER_STATE_OFFSET}: {@link #PRODUCER_ATTACHED} or
+ * {@link #PRODUCER_CLOSED} once producer is done (int)</li>
+ * <li>{@link #DATA_OFFSET}: data, byte with position p is at p modulo
+ * capacity</li>
+ * </ul>
+ * <p>
+ * Producer waits while the ring is full, so data is never lost. If the
+ * counters ever show more unread data than the capacity, the ring was
+ * overrun (or corrupted) and reading fails instead of returning garbage.
+ * </p>
+ * <p>
+ * Wake-up can't be signaled across processes without system calls, so empty
+ * ring is polled: consumer spins for a while (lowest latency for bursts) and
+ * then parks for short intervals, checking if producer is still alive.
+ * </p>
+ */
+public class SharedMemoryRing implements Closeable {
+
+    public static final int RING_MAGIC = 0x424D5247;
+    public static final int RING_VERSION = 1;
+
+    public static final int WRITE_POSITION_OFFSET = 64;
+    public static final int READ_POSITION_OFFSET = 128;
+    public static final int PRODUCER_STATE_OFFSET = 192;
+    public static final int DATA_OFFSET = 256;
+
+    public static final int PRODUCER_ATTACHED = 1;
+    public static final int PRODUCER_CLOSED = 2;
+
+    /**
+     * How long to spin before parking when the ring is empty. With a single
+     * CPU spinning only delays the producer.
+     */
+    private static final int SPIN_ITERATIONS = Runtime.getRuntime().availableProcessors() > 1 ? 10_000 : 0;
+    private static final long PARK_NANOS = 50_000;
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.nativeOrder());
+
+    private final Path path;
+    private final int capacity;
+    private final MappedByteBuffer buffer;
+    /** View of the data area, only used by the consumer */
+    private final ByteBuffer data;
+
+    private SharedMemoryRing(Path path, int capacity, MappedByteBuffer buffer) {
+        this.path = path;
+        this.capacity = capacity;
+        this.buffer = buffer;
+
+        ByteBuffer data = buffer.duplicate();
+        data.position(DATA_OFFSET);
+        this.data = data.slice();
+    }
+
+    /**
+     * Creates the file and initializes the ring. Existing file is replaced.
+     *
+     * @param capacity size of the data area, rounded up to a power of 2
+     */
+    public static SharedMemoryRing create(Path path, int capacity) throws IOException {
+        capacity = Integer.highestOneBit(Math.max(capacity, 1024) * 2 - 1);
+
+        Files.deleteIfExists(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putInt(4, RING_VERSION);
+            buffer.putInt(8, capacity);
+            LONG.setRelease(buffer, WRITE_POSITION_OFFSET, 0L);
+            LONG.setRelease(buffer, READ_POSITION_OFFSET, 0L);
+            INT.setRelease(buffer, PRODUCER_STATE_OFFSET, 0);
+            // Magic last, so producer never sees a partially initialized ring
+            INT.setRelease(buffer, 0, RING_MAGIC);
+            return new SharedMemoryRing(path, capacity, buffer);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @param isProducerAlive checked while waiting for data, stream ends if
+     *                        producer died without closing the ring
+     * @return stream of the data written by the producer. Not thread safe,
+     *         there can only be one consumer.
+     */
+    public InputStream getInputStream(BooleanSupplier isProducerAlive) {
+        return new RingInputStream(isProducerAlive);
+    }
+
+    /** Removes the file, mapping stays valid until garbage collected */
+    @Override
+    public void close() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    private class RingInputStream extends InputStream {
+        private final BooleanSupplier isProducerAlive;
+        private long readPosition = 0;
+
+        RingInputStream(BooleanSupplier isProducerAlive) {
+            this.isProducerAlive = isProducerAlive;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            long available = awaitData();
+            if (available < 0) {
+                return -1;
+            }
+
+            int count = (int) Math.min(available, length);
+            int index = (int) (readPosition & (capacity - 1));
+            int firstPart = Math.min(count, capacity - index);
+            data.position(index);
+            data.get(target, offset, firstPart);
+            if (firstPart < count) {
+                data.position(0);
+                data.get(target, offset + firstPart, count - firstPart);
+            }
+
+            readPosition += count;
+            LONG.setRelease(buffer, READ_POSITION_OFFSET, readPosition);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(getAvailable(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            SharedMemoryRing.this.close();
+        }
+
+        /**
+         * @return number of bytes available, -1 if producer is gone and
+         *         everything was read
+         */
+        private long awaitData() throws IOException {
+            for (int spins = 0;; ++spins) {
+                long available = getAvailable();
+                if (available > 0) {
+                    return available;
+                }
+
+                if ((int) INT.getAcquire(buffer, PRODUCER_STATE_OFFSET) == PRODUCER_CLOSED) {
+                    // Producer might have written something just before closing
+                    return getAvailable() > 0 ? getAvailable() : -1;
+                }
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+                if (spins < SPIN_ITERATIONS) {
+                    Thread.onSpinWait();
+                } else {
+                    if (!isProducerAlive.getAsBoolean()) {
+                        return getAvailable() > 0 ? getAvailable() : -1;
+                    }
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+        }
+
+        private long getAvailable() throws IOException {
+            long available = (long) LONG.getAcquire(buffer, WRITE_POSITION_OFFSET) - readPosition;
+            if (available < 0 || available > capacity) {
+                throw new IOException("Shared memory ring overrun: " + available
+                        + " bytes unread, capacity " + capacity);
+            }
+            return available;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package velox.api.layer0.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import velox.api.layer1.data.TradeInfo;
+
+/**
+ * <p>
+ * Hand-written decoder for the most frequent events of the format read by
+ * {@link TextStreamParser} (Depth, Trade, MboSend, MboReplace, MboCancel).
+ * Fields are read straight from the UTF-8 bytes of the line into an
+ * {@link EventSlot}, so no intermediate objects are created. Aliases are
+ * interned and {@link TradeInfo} objects are shared, so the only allocation
+ * left is the order id of MBO events.
+ * </p>
+ * <p>
+ * Decoder only understands the plain form of the events that Gson (or the
+ * C++ sample) produces. If the line contains anything else (unknown field,
+ * escaped string, null, etc) {@link #decode(byte[], int, int, EventSlot)}
+ * returns false and the line should be decoded by Gson instead - so the result
+ * is always the same as it would be without this decoder.
+ * </p>
+ */
+public class TextEventDecoder {
+
+    public enum Type {
+        DEPTH, TRADE, MBO_SEND, MBO_REPLACE, MBO_CANCEL
+    }
+
+    /**
+     * Decoded event. Reused between lines, so consumer has to copy what it
+     * needs before decoding the next one.
+     */
+    public static class EventSlot {
+        public Type type;
+        public long time;
+        public String alias;
+        public String orderId;
+        public boolean isBid;
+        /** Price level for depth and MBO events */
+        public int price;
+        /** Price for trades (not necessarily an integer) */
+        public double tradePrice;
+        public int size;
+        public TradeInfo tradeInfo;
+
+        private void reset(Type type) {
+            this.type = type;
+            time = 0;
+            alias = null;
+            orderId = null;
+            isBid = false;
+            price = 0;
+            tradePrice = 0;
+            size = 0;
+            tradeInfo = null;
+        }
+    }
+
+    private static final byte[] CODE_DEPTH = ascii("Depth");
+    private static final byte[] CODE_TRADE = ascii("Trade");
+    private static final byte[] CODE_MBO_SEND = ascii("MboSend");
+    private static final byte[] CODE_MBO_REPLACE = ascii("MboReplace");
+    private static final byte[] CODE_MBO_CANCEL = ascii("MboCancel");
+
+    private static final byte[] KEY_TIME = ascii("time");
+    private static final byte[] KEY_ALIAS = ascii("alias");
+    private static final byte[] KEY_ORDER_ID = ascii("orderId");
+    private static final byte[] KEY_IS_BID = ascii("isBid");
+    private static final byte[] KEY_PRICE = ascii("price");
+    private static final byte[] KEY_SIZE = ascii("size");
+    private static final byte[] KEY_TRADE_INFO = ascii("tradeInfo");
+    private static final byte[] KEY_IS_OTC = ascii("isOtc");
+    private static final byte[] KEY_IS_BID_AGGRESSOR = ascii("isBidAggressor");
+    private static final byte[] KEY_IS_EXECUTION_START = ascii("isExecutionStart");
+    private static final byte[] KEY_IS_EXECUTION_END = ascii("isExecutionEnd");
+
+    private static final byte[] LITERAL_TRUE = ascii("true");
+    private static final byte[] LITERAL_FALSE = ascii("false");
+
+    private static final int TRADE_INFO_IS_OTC = 1;
+    private static final int TRADE_INFO_IS_BID_AGGRESSOR = 2;
+    private static final int TRADE_INFO_IS_EXECUTION_START = 4;
+    private static final int TRADE_INFO_IS_EXECUTION_END = 8;
+
+    /**
+     * {@link TradeInfo} is immutable and only has 4 boolean fields, so all
+     * combinations can be created upfront
+     */
+    private static final TradeInfo[] TRADE_INFOS = new TradeInfo[16];
+    static {
+        for (int i = 0; i < TRADE_INFOS.length; ++i) {
+            TRADE_INFOS[i] = new TradeInfo(
+                    (i & TRADE_INFO_IS_OTC) != 0,
+                    (i & TRADE_INFO_IS_BID_AGGRESSOR) != 0,
+                    (i & TRADE_INFO_IS_EXECUTION_START) != 0,
+                    (i & TRADE_INFO_IS_EXECUTION_END) != 0);
+        }
+    }
+
+    /**
+     * Shared instance for the combination of flags, same bits as
+     * {@link BinaryIpcFormat#TRADE_IS_OTC} and others
+     */
+    static TradeInfo getTradeInfo(int flags) {
+        return TRADE_INFOS[flags & (TRADE_INFOS.length - 1)];
+    }
+
+    /** Exactly representable powers of 10, see {@link #parseNumber()} */
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; ++i) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /** Interned aliases. Instruments count is small, so linear search is fine */
+    private String[] aliases = new String[16];
+    private byte[][] aliasBytes = new byte[16][];
+    private int aliasesCount = 0;
+    private int lastAliasIndex = -1;
+
+    /** Current line and position in it */
+    private byte[] buffer;
+    private int position;
+    private int end;
+
+    /** Set by {@link #parseString()} */
+    private int stringStart;
+    private int stringEnd;
+
+    /** Set by {@link #parseNumber()} */
+    private long numberMantissa;
+    private int numberFractionDigits;
+    private boolean numberIsInteger;
+
+    /**
+     * Decodes the line if it is one of the supported events in the supported
+     * form.
+     *
+     * @param buffer line bytes (UTF-8)
+     * @param start  line start, inclusive
+     * @param end    line end, exclusive, without line terminator
+     * @param slot   where decoded event is stored
+     * @return true if line was decoded, false if it should be decoded in a
+     *         generic way. In later case content of the slot is undefined.
+     */
+    public boolean decode(byte[] buffer, int start, int end, EventSlot slot) {
+        this.buffer = buffer;
+        this.end = end;
+
+        int codeEnd = start;
+        while (codeEnd < end && buffer[codeEnd] != ' ') {
+            ++codeEnd;
+        }
+        Type type = getType(buffer, start, codeEnd);
+        if (type == null) {
+            return false;
+        }
+        slot.reset(type);
+        position = codeEnd + 1;
+
+        try {
+            return parseEvent(slot);
+        } finally {
+            this.buffer = null;
+        }
+    }
+
+    private static Type getType(byte[] buffer, int start, int end) {
+        int length = end - start;
+        // Switching on length first, so usually only one comparison is done
+        switch (length) {
+        case 5:
+            if (regionEquals(buffer, start, end, CODE_DEPTH)) {
+                return Type.DEPTH;
+            } else if (regionEquals(buffer, start, end, CODE_TRADE)) {
+                return Type.TRADE;
+            }
+            return null;
+        case 7:
+            return regionEquals(buffer, start, end, CODE_MBO_SEND) ? Type.MBO_SEND : null;
+        case 9:
+            return regionEquals(buffer, start, end, CODE_MBO_CANCEL) ? Type.MBO_CANCEL : null;
+        case 10:
+            return regionEquals(buffer, start, end, CODE_MBO_REPLACE) ? Type.MBO_REPLACE : null;
+        default:
+            return null;
+        }
+    }
+
+    private boolean parseEvent(EventSlot slot) {
+        if (!consume('{')) {
+            return false;
+        }
+        if (!consume('}')) {
+            do {
+                if (!parseString()) {
+                    return false;
+                }
+                int keyStart = stringStart;
+                int keyEnd = stringEnd;
+                if (!consume(':') || !parseField(slot, keyStart, keyEnd)) {
+                    return false;
+                }
+            } while (consume(','));
+
+            if (!consume('}')) {
+                return false;
+            }
+        }
+        skipWhitespace();
+        return position == end;
+    }
+
+    private boolean parseField(EventSlot slot, int keyStart, int keyEnd) {
+        Type type = slot.type;
+        if (regionEquals(buffer, keyStart, keyEnd, KEY_TIME)) {
+            if (!parseNumber() || !numberIsInteger) {
+                return false;
+            }
+            slot.time = numberMantissa;
+        } else if (regionEquals(buffer, keyStart, keyEnd, KEY_ALIAS)) {
+            if (!parseString()) {
+                return false;
+            }
+            slot.alias = internAlias(stringStart, stringEnd);
+        } else if (type != Type.DEPTH && type != Type.TRADE
+                && regionEquals(buffer, keyStart, keyEnd, KEY_ORDER_ID)) {
+            if (!parseString()) {
+                return false;
+            }
+            slot.orderId = new String(buffer, stringStart, stringEnd - stringStart, StandardCharsets.UTF_8);
+        } else if ((type == Type.DEPTH || type == Type.MBO_SEND)
+                && regionEquals(buffer, keyStart, keyEnd, KEY_IS_BID)) {
+            int value = parseBoolean();
+            if (value < 0) {
+                return false;
+            }
+            slot.isBid = value == 1;
+        } else if (type != Type.MBO_CANCEL && regionEquals(buffer, keyStart, keyEnd, KEY_PRICE)) {
+            if (!parseNumber()) {
+                return false;
+            }
+            if (type == Type.TRADE) {
+                slot.tradePrice = toDouble();
+                if (Double.isNaN(slot.tradePrice)) {
+                    return false;
+                }
+            } else {
+                if (!isIntNumber()) {
+                    return false;
+                }
+                slot.price = (int) numberMantissa;
+            }
+        } else if (type != Type.MBO_CANCEL && regionEquals(buffer, keyStart, keyEnd, KEY_SIZE)) {
+            if (!parseNumber() || !isIntNumber()) {
+                return false;
+            }
+            slot.size = (int) numberMantissa;
+        } else if (type == Type.TRADE && regionEquals(buffer, keyStart, keyEnd, KEY_TRADE_INFO)) {
+            return parseTradeInfo(slot);
+        } else {
+            // Unknown field, let Gson decide what to do with it
+            return false;
+        }
+        return true;
+    }
+
+    private boolean parseTradeInfo(EventSlot slot) {
+        if (!consume('{')) {
+            return false;
+        }
+        int flags = 0;
+        if (!consume('}')) {
+            do {
+                if (!parseString()) {
+                    return false;
+                }
+                int keyStart = stringStart;
+                int keyEnd = stringEnd;
+                if (!consume(':')) {
+                    return false;
+                }
+                int flag;
+                if (regionEquals(buffer, keyStart, keyEnd, KEY_IS_OTC)) {
+                    flag = TRADE_INFO_IS_OTC;
+                } else if (regionEquals(buffer, keyStart, keyEnd, KEY_IS_BID_AGGRESSOR)) {
+                    flag = TRADE_INFO_IS_BID_AGGRESSOR;
+                } else if (regionEquals(buffer, keyStart, keyEnd, KEY_IS_EXECUTION_START)) {
+                    flag = TRADE_INFO_IS_EXECUTION_START;
+                } else if (regionEquals(buffer, keyStart, keyEnd, KEY_IS_EXECUTION_END)) {
+                    flag = TRADE_INFO_IS_EXECUTION_END;
+                } else {
+                    return false;
+                }
+                int value = parseBoolean();
+                if (value < 0) {
+                    return false;
+                }
+                flags = value == 1 ? flags | flag : flags & ~flag;
+            } while (consume(','));
+
+            if (!consume('}')) {
+                return false;
+            }
+        }
+        slot.tradeInfo = TRADE_INFOS[flags];
+        return true;
+    }
+
+    private String internAlias(int start, int end) {
+        if (lastAliasIndex >= 0 && regionEquals(buffer, start, end, aliasBytes[lastAliasIndex])) {
+            return aliases[lastAliasIndex];
+        }
+        for (int i = 0; i < aliasesCount; ++i) {
+            if (regionEquals(buffer, start, end, aliasBytes[i])) {
+                lastAliasIndex = i;
+                return aliases[i];
+            }
+        }
+
+        if (aliasesCount == aliases.length) {
+            aliases = Arrays.copyOf(aliases, aliasesCount * 2);
+            aliasBytes = Arrays.copyOf(aliasBytes, aliasesCount * 2);
+        }
+        aliasBytes[aliasesCount] = Arrays.copyOfRange(buffer, start, end);
+        aliases[aliasesCount] = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+        lastAliasIndex = aliasesCount;
+        return aliases[aliasesCount++];
+    }
+
+    private void skipWhitespace() {
+        while (position < end) {
+            byte b = buffer[position];
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return;
+            }
+            ++position;
+        }
+    }
+
+    private boolean consume(char c) {
+        skipWhitespace();
+        if (position < end && buffer[position] == c) {
+            ++position;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses string without escape sequences, storing its bounds in
+     * {@link #stringStart} and {@link #stringEnd}
+     */
+    private boolean parseString() {
+        if (!consume('"')) {
+            return false;
+        }
+        stringStart = position;
+        while (position < end) {
+            byte b = buffer[position];
+            if (b == '"') {
+                stringEnd = position++;
+                return true;
+            } else if (b == '\\') {
+                return false;
+            }
+            ++position;
+        }
+        return false;
+    }
+
+    /**
+     * @return 1 for true, 0 for false, -1 if there is something else
+     */
+    private int parseBoolean() {
+        skipWhitespace();
+        if (startsWith(LITERAL_TRUE)) {
+            position += LITERAL_TRUE.length;
+            return 1;
+        } else if (startsWith(LITERAL_FALSE)) {
+            position += LITERAL_FALSE.length;
+            return 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a number in form of <code>-?digits(.digits)?</code> into
+     * {@link #numberMantissa} and {@link #numberFractionDigits}. Exponent and
+     * values that do not fit into long (ignoring the dot) are not supported.
+     */
+    private boolean parseNumber() {
+        skipWhitespace();
+        boolean negative = false;
+        if (position < end && buffer[position] == '-') {
+            negative = true;
+            ++position;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        while (position < end) {
+            byte b = buffer[position];
+            if (b >= '0' && b <= '9') {
+                int digit = b - '0';
+                if (mantissa > (Long.MAX_VALUE - digit) / 10) {
+                    return false;
+                }
+                mantissa = mantissa * 10 + digit;
+                ++digits;
+                if (fraction) {
+                    ++fractionDigits;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else if (b == 'e' || b == 'E') {
+                return false;
+            } else {
+                break;
+            }
+            ++position;
+        }
+        if (digits == 0 || negative && mantissa == 0) {
+            // Leaving negative zero to Gson
+            return false;
+        }
+
+        // Dropping trailing zeroes, so that "2910.0" is still an integer
+        while (fractionDigits > 0 && mantissa % 10 == 0) {
+            mantissa /= 10;
+            --fractionDigits;
+        }
+
+        numberMantissa = negative ? -mantissa : mantissa;
+        numberFractionDigits = fractionDigits;
+        numberIsInteger = fractionDigits == 0;
+        return true;
+    }
+
+    private boolean isIntNumber() {
+        return numberIsInteger && numberMantissa >= Integer.MIN_VALUE && numberMantissa <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Converts parsed number to double. Both mantissa and power of ten are
+     * exact doubles here, and division is correctly rounded, so the result is
+     * the same as {@link Double#parseDouble(String)} would return.
+     *
+     * @return NaN if number can't be converted exactly this way
+     */
+    private double toDouble() {
+        if (Math.abs(numberMantissa) >= (1L << 53) || numberFractionDigits >= POWERS_OF_TEN.length) {
+            return Double.NaN;
+        }
+        return numberMantissa / POWERS_OF_TEN[numberFractionDigits];
+    }
+
+    private boolean startsWith(byte[] literal) {
+        return end - position >= literal.length
+                && regionEquals(buffer, position, position + literal.length, literal);
+    }
+
+    private static boolean regionEquals(byte[] buffer, int start, int end, byte[] value) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; ++i) {
+            if (buffer[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -2,12 +2,10 @@ package velox.api.layer0.common;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 
 import javax.imageio.ImageIO;
@@ -19,10 +17,7 @@ import velox.api.layer0.data.FileNotSupportedUserMessage;
 import velox.api.layer0.data.IndicatorDefinitionUserMessage;
 import velox.api.layer0.data.IndicatorPointUserMessage;
 import velox.api.layer0.data.OrderQueuePositionUserMessage;
-import velox.api.layer0.data.ReadFileLoginData;
 import velox.api.layer0.data.TextDataMessage;
-import velox.api.layer0.replay.ExternalReaderBaseProvider;
-import velox.api.layer1.Layer1ApiDataListener;
 import velox.api.layer1.Layer1ApiListener;
 import velox.api.layer1.data.BalanceInfo;
 import velox.api.layer1.data.DisconnectionReason;
@@ -172,6 +167,12 @@ public class TextStreamParser extends Layer1ApiUpstreamRelay {
         public int position;
     }
 
+    public static class EventResponse extends Event {
+        public long requestId;
+        public String result;
+        public String error;
+    }
+
     public static class TextDataMessageEvent extends Event {
         public String alias;
         public String source;
@@ -183,12 +184,22 @@ public class TextStreamParser extends Layer1ApiUpstreamRelay {
     
     private final Gson gson = new Gson();
 
+    /** Decodes frequent events without Gson, see {@link TextEventDecoder} */
+    private final TextEventDecoder decoder = new TextEventDecoder();
+    private final TextEventDecoder.EventSlot eventSlot = new TextEventDecoder.EventSlot();
+
     private Thread readerThread;
     private long currentTime = 0;
 
     private boolean play = true;
 
-    private BufferedReader reader;
+    private ByteLineReader reader;
+
+    /** Used instead of {@link #reader} when started with {@link #startPipelined(InputStream)} */
+    private TextStreamPipeline pipeline;
+
+    /** Used instead of {@link #reader} when started with {@link #startBinary(InputStream)} */
+    private BinaryFrameDecoder binaryDecoder;
     
     public TextStreamParser() {
     }
@@ -196,7 +207,7 @@ public class TextStreamParser extends Layer1ApiUpstreamRelay {
     public void start(InputStream inputStream) {
 
         try {
-            reader = new BufferedReader(new InputStreamReader(inputStream));
+            reader = new ByteLineReader(inputStream);
 
             // Reading one line to guarantee that when we exit this method
             // getCurrentTime will return meaningful result.
@@ -209,6 +220,108 @@ public class TextStreamParser extends Layer1ApiUpstreamRelay {
         }
     }
 
+    /**
+     * Same as {@link #start(InputStream)}, but reading (inflating) and decoding
+     * are done in separate threads (see {@link TextStreamPipeline}) while reader
+     * thread only dispatches events in the original order. Better suited for
+     * files, where throughput matters more than latency of a single event.
+     */
+    public void startPipelined(InputStream inputStream) {
+        pipeline = new TextStreamPipeline(inputStream);
+        pipeline.start();
+
+        try {
+            // Same as in start(...) - making sure getCurrentTime is meaningful
+            readPipelinedEvent();
+
+            readerThread = new Thread(this::readPipelined);
+            readerThread.start();
+        } catch (@SuppressWarnings("unused") IOException e) {
+            pipeline.close();
+            adminListeners.forEach(listener -> listener.onUserMessage(new FileNotSupportedUserMessage()));
+        } catch (@SuppressWarnings("unused") InterruptedException e) {
+            pipeline.close();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Same as {@link #start(InputStream)}, but for streams in
+     * {@link BinaryIpcFormat}. Header should be already consumed (see
+     * {@link BinaryIpcFormat#readHeader(InputStream)}).
+     */
+    public void startBinary(InputStream inputStream) {
+
+        try {
+            binaryDecoder = new BinaryFrameDecoder(inputStream);
+
+            // Same as in start(...) - making sure getCurrentTime is meaningful
+            readFrame();
+
+            readerThread = new Thread(this::readBinary);
+            readerThread.start();
+        } catch (@SuppressWarnings("unused") IOException e) {
+            adminListeners.forEach(listener -> listener.onUserMessage(new FileNotSupportedUserMessage()));
+        }
+    }
+
+    private void readBinary() {
+        try {
+            while (!Thread.interrupted() && play) {
+                readFrame();
+            }
+        } catch (@SuppressWarnings("unused") IOException e) {
+            reportFileEnd();
+        }
+    }
+
+    private void readFrame() throws IOException {
+        if (!binaryDecoder.readFrame(eventSlot)) {
+            if (play) {
+                reportFileEnd();
+            }
+            return;
+        }
+
+        if (binaryDecoder.isText()) {
+            readLine(binaryDecoder.getBuffer(), binaryDecoder.getTextStart(), binaryDecoder.getTextEnd());
+        } else {
+            onDecodedEvent(eventSlot);
+        }
+    }
+
+    private void readPipelined() {
+        try {
+            while (!Thread.interrupted() && play) {
+                readPipelinedEvent();
+            }
+        } catch (@SuppressWarnings("unused") IOException e) {
+            reportFileEnd();
+        } catch (@SuppressWarnings("unused") InterruptedException e) {
+            // Parser is being closed
+        }
+    }
+
+    private void readPipelinedEvent() throws IOException, InterruptedException {
+        TextStreamPipeline.Slot slot = pipeline.take();
+        if (slot == null) {
+            if (play) {
+                reportFileEnd();
+            }
+            return;
+        }
+
+        try {
+            if (slot.line == null) {
+                onDecodedEvent(slot.event);
+            } else {
+                readLine(slot.line);
+            }
+        } finally {
+            pipeline.release();
+        }
+    }
+
     private void read() {
         try {
             while (!Thread.interrupted() && play) {
@@ -225,168 +338,216 @@ public class TextStreamParser extends Layer1ApiUpstreamRelay {
     }
 
     private void readLine() throws IOException {
-        String line = reader.readLine();
-        if (line == null && play) {
-            reportFileEnd();
-        } else {
-            String[] tokens = line.split(" ", 2);
-            String eventCode = tokens[0];
-            String eventData = tokens[1];
-            switch (eventCode) {
-            case "InstrumentAdded": {
-                EventInstrumentAdded event = gson.fromJson(eventData, EventInstrumentAdded.class);
-                currentTime = event.time;
-                onInstrumentAdded(event.alias, event.instrumentInfo);
-                break;
-            }
-            case "InstrumentRemoved": {
-                EventInstrumentRemoved event = gson.fromJson(eventData, EventInstrumentRemoved.class);
-                currentTime = event.time;
-                onInstrumentRemoved(event.alias);
-                break;
-            }
-            case "InstrumentNotFound": {
-                EventInstrumentNotFound event = gson.fromJson(eventData, EventInstrumentNotFound.class);
-                currentTime = event.time;
-                onInstrumentNotFound(event.symbol, event.exchange, event.type);
-                break;
-            }
-            case "InstrumentAlreadySubscribed": {
-                EventInstrumentAlreadySubscribed event = gson.fromJson(eventData, EventInstrumentAlreadySubscribed.class);
-                currentTime = event.time;
-                onInstrumentAlreadySubscribed(event.symbol, event.exchange, event.type);
-                break;
-            }
-            case "Trade": {
-                EventTrade event = gson.fromJson(eventData, EventTrade.class);
-                currentTime = event.time;
-                onTrade(event.alias, event.price, event.size, event.tradeInfo);
-                break;
-            }
-            case "Depth": {
-                EventDepth event = gson.fromJson(eventData, EventDepth.class);
-                currentTime = event.time;
-                onDepth(event.alias, event.isBid, event.price, event.size);
-                break;
-            }
-            case "MboSend": {
-                EventMboSend event = gson.fromJson(eventData, EventMboSend.class);
-                currentTime = event.time;
-                onMboSend(event.alias, event.orderId, event.isBid, event.price, event.size);
-                break;
-            }
-            case "MboReplace": {
-                EventMboReplace event = gson.fromJson(eventData, EventMboReplace.class);
-                currentTime = event.time;
-                onMboReplace(event.alias, event.orderId, event.price, event.size);
-                break;
-            }
-            case "MboCancel": {
-                EventMboCancel event = gson.fromJson(eventData, EventMboCancel.class);
-                currentTime = event.time;
-                onMboCancel(event.alias, event.orderId);
-                break;
-            }
-            case "MarketMode": {
-                EventMarketMode event = gson.fromJson(eventData, EventMarketMode.class);
-                currentTime = event.time;
-                onMarketMode(event.alias, event.marketMode);
-                break;
-            }
-            case "OrderUpdated": {
-                EventOrderUpdated event = gson.fromJson(eventData, EventOrderUpdated.class);
-                currentTime = event.time;
-                onOrderUpdated(event.orderInfoUpdate);
-                break;
-            }
-            case "OrderExecuted": {
-                EventOrderExecuted event = gson.fromJson(eventData, EventOrderExecuted.class);
-                currentTime = event.time;
-                onOrderExecuted(event.executionInfo);
-                break;
-            }
-            case "Status": {
-                EventStatus event = gson.fromJson(eventData, EventStatus.class);
-                currentTime = event.time;
-                onStatus(event.statusInfo);
-                break;
-            }
-            case "Balance": {
-                EventBalance event = gson.fromJson(eventData, EventBalance.class);
-                currentTime = event.time;
-                onBalance(event.balanceInfo);
-                break;
-            }
-            case "LoginFailed": {
-                EventLoginFailed event = gson.fromJson(eventData, EventLoginFailed.class);
-                currentTime = event.time;
-                onLoginFailed(event.reason, event.message);
-                break;
-            }
-            case "LoginSuccessful": {
-                EventLoginSuccessful event = gson.fromJson(eventData, EventLoginSuccessful.class);
-                currentTime = event.time;
-                onLoginSuccessful();
-                break;
-            }
-            case "ConnectionLost": {
-                EventConnectionLost event = gson.fromJson(eventData, EventConnectionLost.class);
-                currentTime = event.time;
-                onConnectionLost(event.reason, event.message);
-                break;
-            }
-            case "ConnectionRestored": {
-                EventConnectionRestored event = gson.fromJson(eventData, EventConnectionRestored.class);
-                currentTime = event.time;
-                onConnectionRestored();
-                break;
-            }
-            case "SystemTextMessage": {
-                EventSystemTextMessage event = gson.fromJson(eventData, EventSystemTextMessage.class);
-                currentTime = event.time;
-                onSystemTextMessage(event.message, event.messageType);
-                break;
-            }
-            case "IndicatorDefinitionUserMessage": {
-                IndicatorDefinitionUserMessageEvent event = gson.fromJson(eventData,
-                        IndicatorDefinitionUserMessageEvent.class);
-                currentTime = event.time;
-                
-                BufferedImage icon = null;
-                if (event.base64EndodedIcon != null) {
-                    byte[] iconBytes = Base64.getDecoder().decode(event.base64EndodedIcon);
-                    icon = ImageIO.read(new ByteArrayInputStream(iconBytes));
-                }
-                
-                onUserMessage(new IndicatorDefinitionUserMessage(event.id, event.alias, event.indicatorName,
-                        event.mainLineStyleMask, event.mainLineStyleMultiplier, event.mainLineWidth, event.lineColor,
-                        event.rightLineStyleMask, event.rightLineStyleMultiplier, event.rightLineWidth,
-                        icon, event.iconOffsetX, event.iconOffsetY, event.showOnMainChart, event.valueFormat));
-                break;
-            }
-            case "IndicatorPointUserMessage": {
-                IndicatorPointUserMessageEvent event = gson.fromJson(eventData, IndicatorPointUserMessageEvent.class);
-                currentTime = event.time;
-                onUserMessage(new IndicatorPointUserMessage(event.id, event.price));
-                break;
-            }
-            case "OrderQueuePositionUserMessage": {
-                OrderQueuePositionUserMessageEvent event = gson.fromJson(eventData,
-                        OrderQueuePositionUserMessageEvent.class);
-                currentTime = event.time;
-                onUserMessage(new OrderQueuePositionUserMessage(event.orderId, event.position));
-                break;
-            }
-            case "TextDataMessage": {
-                TextDataMessageEvent event = gson.fromJson(eventData, TextDataMessageEvent.class);
-                currentTime = event.time;
-                onUserMessage(new TextDataMessage(event.alias, event.source, event.isBid, event.price, event.size, event.data));
-                break;
-            }
-            default:
+        if (!reader.readLine()) {
+            if (play) {
                 reportFileEnd();
-                throw new RuntimeException("Unknown event code " + eventCode);
             }
+            return;
+        }
+
+        readLine(reader.getBuffer(), reader.getLineStart(), reader.getLineEnd());
+    }
+
+    /** Decodes and dispatches a single line, accessible for benchmarks */
+    void readLine(byte[] buffer, int lineStart, int lineEnd) throws IOException {
+        if (decoder.decode(buffer, lineStart, lineEnd, eventSlot)) {
+            onDecodedEvent(eventSlot);
+        } else {
+            readLine(new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void onDecodedEvent(TextEventDecoder.EventSlot event) {
+        currentTime = event.time;
+        switch (event.type) {
+        case DEPTH:
+            onDepth(event.alias, event.isBid, event.price, event.size);
+            break;
+        case TRADE:
+            onTrade(event.alias, event.tradePrice, event.size, event.tradeInfo);
+            break;
+        case MBO_SEND:
+            onMboSend(event.alias, event.orderId, event.isBid, event.price, event.size);
+            break;
+        case MBO_REPLACE:
+            onMboReplace(event.alias, event.orderId, event.price, event.size);
+            break;
+        case MBO_CANCEL:
+            onMboCancel(event.alias, event.orderId);
+            break;
+        default:
+            throw new IllegalArgumentException("Unexpected event type " + event.type);
+        }
+    }
+
+    /**
+     * Generic (Gson-based) decoding, used for all events that
+     * {@link TextEventDecoder} does not handle
+     */
+    private void readLine(String line) throws IOException {
+        String[] tokens = line.split(" ", 2);
+        String eventCode = tokens[0];
+        String eventData = tokens[1];
+        switch (eventCode) {
+        case "InstrumentAdded": {
+            EventInstrumentAdded event = gson.fromJson(eventData, EventInstrumentAdded.class);
+            currentTime = event.time;
+            onInstrumentAdded(event.alias, event.instrumentInfo);
+            break;
+        }
+        case "InstrumentRemoved": {
+            EventInstrumentRemoved event = gson.fromJson(eventData, EventInstrumentRemoved.class);
+            currentTime = event.time;
+            onInstrumentRemoved(event.alias);
+            break;
+        }
+        case "InstrumentNotFound": {
+            EventInstrumentNotFound event = gson.fromJson(eventData, EventInstrumentNotFound.class);
+            currentTime = event.time;
+            onInstrumentNotFound(event.symbol, event.exchange, event.type);
+            break;
+        }
+        case "InstrumentAlreadySubscribed": {
+            EventInstrumentAlreadySubscribed event = gson.fromJson(eventData, EventInstrumentAlreadySubscribed.class);
+            currentTime = event.time;
+            onInstrumentAlreadySubscribed(event.symbol, event.exchange, event.type);
+            break;
+        }
+        case "Trade": {
+            EventTrade event = gson.fromJson(eventData, EventTrade.class);
+            currentTime = event.time;
+            onTrade(event.alias, event.price, event.size, event.tradeInfo);
+            break;
+        }
+        case "Depth": {
+            EventDepth event = gson.fromJson(eventData, EventDepth.class);
+            currentTime = event.time;
+            onDepth(event.alias, event.isBid, event.price, event.size);
+            break;
+        }
+        case "MboSend": {
+            EventMboSend event = gson.fromJson(eventData, EventMboSend.class);
+            currentTime = event.time;
+            onMboSend(event.alias, event.orderId, event.isBid, event.price, event.size);
+            break;
+        }
+        case "MboReplace": {
+            EventMboReplace event = gson.fromJson(eventData, EventMboReplace.class);
+            currentTime = event.time;
+            onMboReplace(event.alias, event.orderId, event.price, event.size);
+            break;
+        }
+        case "MboCancel": {
+            EventMboCancel event = gson.fromJson(eventData, EventMboCancel.class);
+            currentTime = event.time;
+            onMboCancel(event.alias, event.orderId);
+            break;
+        }
+        case "MarketMode": {
+            EventMarketMode event = gson.fromJson(eventData, EventMarketMode.class);
+            currentTime = event.time;
+            onMarketMode(event.alias, event.marketMode);
+            break;
+        }
+        case "OrderUpdated": {
+            EventOrderUpdated event = gson.fromJson(eventData, EventOrderUpdated.class);
+            currentTime = event.time;
+            onOrderUpdated(event.orderInfoUpdate);
+            break;
+        }
+        case "OrderExecuted": {
+            EventOrderExecuted event = gson.fromJson(eventData, EventOrderExecuted.class);
+            currentTime = event.time;
+            onOrderExecuted(event.executionInfo);
+            break;
+        }
+        case "Status": {
+            EventStatus event = gson.fromJson(eventData, EventStatus.class);
+            currentTime = event.time;
+            onStatus(event.statusInfo);
+            break;
+        }
+        case "Balance": {
+            EventBalance event = gson.fromJson(eventData, EventBalance.class);
+            currentTime = event.time;
+            onBalance(event.balanceInfo);
+            break;
+        }
+        case "LoginFailed": {
+            EventLoginFailed event = gson.fromJson(eventData, EventLoginFailed.class);
+            currentTime = event.time;
+            onLoginFailed(event.reason, event.message);
+            break;
+        }
+        case "LoginSuccessful": {
+            EventLoginSuccessful event = gson.fromJson(eventData, EventLoginSuccessful.class);
+            currentTime = event.time;
+            onLoginSuccessful();
+            break;
+        }
+        case "ConnectionLost": {
+            EventConnectionLost event = gson.fromJson(eventData, EventConnectionLost.class);
+            currentTime = event.time;
+            onConnectionLost(event.reason, event.message);
+            break;
+        }
+        case "ConnectionRestored": {
+            EventConnectionRestored event = gson.fromJson(eventData, EventConnectionRestored.class);
+            currentTime = event.time;
+            onConnectionRestored();
+            break;
+        }
+        case "SystemTextMessage": {
+            EventSystemTextMessage event = gson.fromJson(eventData, EventSystemTextMessage.class);
+            currentTime = event.time;
+            onSystemTextMessage(event.message, event.messageType);
+            break;
+        }
+        case "IndicatorDefinitionUserMessage": {
+            IndicatorDefinitionUserMessageEvent event = gson.fromJson(eventData,
+                    IndicatorDefinitionUserMessageEvent.class);
+            currentTime = event.time;
+            
+            BufferedImage icon = null;
+            if (event.base64EndodedIcon != null) {
+                byte[] iconBytes = Base64.getDecoder().decode(event.base64EndodedIcon);
+                icon = ImageIO.read(new ByteArrayInputStream(iconBytes));
+            }
+            
+            onUserMessage(new IndicatorDefinitionUserMessage(event.id, event.alias, event.indicatorName,
+                    event.mainLineStyleMask, event.mainLineStyleMultiplier, event.mainLineWidth, event.lineColor,
+                    event.rightLineStyleMask, event.rightLineStyleMultiplier, event.rightLineWidth,
+                    icon, event.iconOffsetX, event.iconOffsetY, event.showOnMainChart, event.valueFormat));
+            break;
+        }
+        case "IndicatorPointUserMessage": {
+            IndicatorPointUserMessageEvent event = gson.fromJson(eventData, IndicatorPointUserMessageEvent.class);
+            currentTime = event.time;
+            onUserMessage(new IndicatorPointUserMessage(event.id, event.price));
+            break;
+        }
+        case "OrderQueuePositionUserMessage": {
+            OrderQueuePositionUserMessageEvent event = gson.fromJson(eventData,
+                    OrderQueuePositionUserMessageEvent.class);
+            currentTime = event.time;
+            onUserMessage(new OrderQueuePositionUserMessage(event.orderId, event.position));
+            break;
+        }
+        case "TextDataMessage": {
+            TextDataMessageEvent event = gson.fromJson(eventData, TextDataMessageEvent.class);
+            currentTime = event.time;
+            onUserMessage(new TextDataMessage(event.alias, event.source, event.isBid, event.price, event.size, event.data));
+            break;
+        }
+        case "Response": {
+            EventResponse event = gson.fromJson(eventData, EventResponse.class);
+            currentTime = event.time;
+            onUserMessage(new ResponseUserMessage(event.requestId, event.result, event.error));
+            break;
+        }
+        default:
+            reportFileEnd();
+            throw new RuntimeException("Unknown event code " + eventCode);
         }
     }
 
@@ -397,9 +558,18 @@ public class TextStreamParser extends Layer1ApiUpstreamRelay {
     @Override
     public void close() {
         readerThread.interrupt();
-        try {
-            reader.close();
-        } catch (@SuppressWarnings("unused") IOException e) {
+        if (pipeline != null) {
+            pipeline.close();
+        } else if (binaryDecoder != null) {
+            try {
+                binaryDecoder.close();
+            } catch (@SuppressWarnings("unused") IOException e) {
+            }
+        } else {
+            try {
+                reader.close();
+            } catch (@SuppressWarnings("unused") IOException e) {
+            }
         }
     }
 }
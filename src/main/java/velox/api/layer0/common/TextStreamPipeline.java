@@ -0,0 +1,268 @@
+package velox.api.layer0.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Splits reading of a text stream into stages running in separate threads:
+ * <ol>
+ * <li>reading (and inflating, if stream is compressed) into large byte chunks
+ * cut at line boundaries,</li>
+ * <li>splitting chunks into lines and decoding those with
+ * {@link TextEventDecoder} into a preallocated ring of slots,</li>
+ * <li>taking slots from the ring in order - done by the caller of
+ * {@link #take()}, which is expected to dispatch events.</li>
+ * </ol>
+ * Stages are connected by bounded queues, so a slow consumer stops the
+ * producers instead of accumulating data in memory.
+ * </p>
+ * <p>
+ * Lines that can't be decoded by {@link TextEventDecoder} are passed as
+ * strings ({@link Slot#line}), so the consumer can decode those in a generic
+ * way, preserving the order of events.
+ * </p>
+ */
+class TextStreamPipeline {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int CHUNKS_COUNT = 4;
+    /** Must be a power of 2 */
+    private static final int RING_SIZE = 1 << 16;
+
+    /** How long to spin before parking when the ring is full/empty */
+    private static final int SPIN_ITERATIONS = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    static class Slot {
+        final TextEventDecoder.EventSlot event = new TextEventDecoder.EventSlot();
+        /** If not null - line was not decoded and {@link #event} is undefined */
+        String line;
+    }
+
+    private static class Chunk {
+        byte[] data;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /** Marks the end of the stream in {@link #filledChunks} */
+    private static final Chunk END_OF_STREAM = new Chunk(0);
+
+    private final InputStream inputStream;
+
+    private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(CHUNKS_COUNT);
+    private final BlockingQueue<Chunk> filledChunks = new ArrayBlockingQueue<>(CHUNKS_COUNT + 1);
+
+    private final Slot[] ring = new Slot[RING_SIZE];
+    /** Number of slots written by the parser thread */
+    private final AtomicLong published = new AtomicLong();
+    /** Number of slots released by the consumer */
+    private final AtomicLong consumed = new AtomicLong();
+    private volatile boolean parsingFinished = false;
+
+    /** Parser thread local copy of {@link #consumed} */
+    private long consumedCache = 0;
+    /** Consumer local copy of {@link #published} */
+    private long publishedCache = 0;
+    private long consumerSequence = 0;
+
+    private final TextEventDecoder decoder = new TextEventDecoder();
+
+    private volatile IOException error;
+
+    private final Thread readingThread;
+    private final Thread parsingThread;
+
+    TextStreamPipeline(InputStream inputStream) {
+        this.inputStream = inputStream;
+        for (int i = 0; i < CHUNKS_COUNT; ++i) {
+            freeChunks.add(new Chunk(CHUNK_SIZE));
+        }
+        for (int i = 0; i < RING_SIZE; ++i) {
+            ring[i] = new Slot();
+        }
+
+        readingThread = new Thread(this::readChunks);
+        parsingThread = new Thread(this::parseChunks);
+    }
+
+    void start() {
+        readingThread.start();
+        parsingThread.start();
+    }
+
+    /**
+     * Waits for the next event. Returned slot stays valid until
+     * {@link #release()} is called.
+     *
+     * @return next slot, or null if stream end was reached
+     * @throws IOException if reading failed, after all events read before the
+     *                     failure were taken
+     */
+    Slot take() throws IOException, InterruptedException {
+        int spins = 0;
+        while (consumerSequence >= publishedCache) {
+            publishedCache = published.get();
+            if (consumerSequence < publishedCache) {
+                break;
+            }
+            if (parsingFinished) {
+                // Parser might have published something right before finishing
+                publishedCache = published.get();
+                if (consumerSequence < publishedCache) {
+                    break;
+                }
+                if (error != null) {
+                    throw error;
+                }
+                return null;
+            }
+            spins = await(spins);
+        }
+        return ring[(int) consumerSequence & (RING_SIZE - 1)];
+    }
+
+    /** Marks slot returned by {@link #take()} as processed */
+    void release() {
+        consumed.lazySet(++consumerSequence);
+    }
+
+    void close() {
+        readingThread.interrupt();
+        parsingThread.interrupt();
+        try {
+            inputStream.close();
+        } catch (@SuppressWarnings("unused") IOException e) {
+        }
+    }
+
+    private static int await(int spins) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (spins < SPIN_ITERATIONS) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return spins + 1;
+    }
+
+    /** Stage 1: reading/inflating */
+    private void readChunks() {
+        try {
+            Chunk chunk = freeChunks.take();
+            int filled = 0;
+            while (true) {
+                int read = inputStream.read(chunk.data, filled, chunk.data.length - filled);
+                if (read < 0) {
+                    chunk.length = filled;
+                    filledChunks.put(chunk);
+                    break;
+                }
+                filled += read;
+                if (filled < chunk.data.length) {
+                    continue;
+                }
+
+                int lastLineEnd = lastIndexOf(chunk.data, filled, (byte) '\n');
+                if (lastLineEnd < 0) {
+                    // Line is longer than the chunk
+                    chunk.data = Arrays.copyOf(chunk.data, chunk.data.length * 2);
+                    continue;
+                }
+
+                // Incomplete last line is moved to the next chunk
+                Chunk next = freeChunks.take();
+                int tail = filled - (lastLineEnd + 1);
+                if (next.data.length <= tail) {
+                    next.data = new byte[Math.max(CHUNK_SIZE, tail * 2)];
+                }
+                System.arraycopy(chunk.data, lastLineEnd + 1, next.data, 0, tail);
+                chunk.length = lastLineEnd + 1;
+                filledChunks.put(chunk);
+
+                chunk = next;
+                filled = tail;
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (@SuppressWarnings("unused") InterruptedException e) {
+            // Closing
+            return;
+        }
+        filledChunks.add(END_OF_STREAM);
+    }
+
+    /** Stage 2: splitting into lines and decoding */
+    private void parseChunks() {
+        try {
+            while (true) {
+                Chunk chunk = filledChunks.take();
+                if (chunk == END_OF_STREAM) {
+                    break;
+                }
+
+                byte[] data = chunk.data;
+                int lineStart = 0;
+                while (lineStart < chunk.length) {
+                    int lineEnd = lineStart;
+                    while (lineEnd < chunk.length && data[lineEnd] != '\n') {
+                        ++lineEnd;
+                    }
+                    int nextLineStart = lineEnd + 1;
+                    if (lineEnd > lineStart && data[lineEnd - 1] == '\r') {
+                        --lineEnd;
+                    }
+                    publish(data, lineStart, lineEnd);
+                    lineStart = nextLineStart;
+                }
+
+                freeChunks.put(chunk);
+            }
+        } catch (@SuppressWarnings("unused") InterruptedException e) {
+            // Closing
+        } finally {
+            parsingFinished = true;
+        }
+    }
+
+    private void publish(byte[] data, int lineStart, int lineEnd) throws InterruptedException {
+        long sequence = published.get();
+        int spins = 0;
+        while (sequence - consumedCache >= RING_SIZE) {
+            consumedCache = consumed.get();
+            if (sequence - consumedCache < RING_SIZE) {
+                break;
+            }
+            spins = await(spins);
+        }
+
+        Slot slot = ring[(int) sequence & (RING_SIZE - 1)];
+        if (decoder.decode(data, lineStart, lineEnd, slot.event)) {
+            slot.line = null;
+        } else {
+            slot.line = new String(data, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+        }
+        published.lazySet(sequence + 1);
+    }
+
+    private static int lastIndexOf(byte[] data, int length, byte value) {
+        for (int i = length - 1; i >= 0; --i) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,11 +1,19 @@
 package velox.api.layer0.live;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
 import velox.api.layer0.annotations.Layer0LiveModule;
+import velox.api.layer0.common.DataEventBatch;
+import velox.api.layer0.common.PriceFormatCache;
 import velox.api.layer1.Layer1ApiAdminListener;
 import velox.api.layer1.annotations.Layer1ApiVersion;
 import velox.api.layer1.annotations.Layer1ApiVersionValue;
+import velox.api.layer1.common.Log;
 import velox.api.layer1.data.InstrumentInfo;
 import velox.api.layer1.data.LoginData;
 import velox.api.layer1.data.LoginFailedReason;
@@ -19,6 +27,13 @@ import velox.api.layer1.data.UserPasswordDemoLoginData;
  * <p>
  * This a demo provider that generates data instead of actually receiving it.
  * </p>
+ * <p>
+ * Instruments are spread across a fixed number of simulation shards, each
+ * running in its own thread and owning its instruments exclusively, so
+ * generating data does not require a shared lock and does not block
+ * {@link #subscribe(SubscribeInfo)}, {@link #unsubscribe(String)} or
+ * {@link #formatPrice(String, double)}.
+ * </p>
  */
 @Layer1ApiVersion(Layer1ApiVersionValue.VERSION2)
 @Layer0LiveModule(fullName = "Demo external realtime", shortName = "DE")
@@ -27,15 +42,46 @@ public class DemoExternalRealtimeProvider extends ExternalLiveBaseProvider {
     protected class Instrument {
         /** Number of depth levels that will be generated on each side */
         private static final int DEPTH_LEVELS_COUNT = 10;
+        /**
+         * Average number of events produced by {@link #generateData()}:
+         * levels, 2 trades and 2 more updates on 10% of steps
+         */
+        private static final double EVENTS_PER_STEP = 2 * DEPTH_LEVELS_COUNT + 2 + 0.1 * 2;
 
         protected final String alias;
         protected final double pips;
-
-        private int basePrice;
+        /**
+         * New instrument is created on each subscription, so cache does not
+         * outlive pips it was created for
+         */
+        private final PriceFormatCache priceFormatCache;
+
+        /** Only changed by the owning shard, but read by other threads */
+        private volatile int basePrice;
+        /**
+         * Set (under instrument lock) when instrument is unsubscribed, so the
+         * owning shard does not generate data for it anymore
+         */
+        private volatile boolean isRemoved = false;
+
+        /**
+         * All updates of a simulation step happen at once, so those are
+         * delivered as a single batch
+         */
+        private final DataEventBatch batch = new DataEventBatch();
+
+        /**
+         * Queue tracking state of simulated orders (see
+         * {@link #createInstrumentQueues(double)}), its book is owned by the
+         * shard like the rest of the instrument. Null if not needed.
+         */
+        final QueueFillEngine.InstrumentQueues queues;
 
         public Instrument(String alias, double pips) {
             this.alias = alias;
             this.pips = pips;
+            this.priceFormatCache = new PriceFormatCache(pips);
+            this.queues = createInstrumentQueues(pips);
 
             // Pick random price that will be used to generate the data
             // This is an integer representation of a price (before multiplying
@@ -52,28 +98,28 @@ public class DemoExternalRealtimeProvider extends ExternalLiveBaseProvider {
             // Populating 10 levels to each side of best bid/best ask with
             // random data
             for (int i = 0; i < DEPTH_LEVELS_COUNT; ++i) {
-                final int levelsOffset = i;
-                dataListeners.forEach(l -> l.onDepth(alias, true, bestBid - levelsOffset, getRandomSize()));
-                dataListeners.forEach(l -> l.onDepth(alias, false, bestAsk + levelsOffset, getRandomSize()));
+                batch.addDepth(alias, true, bestBid - i, getRandomSize());
+                batch.addDepth(alias, false, bestAsk + i, getRandomSize());
             }
 
             // Currently Bookmap does not visualize OTC trades, so you will
             // mostly want isOtc=false
             final boolean isOtc = false;
             // Trade on best bid, ask agressor
-            dataListeners.forEach(l -> l.onTrade(alias, bestBid, 1, new TradeInfo(isOtc, false)));
+            batch.addTrade(alias, bestBid, 1, new TradeInfo(isOtc, false));
             // Trade on best ask, bid agressor
-            dataListeners.forEach(l -> l.onTrade(alias, bestAsk, 1, new TradeInfo(isOtc, true)));
+            batch.addTrade(alias, bestAsk, 1, new TradeInfo(isOtc, true));
 
             // With 10% chance change BBO
-            if (Math.random() < 0.1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < 0.1) {
                 // 50% chance to move up, 50% to move down
-                if (Math.random() > 0.5) {
+                if (random.nextDouble() > 0.5) {
                     // Moving up - erasing best ask, erasing last reported bid
                     // level (emulating exchange only reporting few levels)
                     ++basePrice;
-                    dataListeners.forEach(l -> l.onDepth(alias, false, bestAsk, 0));
-                    dataListeners.forEach(l -> l.onDepth(alias, true, bestBid - (DEPTH_LEVELS_COUNT - 1), 0));
+                    batch.addDepth(alias, false, bestAsk, 0);
+                    batch.addDepth(alias, true, bestBid - (DEPTH_LEVELS_COUNT - 1), 0);
                     // Could also populate new best bid and add last best ask,
                     // but this can be omitted - those will be populated during
                     // next simulation step
@@ -81,13 +127,24 @@ public class DemoExternalRealtimeProvider extends ExternalLiveBaseProvider {
                     // Moving down - erasing best bid, erasing last reported ask
                     // level (emulating exchange only reporting few levels)
                     --basePrice;
-                    dataListeners.forEach(l -> l.onDepth(alias, true, bestBid, 0));
-                    dataListeners.forEach(l -> l.onDepth(alias, false, bestAsk + (DEPTH_LEVELS_COUNT - 1), 0));
+                    batch.addDepth(alias, true, bestBid, 0);
+                    batch.addDepth(alias, false, bestAsk + (DEPTH_LEVELS_COUNT - 1), 0);
                     // Could also populate new best ask and add last best bid,
                     // but this can be omitted - those will be populated during
                     // next simulation step
                 }
             }
+
+            batch.dispatchToAll(dataListeners);
+            onDataGenerated(this, batch);
+            batch.clear();
+        }
+
+        /** Called by the owning shard on each simulation step */
+        private synchronized void simulateStep() {
+            if (!isRemoved) {
+                generateData();
+            }
         }
 
         public int getBestAsk() {
@@ -99,16 +156,95 @@ public class DemoExternalRealtimeProvider extends ExternalLiveBaseProvider {
         }
 
         private int getRandomSize() {
-            return (int) (1 + Math.random() * 10);
+            // Math.random() shares a single generator between threads, which
+            // becomes noticeable at high simulation rates
+            return (int) (1 + ThreadLocalRandom.current().nextDouble() * 10);
         }
 
     }
 
-    protected HashMap<String, Instrument> instruments = new HashMap<>();
+    /**
+     * <p>
+     * Instances of this class generate data for the instruments they own, each
+     * in its own thread. Instruments are handed over through a lock-free queue:
+     * an instrument is added to it once when subscribed and once more when
+     * unsubscribed.
+     * </p>
+     */
+    private class SimulationShard implements Runnable {
+        private final Queue<Instrument> handoffQueue = new ConcurrentLinkedQueue<>();
+        /** Only accessed from shard thread */
+        private final List<Instrument> ownedInstruments = new ArrayList<>();
+
+        @Override
+        public void run() {
+            SimulationPacer pacer = SimulationPacer.fromSystemProperties(Instrument.EVENTS_PER_STEP, 1);
+            while (!Thread.interrupted()) {
+                Instrument instrument;
+                while ((instrument = handoffQueue.poll()) != null) {
+                    // Instrument could be removed before shard took it, then
+                    // it's not going to be added at all
+                    if (instrument.isRemoved) {
+                        ownedInstruments.remove(instrument);
+                    } else {
+                        ownedInstruments.add(instrument);
+                    }
+                }
+
+                for (Instrument ownedInstrument : ownedInstruments) {
+                    ownedInstrument.simulateStep();
+                }
 
-    // This thread will perform data generation.
+                try {
+                    pacer.awaitNextStep();
+                } catch (@SuppressWarnings("unused") InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of simulation threads. Defaults to the number of cores, but not
+     * more than {@link #DEFAULT_MAX_SIMULATION_THREADS}
+     */
+    public static final String SIMULATION_THREADS_PROPERTY = "velox.api.layer0.demo.simulationThreads";
+    private static final int DEFAULT_MAX_SIMULATION_THREADS = 4;
+
+    /**
+     * Subscribed instruments. Instrument state is owned by its simulation
+     * shard, so other threads should only read it.
+     */
+    protected final ConcurrentHashMap<String, Instrument> instruments = new ConcurrentHashMap<>();
+
+    private final SimulationShard[] shards = createShards();
+
+    // This thread will start simulation shards and perform additional
+    // simulation in subclasses.
     private Thread connectionThread = null;
 
+    private SimulationShard[] createShards() {
+        int shardsCount = Math.min(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_SIMULATION_THREADS);
+        String simulationThreads = System.getProperty(SIMULATION_THREADS_PROPERTY);
+        if (simulationThreads != null) {
+            try {
+                shardsCount = Integer.parseInt(simulationThreads);
+            } catch (NumberFormatException e) {
+                Log.warn("Invalid " + SIMULATION_THREADS_PROPERTY + ": " + simulationThreads, e);
+            }
+        }
+
+        SimulationShard[] shards = new SimulationShard[Math.max(shardsCount, 1)];
+        for (int i = 0; i < shards.length; ++i) {
+            shards[i] = new SimulationShard();
+        }
+        return shards;
+    }
+
+    private SimulationShard getShard(String alias) {
+        return shards[Math.floorMod(alias.hashCode(), shards.length)];
+    }
+
     /**
      * <p>
      * Generates alias from symbol, exchange and type of the instrument. Alias
@@ -131,40 +267,51 @@ public class DemoExternalRealtimeProvider extends ExternalLiveBaseProvider {
         String type = subscribeInfo.type;
 
         String alias = createAlias(symbol, exchange, type);
-        // Since instruments also will be accessed from the data generation
-        // thread, synchronization is required
-        //
-        // No need to worry about calling listener from synchronized block,
-        // since those will be processed asynchronously
-        synchronized (instruments) {
-            if (instruments.containsKey(alias)) {
-                instrumentListeners.forEach(l -> l.onInstrumentAlreadySubscribed(symbol, exchange, type));
-            } else {
-                // We are performing subscription synchronously for simplicity,
-                // but if subscription process takes long it's better to do it
-                // asynchronously (e.g use Executor)
-
-                // Randomly determining pips. In reality it will be received
-                // from external source
-                double pips = Math.random() > 0.5 ? 0.5 : 0.25;
-
-                final Instrument newInstrument = new Instrument(alias, pips);
-                instruments.put(alias, newInstrument);
-
-                final InstrumentInfo instrumentInfo = new InstrumentInfo(
-                        symbol, exchange, type, newInstrument.pips, 1, "", false);
-
-                instrumentListeners.forEach(l -> l.onInstrumentAdded(alias, instrumentInfo));
-            }
+
+        // We are performing subscription synchronously for simplicity, but if
+        // subscription process takes long it's better to do it asynchronously
+        // (e.g use Executor)
+
+        // Randomly determining pips. In reality it will be received from
+        // external source
+        double pips = Math.random() > 0.5 ? 0.5 : 0.25;
+
+        final Instrument newInstrument = new Instrument(alias, pips);
+        if (instruments.putIfAbsent(alias, newInstrument) != null) {
+            instrumentListeners.forEach(l -> l.onInstrumentAlreadySubscribed(symbol, exchange, type));
+        } else {
+            final InstrumentInfo instrumentInfo = new InstrumentInfo(
+                    symbol, exchange, type, newInstrument.pips, 1, "", false);
+
+            instrumentListeners.forEach(l -> l.onInstrumentAdded(alias, instrumentInfo));
+
+            // Data is only generated after instrument is reported
+            startSimulation(newInstrument);
         }
     }
 
+    /**
+     * Hands instrument over to its simulation shard, which will start
+     * generating data for it. Instrument should already be in
+     * {@link #instruments}.
+     */
+    protected void startSimulation(Instrument instrument) {
+        getShard(instrument.alias).handoffQueue.add(instrument);
+    }
+
     @Override
     public void unsubscribe(String alias) {
-        synchronized (instruments) {
-            if (instruments.remove(alias) != null) {
-                instrumentListeners.forEach(l -> l.onInstrumentRemoved(alias));
+        Instrument instrument = instruments.remove(alias);
+        if (instrument != null) {
+            // Waits for the simulation step that might be in progress, so no
+            // data is reported after instrument removal
+            synchronized (instrument) {
+                instrument.isRemoved = true;
             }
+            instrumentListeners.forEach(l -> l.onInstrumentRemoved(alias));
+
+            // Letting the shard release the instrument
+            getShard(alias).handoffQueue.add(instrument);
         }
     }
 
@@ -172,14 +319,8 @@ public class DemoExternalRealtimeProvider extends ExternalLiveBaseProvider {
     public String formatPrice(String alias, double price) {
         // Use default Bookmap price formatting logic for simplicity.
         // Values returned by this method will be used on price axis and in few
-        // other places.
-
-        double pips;
-        synchronized (instruments) {
-            pips = instruments.get(alias).pips;
-        }
-
-        return formatPriceDefault(pips, price);
+        // other places, so formatted values are cached.
+        return instruments.get(alias).priceFormatCache.formatPrice(price);
     }
 
     @Override
@@ -216,15 +357,37 @@ public class DemoExternalRealtimeProvider extends ExternalLiveBaseProvider {
             // Report succesful login
             adminListeners.forEach(Layer1ApiAdminListener::onLoginSuccessful);
 
-            // Generate some events each second
+            // Generate some events each second by default. Rate can be
+            // increased to use this provider as a load generator, see
+            // SimulationPacer
+            Thread[] shardThreads = new Thread[shards.length];
+            for (int i = 0; i < shards.length; ++i) {
+                shardThreads[i] = new Thread(shards[i], "Demo simulation " + i);
+                shardThreads[i].start();
+            }
+
+            SimulationPacer pacer = SimulationPacer.fromSystemProperties(Instrument.EVENTS_PER_STEP, 1);
             while (!Thread.interrupted()) {
-                
-                // Generate some data changes
+
+                // Additional simulation, instruments data is generated by
+                // shards
                 simulate();
 
-                // Waiting a bit before generating more data
+                // Waiting until the next step is due
                 try {
-                    Thread.sleep(1000);
+                    pacer.awaitNextStep();
+                } catch (@SuppressWarnings("unused") InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            // Stop events generation
+            for (Thread shardThread : shardThreads) {
+                shardThread.interrupt();
+            }
+            for (Thread shardThread : shardThreads) {
+                try {
+                    shardThread.join();
                 } catch (@SuppressWarnings("unused") InterruptedException e) {
                     Thread.currentThread().interrupt();
                 }
@@ -239,11 +402,28 @@ public class DemoExternalRealtimeProvider extends ExternalLiveBaseProvider {
         }
     }
 
+    /**
+     * Called for each new instrument, providers simulating trading return
+     * state for {@link QueueFillEngine}
+     */
+    QueueFillEngine.InstrumentQueues createInstrumentQueues(double pips) {
+        return null;
+    }
+
+    /**
+     * Called by the simulation shard that owns the instrument after updates of
+     * a simulation step were delivered to data listeners. Batch is cleared
+     * after this method returns.
+     */
+    protected void onDataGenerated(Instrument instrument, DataEventBatch batch) {
+    }
+
+    /**
+     * Called from the connection thread on each simulation step. Instruments
+     * data is generated by simulation shards concurrently with this method, so
+     * instruments state should only be read here.
+     */
     protected void simulate() {
-        // Generating some data for each of the instruments
-        synchronized (instruments) {
-            instruments.values().forEach(Instrument::generateData);
-        }
     }
 
     @Override
@@ -1,13 +1,18 @@
 package velox.api.layer0.live;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import velox.api.layer0.annotations.Layer0LiveModule;
+import velox.api.layer0.common.DataEventBatch;
+import velox.api.layer0.data.OrderQueuePositionUserMessage;
 import velox.api.layer1.annotations.Layer1ApiVersion;
 import velox.api.layer1.annotations.Layer1ApiVersionValue;
+import velox.api.layer1.common.Log;
 import velox.api.layer1.data.ExecutionInfo;
 import velox.api.layer1.data.Layer1ApiProviderSupportedFeatures;
 import velox.api.layer1.data.OrderCancelParameters;
@@ -20,6 +25,7 @@ import velox.api.layer1.data.OrderStatus;
 import velox.api.layer1.data.OrderType;
 import velox.api.layer1.data.OrderUpdateParameters;
 import velox.api.layer1.data.SimpleOrderSendParameters;
+import velox.api.layer1.data.StatusInfo;
 import velox.api.layer1.data.StatusInfoBuilder;
 import velox.api.layer1.data.SystemTextMessageType;
 
@@ -30,6 +36,12 @@ import velox.api.layer1.data.SystemTextMessageType;
  * </p>
  *
  * <p>
+ * Limit orders are filled partially, according to their position in the
+ * price level queue (see {@link QueueFillEngine}), or fully once the BBO moves
+ * through their price.
+ * </p>
+ *
+ * <p>
  * It does not aim to be realistic, so it's somewhat simplified.
  * </p>
  */
@@ -37,11 +49,56 @@ import velox.api.layer1.data.SystemTextMessageType;
 @Layer0LiveModule(fullName = "Demo external trading", shortName = "DT")
 public class DemoExternalRealtimeTradingProvider extends DemoExternalRealtimeProvider {
 
+    /**
+     * Maximum number of status updates per second for each alias. Changes
+     * happening faster are coalesced.
+     */
+    public static final String MAX_STATUS_RATE_PROPERTY = "velox.api.layer0.demo.maxStatusUpdatesPerSecond";
+    private static final double DEFAULT_MAX_STATUS_RATE = 10;
+
+    /** Last status reported for an alias */
+    private static class PublishedStatus {
+        /** Instrument is recreated on resubscribe, and status is published anew */
+        final Instrument instrument;
+        boolean isPublished = false;
+        long publishTimeNanos;
+        int volume;
+        double exitPrice;
+
+        PublishedStatus(Instrument instrument) {
+            this.instrument = instrument;
+        }
+    }
+
     AtomicInteger orderIdGenerator = new AtomicInteger();
     AtomicInteger executionIdGenerator = new AtomicInteger();
 
-    private final Map<String, OrderInfoBuilder> workingOrders = new HashMap<>();
+    private final WorkingOrderBook workingOrders = new WorkingOrderBook();
+    /**
+     * Orders are guarded by {@link #workingOrders}, books are maintained by
+     * simulation shards without taking it
+     */
+    private final QueueFillEngine queueFillEngine = new QueueFillEngine(workingOrders, new QueueFillEngine.Listener() {
+        @Override
+        public void onOrderFilled(OrderInfoBuilder order, int size, double price) {
+            if (size == order.getUnfilled()) {
+                workingOrders.remove(order.getOrderId());
+            }
+            reportExecution(order, size, price);
+        }
+
+        @Override
+        public void onQueuePositionChanged(OrderInfoBuilder order, int position) {
+            OrderQueuePositionUserMessage message = new OrderQueuePositionUserMessage(order.getOrderId(), position);
+            adminListeners.forEach(l -> l.onUserMessage(message));
+        }
+    });
     private final Map<String, TradeAudit> tradeAuditMap = new HashMap<>();
+    /** Guarded by {@link #tradeAuditMap} */
+    private final TradeAuditTotals tradeAuditTotals = new TradeAuditTotals();
+    /** Updated from the connection thread, entries removed on unsubscribe */
+    private final Map<String, PublishedStatus> publishedStatuses = new ConcurrentHashMap<>();
+    private final long minStatusIntervalNanos = getMinStatusIntervalNanos();
 
     @Override
     public void sendOrder(OrderSendParameters orderSendParameters) {
@@ -95,17 +152,19 @@ public class DemoExternalRealtimeTradingProvider extends DemoExternalRealtimePro
             adminListeners.forEach(l -> l.onSystemTextMessage("This provider only supports market and limit orders",
                     SystemTextMessageType.ORDER_FAILURE));
         } else {
-            // Placing it into list of working orders so it will be simulated.
-            // Synchronizing since trading simulation will be done in different
-            // thread
-            synchronized (workingOrders) {
-                workingOrders.put(builder.getOrderId(), builder);
-            }
-            
             // We are going to simulate this order, entering WORKING state
             builder.setStatus(OrderStatus.WORKING);
             tradingListeners.forEach(l -> l.onOrderUpdated(builder.build()));
             builder.markAllUnchanged();
+
+            // Placing it into list of working orders so it will be simulated.
+            // Synchronizing since trading simulation will be done in different
+            // threads. Doing it after reporting WORKING state, so executions
+            // are never reported before it.
+            synchronized (workingOrders) {
+                workingOrders.add(builder);
+                addToQueue(builder);
+            }
         }
 
     }
@@ -125,6 +184,7 @@ public class DemoExternalRealtimeTradingProvider extends DemoExternalRealtimePro
                 // Cancel order with provided ID
                 OrderCancelParameters orderCancelParameters = (OrderCancelParameters) orderUpdateParameters;
                 OrderInfoBuilder order = workingOrders.remove(orderCancelParameters.orderId);
+                queueFillEngine.removeOrder(order);
                 order.setStatus(OrderStatus.CANCELLED);
                 tradingListeners.forEach(l -> l.onOrderUpdated(order.build()));
 
@@ -143,11 +203,14 @@ public class DemoExternalRealtimeTradingProvider extends DemoExternalRealtimePro
                 OrderInfoBuilder order = workingOrders.get(orderMoveParameters.orderId);
                 // No need to update stop price as this demo only supports limit
                 // and market orders
-                order.setLimitPrice(orderMoveParameters.limitPrice);
+                // Order loses its queue position when moved
+                queueFillEngine.removeOrder(order);
+                workingOrders.setLimitPrice(order, orderMoveParameters.limitPrice);
                 tradingListeners.forEach(l -> l.onOrderUpdated(order.build()));
+                addToQueue(order);
                 
                 // New price might trigger execution
-                simulateOrders();
+                simulateOrders(order.getInstrumentAlias());
 
             } else {
                 throw new UnsupportedOperationException("Unsupported order type");
@@ -183,96 +246,221 @@ public class DemoExternalRealtimeTradingProvider extends DemoExternalRealtimePro
     public void simulateOrders() {
         // Simulate order executions
         synchronized (workingOrders) {
-            synchronized (instruments) {
-                // Purging orders that are no longer working - those do not have
-                // to be simulated
-                workingOrders.values().removeIf(o -> o.getStatus() != OrderStatus.WORKING);
-
-                for (OrderInfoBuilder order : workingOrders.values()) {
-                    String alias = order.getInstrumentAlias();
-                    Instrument instrument = instruments.get(alias);
-
-                    // Only simulating if user is subscribed to instrument -
-                    // this is because we do not generate data when there is no
-                    // subscription
-                    if (instrument != null) {
-                        // Determining on which price level order can be
-                        // executed. Note the multiplication by pips part -
-                        // that's because order price is a raw value and
-                        // instrument bid/ask are level numbers.
-
-                        double bestPrice = order.isBuy()
-                                ? instrument.getBestAsk() * instrument.pips
-                                : instrument.getBestBid() * instrument.pips;
-
-                        boolean shouldBeExecuted = order.getType() == OrderType.MKT || 
-                                (order.isBuy()
-                                ? bestPrice <= order.getLimitPrice()
-                                : bestPrice >= order.getLimitPrice());
-
-                        if (shouldBeExecuted) {
-                            // For simplicity fully executing order with the
-                            // best price
-
-                            // Reporting executions.
-                            int unfilled = order.getUnfilled();
-                            // Generating id for execution - usually will be
-                            // received from exchange
-                            final String executionId = "e" + executionIdGenerator.incrementAndGet();
-                            final long executionTime = System.currentTimeMillis();
-                            // Note that last parameter is execution time. While
-                            // time of event itself can be derived from the time
-                            // when it was sent for realtime executions, you are
-                            // allowed to send historical executions for those
-                            // to be displayed in account info panel.
-                            ExecutionInfo executionInfo = new ExecutionInfo(order.getOrderId(), unfilled, bestPrice,
-                                    executionId, executionTime);
-                            tradingListeners.forEach(l -> l.onOrderExecuted(executionInfo));
-
-                            // Changing the order itself
-                            order.setAverageFillPrice(bestPrice);
-                            order.setUnfilled(0);
-                            order.setFilled(unfilled);
-                            order.setStatus(OrderStatus.FILLED);
-                            tradingListeners.forEach(l -> l.onOrderUpdated(order.build()));
-                            order.markAllUnchanged();
-    
-                            synchronized (tradeAuditMap) {
-                                TradeAudit tradeAudit = tradeAuditMap.computeIfAbsent(alias, k -> new TradeAudit());
-                                tradeAudit.recalculateInfo(order.isBuy(), executionInfo);
-                            }
-                        }
-                    }
+            // Copying since executed orders are removed along with aliases that
+            // have no more working orders
+            for (String alias : new ArrayList<>(workingOrders.getAliases())) {
+                simulateOrders(alias);
+            }
+        }
+    }
+
+    private void simulateOrders(String alias) {
+        Instrument instrument = instruments.get(alias);
+
+        // Only simulating if user is subscribed to instrument - this is because
+        // we do not generate data when there is no subscription
+        if (instrument != null) {
+            // Determining on which price level order can be executed. Note the
+            // multiplication by pips part - that's because order price is a
+            // raw value and instrument bid/ask are level numbers.
+            double bestBidPrice = instrument.getBestBid() * instrument.pips;
+            double bestAskPrice = instrument.getBestAsk() * instrument.pips;
+
+            // Only orders that can be executed are returned, those are no
+            // longer working after this
+            for (OrderInfoBuilder order : workingOrders.removeExecutable(alias, bestBidPrice, bestAskPrice)) {
+                queueFillEngine.removeOrder(order);
+
+                // For simplicity fully executing order with the best price
+                reportExecution(order, order.getUnfilled(), order.isBuy() ? bestAskPrice : bestBidPrice);
+            }
+        }
+    }
+
+    private void addToQueue(OrderInfoBuilder order) {
+        Instrument instrument = instruments.get(order.getInstrumentAlias());
+        // Without data there is no queue to track, such order can still be
+        // executed once BBO moves through its price
+        if (instrument != null) {
+            queueFillEngine.addOrder(order, instrument.queues);
+        }
+    }
+
+    /**
+     * Reports (possibly partial) execution and updates the order
+     */
+    private void reportExecution(OrderInfoBuilder order, int size, double price) {
+        // Generating id for execution - usually will be received from exchange
+        final String executionId = "e" + executionIdGenerator.incrementAndGet();
+        final long executionTime = System.currentTimeMillis();
+        // Note that last parameter is execution time. While time of event
+        // itself can be derived from the time when it was sent for realtime
+        // executions, you are allowed to send historical executions for those
+        // to be displayed in account info panel.
+        ExecutionInfo executionInfo = new ExecutionInfo(order.getOrderId(), size, price,
+                executionId, executionTime);
+        tradingListeners.forEach(l -> l.onOrderExecuted(executionInfo));
+
+        // Changing the order itself
+        int filled = order.getFilled();
+        double averageFillPrice = filled == 0
+                ? price
+                : (order.getAverageFillPrice() * filled + price * size) / (filled + size);
+        order.setAverageFillPrice(averageFillPrice);
+        order.setUnfilled(order.getUnfilled() - size);
+        order.setFilled(filled + size);
+        if (order.getUnfilled() == 0) {
+            order.setStatus(OrderStatus.FILLED);
+        }
+        tradingListeners.forEach(l -> l.onOrderUpdated(order.build()));
+        order.markAllUnchanged();
+
+        synchronized (tradeAuditMap) {
+            TradeAudit tradeAudit = getTradeAudit(order.getInstrumentAlias());
+            try {
+                tradeAudit.recalculateInfo(order.isBuy(), executionInfo);
+            } catch (ArithmeticException e) {
+                // Can be called from a simulation shard, which must keep
+                // generating data. Audit is left unchanged
+                Log.error("Execution " + executionId + " could not be added to the trade audit", e);
+            }
+        }
+    }
+
+    @Override
+    QueueFillEngine.InstrumentQueues createInstrumentQueues(double pips) {
+        return new QueueFillEngine.InstrumentQueues(pips);
+    }
+
+    @Override
+    protected void onDataGenerated(Instrument instrument, DataEventBatch batch) {
+        // Tracking queue positions and partial fills in the thread that
+        // generated the data, right after it was reported. Engine only takes
+        // the orders lock if the instrument has queued orders
+        queueFillEngine.onData(instrument.queues, batch);
+    }
+
+    @Override
+    public void unsubscribe(String alias) {
+        Instrument instrument = instruments.get(alias);
+        super.unsubscribe(alias);
+        // So that status is published again after resubscribing
+        publishedStatuses.remove(alias);
+
+        // Queue positions can not be tracked without data. Orders are kept
+        // working though
+        if (instrument != null) {
+            synchronized (workingOrders) {
+                queueFillEngine.removeInstrument(instrument.queues);
+            }
+        }
+    }
+
+    /** Should be called while holding {@link #tradeAuditMap} lock */
+    private TradeAudit getTradeAudit(String alias) {
+        return tradeAuditMap.computeIfAbsent(alias, k -> new TradeAudit(tradeAuditTotals));
+    }
+
+    /** Total realized P&L across all aliases */
+    public double getTotalRealizedPnl() {
+        synchronized (tradeAuditMap) {
+            return tradeAuditTotals.getRealizedPnl();
+        }
+    }
+
+    /**
+     * Total unrealized P&L across all aliases, as of the last status update of
+     * each alias
+     */
+    public double getTotalUnrealizedPnl() {
+        synchronized (tradeAuditMap) {
+            return tradeAuditTotals.getUnrealizedPnl();
+        }
+    }
+
+    /** Total traded volume across all aliases */
+    public long getTotalVolume() {
+        synchronized (tradeAuditMap) {
+            return tradeAuditTotals.getVolume();
+        }
+    }
+
+    private static long getMinStatusIntervalNanos() {
+        double maxStatusRate = DEFAULT_MAX_STATUS_RATE;
+        String maxStatusRateString = System.getProperty(MAX_STATUS_RATE_PROPERTY);
+        if (maxStatusRateString != null) {
+            try {
+                double parsedMaxStatusRate = Double.parseDouble(maxStatusRateString);
+                // Interval is 1 / rate, so it has to be positive and finite
+                if (parsedMaxStatusRate > 0 && !Double.isInfinite(parsedMaxStatusRate)) {
+                    maxStatusRate = parsedMaxStatusRate;
+                } else {
+                    Log.warn("Invalid " + MAX_STATUS_RATE_PROPERTY + ": " + maxStatusRateString);
                 }
+            } catch (NumberFormatException e) {
+                Log.warn("Invalid " + MAX_STATUS_RATE_PROPERTY + ": " + maxStatusRateString, e);
             }
         }
+        return (long) (1_000_000_000L / maxStatusRate);
     }
 
+    /**
+     * Reports status for aliases where position, realized PnL or (if there is
+     * a position) exit price changed since the last report, unless it was
+     * reported too recently
+     */
     private void updateTradeAuditInfo() {
-        synchronized (instruments) {
+        long now = System.nanoTime();
+        for (Instrument instrument : instruments.values()) {
+            String alias = instrument.alias;
+            PublishedStatus publishedStatus = publishedStatuses.get(alias);
+            // Status of a previous subscription might be put back by an
+            // update racing with unsubscribe
+            if (publishedStatus == null || publishedStatus.instrument != instrument) {
+                publishedStatus = new PublishedStatus(instrument);
+                publishedStatuses.put(alias, publishedStatus);
+            }
+            if (publishedStatus.isPublished && now - publishedStatus.publishTimeNanos < minStatusIntervalNanos) {
+                // Throttled, changes will be picked up by one of the next steps
+                continue;
+            }
+
+            int bestBid = instrument.getBestBid();
+            int bestAsk = instrument.getBestAsk();
+
+            StatusInfo statusInfo;
             synchronized (tradeAuditMap) {
-                for (String alias : instruments.keySet()) {
-                    Instrument instrument = instruments.get(alias);
-                    TradeAudit tradeAudit = tradeAuditMap.computeIfAbsent(alias, (k) -> new TradeAudit());
-
-                    double bestPrice = tradeAudit.position > 0 
-                            ? instrument.getBestBid() 
-                            : instrument.getBestAsk();
-    
-                    double theoreticalExitPrice = bestPrice * instrument.pips;
-                    double unrealizedPnl = tradeAudit.getUnrealizedPnl(theoreticalExitPrice);
-
-                    StatusInfoBuilder statusInfoBuilder = new StatusInfoBuilder()
-                            .setInstrumentAlias(alias)
-                            .setAveragePrice(tradeAudit.averagePrice)
-                            .setPosition(tradeAudit.position)
-                            .setRealizedPnl(tradeAudit.realizedPnl)
-                            .setUnrealizedPnl(unrealizedPnl)
-                            .setVolume(tradeAudit.volume);
-
-                    tradingListeners.forEach(t -> t.onStatus(statusInfoBuilder.build()));
+                TradeAudit tradeAudit = getTradeAudit(alias);
+
+                double theoreticalExitPrice = (tradeAudit.position > 0 ? bestBid : bestAsk) * instrument.pips;
+                tradeAudit.setExitPrice(theoreticalExitPrice);
+
+                // Position and realized P&L only change on executions, which
+                // always change volume. Exit price only matters while there is
+                // a position
+                boolean isChanged = !publishedStatus.isPublished
+                        || tradeAudit.volume != publishedStatus.volume
+                        || tradeAudit.position != 0 && theoreticalExitPrice != publishedStatus.exitPrice;
+                if (!isChanged) {
+                    continue;
                 }
+
+                statusInfo = new StatusInfoBuilder()
+                        .setInstrumentAlias(alias)
+                        .setAveragePrice(tradeAudit.getAveragePrice())
+                        .setPosition(tradeAudit.position)
+                        .setRealizedPnl(tradeAudit.getRealizedPnl())
+                        .setUnrealizedPnl(tradeAudit.getUnrealizedPnl())
+                        .setVolume(tradeAudit.volume)
+                        .build();
+
+                publishedStatus.volume = tradeAudit.volume;
+                publishedStatus.exitPrice = theoreticalExitPrice;
             }
+            publishedStatus.isPublished = true;
+            publishedStatus.publishTimeNanos = now;
+
+            tradingListeners.forEach(t -> t.onStatus(statusInfo));
         }
     }
 }
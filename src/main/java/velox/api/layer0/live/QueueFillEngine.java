@@ -0,0 +1,368 @@
+package velox.api.layer0.live;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import velox.api.layer0.common.DataEventBatch;
+import velox.api.layer0.replay.advanced.OrderBookMbp;
+import velox.api.layer1.data.OrderInfoBuilder;
+import velox.api.layer1.data.OrderType;
+
+/**
+ * <p>
+ * Simulates partial fills of resting limit orders by their position in the
+ * FIFO queue of the price level. When order is placed, the size currently
+ * displayed on its level is ahead of it. Then:
+ * </p>
+ * <ul>
+ * <li>Trades on the level consume the queue ahead first, the remaining volume
+ * fills the order</li>
+ * <li>Level size decreasing without trades is treated as cancellations, spread
+ * proportionally between orders ahead and behind</li>
+ * <li>Level size increasing does not change the position, new orders join
+ * the end of the queue</li>
+ * </ul>
+ * <p>
+ * Simulated orders are not part of the generated book, but those on the same
+ * level are queued after each other: unfilled size of earlier orders is ahead
+ * of later ones, and a trade volume is consumed once while walking the queue.
+ * Orders that become marketable because the BBO moved through their price
+ * are not handled here, see {@link WorkingOrderBook}.
+ * </p>
+ * <p>
+ * Book of an instrument is kept in its {@link InstrumentQueues}, which is
+ * owned by the thread generating data for the instrument, so maintaining it
+ * doesn't need a lock. Simulated orders are guarded by the lock passed to the
+ * constructor: all methods except {@link #onData} must be called holding it,
+ * and {@link #onData} only takes it when an update affects an instrument
+ * with simulated orders. Processing an update does not allocate unless it
+ * changes a simulated order.
+ * </p>
+ */
+class QueueFillEngine {
+
+    interface Listener {
+        /**
+         * Order should be updated to reflect the fill before returning. Engine
+         * must not be modified from this method, fully filled orders are
+         * removed automatically.
+         *
+         * @param price raw price (multiplied by pips)
+         */
+        void onOrderFilled(OrderInfoBuilder order, int size, double price);
+
+        /**
+         * @param position size ahead of the order in the queue
+         */
+        void onQueuePositionChanged(OrderInfoBuilder order, int position);
+    }
+
+    private static class QueuedOrder {
+        final OrderInfoBuilder order;
+        final InstrumentQueues instrumentQueues;
+        final SideQueues sideQueues;
+        final int level;
+        /**
+         * Size of the book in the queue ahead of the order, simulated orders
+         * ahead are not included. Negative until the order is placed by the
+         * thread that owns the book.
+         */
+        long sizeAhead = -1;
+        int reportedPosition = -1;
+
+        QueuedOrder(OrderInfoBuilder order, InstrumentQueues instrumentQueues, SideQueues sideQueues, int level) {
+            this.order = order;
+            this.instrumentQueues = instrumentQueues;
+            this.sideQueues = sideQueues;
+            this.level = level;
+        }
+    }
+
+    /** Simulated orders of one side of an instrument, grouped by level */
+    private static class SideQueues {
+        /** Sorted levels that have orders */
+        int[] levels = new int[8];
+        /** Orders of each of {@link #levels} in queue order */
+        final List<List<QueuedOrder>> queues = new ArrayList<>();
+
+        /**
+         * @return index of the level, negative if there are no orders on it
+         */
+        int indexOf(int level) {
+            return Arrays.binarySearch(levels, 0, queues.size(), level);
+        }
+
+        /**
+         * @return queue of the order level
+         */
+        List<QueuedOrder> add(QueuedOrder queuedOrder) {
+            int index = indexOf(queuedOrder.level);
+            if (index < 0) {
+                index = -index - 1;
+                int count = queues.size();
+                if (count == levels.length) {
+                    levels = Arrays.copyOf(levels, count * 2);
+                }
+                System.arraycopy(levels, index, levels, index + 1, count - index);
+                levels[index] = queuedOrder.level;
+                queues.add(index, new ArrayList<>());
+            }
+            List<QueuedOrder> queue = queues.get(index);
+            queue.add(queuedOrder);
+            return queue;
+        }
+
+        /**
+         * @return remaining queue of the order level, null if it became empty
+         */
+        List<QueuedOrder> remove(QueuedOrder queuedOrder) {
+            int index = indexOf(queuedOrder.level);
+            List<QueuedOrder> queue = queues.get(index);
+            queue.remove(queuedOrder);
+            if (queue.isEmpty()) {
+                removeLevel(index);
+                return null;
+            }
+            return queue;
+        }
+
+        void removeLevel(int index) {
+            queues.remove(index);
+            System.arraycopy(levels, index + 1, levels, index, queues.size() - index);
+        }
+    }
+
+    /**
+     * Book and simulated orders of one instrument. Book is only accessed by
+     * the thread generating data for the instrument, the rest is guarded by
+     * the engine lock.
+     */
+    static class InstrumentQueues {
+        final double pips;
+        final OrderBookMbp book = new OrderBookMbp();
+        /** Buy orders, resting on bids */
+        final SideQueues buyQueues = new SideQueues();
+        /** Sell orders, resting on asks */
+        final SideQueues sellQueues = new SideQueues();
+        /** Orders waiting for the owning thread to take their size ahead from the book */
+        final List<QueuedOrder> pendingOrders = new ArrayList<>();
+
+        /** Read without the lock to skip it for instruments without orders */
+        volatile int ordersCount = 0;
+        volatile boolean hasPendingOrders = false;
+
+        InstrumentQueues(double pips) {
+            this.pips = pips;
+        }
+    }
+
+    private final Object lock;
+    private final Listener listener;
+
+    private final Map<String, QueuedOrder> queuedOrders = new HashMap<>();
+
+    /**
+     * @param lock guards simulated orders, listener is called holding it
+     */
+    QueueFillEngine(Object lock, Listener listener) {
+        this.lock = lock;
+        this.listener = listener;
+    }
+
+    /**
+     * Puts limit order to the end of the queue on its price level. Other
+     * order types are ignored. Size ahead of it is taken from the book on the
+     * next update of the instrument.
+     */
+    public void addOrder(OrderInfoBuilder order, InstrumentQueues queues) {
+        if (order.getType() != OrderType.LMT) {
+            return;
+        }
+
+        int level = (int) Math.round(order.getLimitPrice() / queues.pips);
+        QueuedOrder queuedOrder = new QueuedOrder(order, queues,
+                order.isBuy() ? queues.buyQueues : queues.sellQueues, level);
+        queuedOrder.sideQueues.add(queuedOrder);
+        queues.pendingOrders.add(queuedOrder);
+        queuedOrders.put(order.getOrderId(), queuedOrder);
+        ++queues.ordersCount;
+        queues.hasPendingOrders = true;
+    }
+
+    public void removeOrder(OrderInfoBuilder order) {
+        QueuedOrder queuedOrder = queuedOrders.remove(order.getOrderId());
+        if (queuedOrder != null) {
+            InstrumentQueues queues = queuedOrder.instrumentQueues;
+            --queues.ordersCount;
+            queues.pendingOrders.remove(queuedOrder);
+            List<QueuedOrder> queue = queuedOrder.sideQueues.remove(queuedOrder);
+            if (queue != null) {
+                reportQueuePositions(queue);
+            }
+        }
+    }
+
+    /**
+     * Forgets orders of the instrument, e.g. when it is unsubscribed. Orders
+     * are not changed.
+     */
+    public void removeInstrument(InstrumentQueues queues) {
+        queuedOrders.values().removeIf(queuedOrder -> queuedOrder.instrumentQueues == queues);
+    }
+
+    /**
+     * Applies updates of a single instrument, should only be called by the
+     * thread generating its data
+     */
+    public void onData(InstrumentQueues queues, DataEventBatch batch) {
+        if (queues.hasPendingOrders) {
+            synchronized (lock) {
+                placePendingOrders(queues);
+            }
+        }
+
+        for (int i = 0; i < batch.size(); ++i) {
+            if (batch.isTrade(i)) {
+                onTrade(queues, (int) Math.round(batch.getTradePrice(i)), batch.getSize(i),
+                        batch.getTradeInfo(i).isBidAggressor);
+            } else {
+                onDepth(queues, batch.isBid(i), batch.getPrice(i), batch.getSize(i));
+            }
+        }
+    }
+
+    /**
+     * Orders are placed behind the size currently on their level. Should be
+     * called holding the lock before processing an update of the orders.
+     */
+    private void placePendingOrders(InstrumentQueues queues) {
+        if (!queues.hasPendingOrders) {
+            return;
+        }
+        for (int i = 0; i < queues.pendingOrders.size(); ++i) {
+            QueuedOrder queuedOrder = queues.pendingOrders.get(i);
+            OrderBookMbp.Side bookSide = queuedOrder.order.isBuy() ? queues.book.bids : queues.book.asks;
+            queuedOrder.sizeAhead = bookSide.getSize(queuedOrder.level);
+        }
+        for (int i = 0; i < queues.pendingOrders.size(); ++i) {
+            QueuedOrder queuedOrder = queues.pendingOrders.get(i);
+            SideQueues sideQueues = queuedOrder.sideQueues;
+            reportQueuePositions(sideQueues.queues.get(sideQueues.indexOf(queuedOrder.level)));
+        }
+        queues.pendingOrders.clear();
+        queues.hasPendingOrders = false;
+    }
+
+    private void onDepth(InstrumentQueues queues, boolean isBid, int level, int size) {
+        OrderBookMbp.Side bookSide = isBid ? queues.book.bids : queues.book.asks;
+        long oldSize = bookSide.getSize(level);
+        bookSide.onDepth(level, size);
+
+        if (size >= oldSize || queues.ordersCount == 0) {
+            return;
+        }
+        synchronized (lock) {
+            placePendingOrders(queues);
+            onCancellations(isBid ? queues.buyQueues : queues.sellQueues, level, size, oldSize);
+        }
+    }
+
+    private void onCancellations(SideQueues sideQueues, int level, int size, long oldSize) {
+        int index = sideQueues.indexOf(level);
+        if (index < 0) {
+            return;
+        }
+
+        long cancelledSize = oldSize - size;
+        List<QueuedOrder> queue = sideQueues.queues.get(index);
+        for (int i = 0; i < queue.size(); ++i) {
+            QueuedOrder queuedOrder = queue.get(i);
+            queuedOrder.sizeAhead -= cancelledSize * queuedOrder.sizeAhead / oldSize;
+            queuedOrder.sizeAhead = Math.min(queuedOrder.sizeAhead, size);
+        }
+        reportQueuePositions(queue);
+    }
+
+    private void onTrade(InstrumentQueues queues, int level, int size, boolean isBidAggressor) {
+        // Trade takes liquidity from the opposite side. Also reducing the
+        // level size, so following depth update is not treated as
+        // cancellations
+        boolean isPassiveBid = !isBidAggressor;
+        OrderBookMbp.Side bookSide = isPassiveBid ? queues.book.bids : queues.book.asks;
+        bookSide.onDepth(level, Math.max(bookSide.getSize(level) - size, 0));
+
+        if (queues.ordersCount == 0) {
+            return;
+        }
+        synchronized (lock) {
+            placePendingOrders(queues);
+            onFills(queues, isPassiveBid ? queues.buyQueues : queues.sellQueues, level, size);
+        }
+    }
+
+    private void onFills(InstrumentQueues queues, SideQueues sideQueues, int level, int size) {
+        int index = sideQueues.indexOf(level);
+        if (index < 0) {
+            return;
+        }
+
+        // Trade volume goes through the queue once: book size ahead of an
+        // order is consumed first, then the order itself, and only the rest
+        // reaches the following orders
+        List<QueuedOrder> queue = sideQueues.queues.get(index);
+        long remainingVolume = size;
+        long consumedBookSize = 0;
+        for (int i = 0; i < queue.size(); ++i) {
+            QueuedOrder queuedOrder = queue.get(i);
+
+            long consumedAhead = Math.min(remainingVolume, Math.max(queuedOrder.sizeAhead - consumedBookSize, 0));
+            consumedBookSize += consumedAhead;
+            remainingVolume -= consumedAhead;
+            // Book consumed before reaching this order was all ahead of it
+            queuedOrder.sizeAhead = Math.max(queuedOrder.sizeAhead - consumedBookSize, 0);
+
+            if (remainingVolume > 0) {
+                int filledSize = (int) Math.min(remainingVolume, queuedOrder.order.getUnfilled());
+                remainingVolume -= filledSize;
+                listener.onOrderFilled(queuedOrder.order, filledSize, level * queues.pips);
+            }
+
+            if (queuedOrder.order.getUnfilled() == 0) {
+                queuedOrders.remove(queuedOrder.order.getOrderId());
+                --queues.ordersCount;
+                queue.remove(i--);
+            }
+        }
+        if (queue.isEmpty()) {
+            sideQueues.removeLevel(index);
+        } else {
+            reportQueuePositions(queue);
+        }
+    }
+
+    /**
+     * Reports positions of all placed orders of a level, counting unfilled
+     * size of earlier simulated orders as ahead
+     */
+    private void reportQueuePositions(List<QueuedOrder> queue) {
+        long unfilledAhead = 0;
+        for (int i = 0; i < queue.size(); ++i) {
+            QueuedOrder queuedOrder = queue.get(i);
+            if (queuedOrder.sizeAhead >= 0) {
+                reportQueuePosition(queuedOrder, queuedOrder.sizeAhead + unfilledAhead);
+            }
+            unfilledAhead += queuedOrder.order.getUnfilled();
+        }
+    }
+
+    private void reportQueuePosition(QueuedOrder queuedOrder, long sizeAhead) {
+        int position = (int) Math.min(sizeAhead, Integer.MAX_VALUE);
+        if (position != queuedOrder.reportedPosition) {
+            queuedOrder.reportedPosition = position;
+            listener.onQueuePositionChanged(queuedOrder.order, position);
+        }
+    }
+}
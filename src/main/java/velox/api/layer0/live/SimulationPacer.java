@@ -0,0 +1,163 @@
+package velox.api.layer0.live;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import velox.api.layer1.common.Log;
+
+/**
+ * <p>
+ * Paces simulation steps of {@link DemoExternalRealtimeProvider} to a target
+ * rate. Steps are scheduled at fixed points in time rather than with a sleep
+ * after each step, so time spent generating data does not slow the rate down,
+ * and if the simulation falls behind (e.g. because of a GC pause) missed steps
+ * are executed back-to-back to catch up.
+ * </p>
+ * <p>
+ * Rate can be modulated by a {@link BurstProfile} to emulate uneven real-world
+ * activity.
+ * </p>
+ */
+public class SimulationPacer {
+
+    /** Target number of events per second per instrument */
+    public static final String EVENTS_PER_SECOND_PROPERTY = "velox.api.layer0.demo.eventsPerSecond";
+    /** Name of {@link BurstProfile}, case insensitive */
+    public static final String BURST_PROFILE_PROPERTY = "velox.api.layer0.demo.burstProfile";
+
+    /**
+     * If simulation is behind the schedule by more than this, the backlog is
+     * dropped instead of catching up
+     */
+    private static final long MAX_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * parkNanos typically oversleeps by tens of microseconds, so the end of
+     * the wait is spun
+     */
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    /** Keeps the schedule from overflowing for tiny rates */
+    private static final long MAX_STEP_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    public enum BurstProfile {
+        /** Constant rate */
+        NONE {
+            @Override
+            public double getRateMultiplier(long elapsedNanos) {
+                return 1;
+            }
+        },
+        /**
+         * 20x rate at the open that decays over a few minutes, repeated every
+         * 15 minutes
+         */
+        OPEN_AUCTION {
+            private final long periodNanos = TimeUnit.MINUTES.toNanos(15);
+            private final double decayNanos = TimeUnit.MINUTES.toNanos(1);
+
+            @Override
+            public double getRateMultiplier(long elapsedNanos) {
+                return 1 + 19 * Math.exp(-(elapsedNanos % periodNanos) / decayNanos);
+            }
+        },
+        /**
+         * Short 50x spike, as after a news release, decaying within few
+         * seconds, once per minute
+         */
+        NEWS {
+            private final long periodNanos = TimeUnit.MINUTES.toNanos(1);
+            private final double decayNanos = TimeUnit.SECONDS.toNanos(1);
+
+            @Override
+            public double getRateMultiplier(long elapsedNanos) {
+                return 1 + 49 * Math.exp(-(elapsedNanos % periodNanos) / decayNanos);
+            }
+        };
+
+        public abstract double getRateMultiplier(long elapsedNanos);
+    }
+
+    private final double stepsPerSecond;
+    private final BurstProfile burstProfile;
+
+    private final long startNanos;
+    private long nextStepNanos;
+
+    /**
+     * @param stepsPerSecond base rate, before applying the burst profile,
+     *                       must be positive
+     */
+    public SimulationPacer(double stepsPerSecond, BurstProfile burstProfile) {
+        if (!(stepsPerSecond > 0) || Double.isInfinite(stepsPerSecond)) {
+            throw new IllegalArgumentException("Steps per second must be positive, got " + stepsPerSecond);
+        }
+        this.stepsPerSecond = stepsPerSecond;
+        this.burstProfile = burstProfile;
+        this.startNanos = System.nanoTime();
+        this.nextStepNanos = startNanos;
+    }
+
+    /**
+     * Creates pacer based on system properties
+     *
+     * @param eventsPerStep          average number of events generated per
+     *                               instrument in one step
+     * @param defaultStepsPerSecond  used if rate is not configured
+     */
+    public static SimulationPacer fromSystemProperties(double eventsPerStep, double defaultStepsPerSecond) {
+        double stepsPerSecond = defaultStepsPerSecond;
+        String eventsPerSecond = System.getProperty(EVENTS_PER_SECOND_PROPERTY);
+        if (eventsPerSecond != null) {
+            try {
+                double parsedEventsPerSecond = Double.parseDouble(eventsPerSecond);
+                // Step interval is 1 / rate, so it has to be positive and finite
+                if (parsedEventsPerSecond > 0 && !Double.isInfinite(parsedEventsPerSecond)) {
+                    stepsPerSecond = parsedEventsPerSecond / eventsPerStep;
+                } else {
+                    Log.warn("Invalid " + EVENTS_PER_SECOND_PROPERTY + ": " + eventsPerSecond);
+                }
+            } catch (NumberFormatException e) {
+                Log.warn("Invalid " + EVENTS_PER_SECOND_PROPERTY + ": " + eventsPerSecond, e);
+            }
+        }
+
+        BurstProfile burstProfile = BurstProfile.NONE;
+        String burstProfileName = System.getProperty(BURST_PROFILE_PROPERTY);
+        if (burstProfileName != null) {
+            try {
+                burstProfile = BurstProfile.valueOf(burstProfileName.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                Log.warn("Invalid " + BURST_PROFILE_PROPERTY + ": " + burstProfileName, e);
+            }
+        }
+
+        return new SimulationPacer(stepsPerSecond, burstProfile);
+    }
+
+    /**
+     * Waits until the next step is due. Returns immediately if simulation is
+     * behind the schedule.
+     */
+    public void awaitNextStep() throws InterruptedException {
+        double rate = stepsPerSecond * burstProfile.getRateMultiplier(nextStepNanos - startNanos);
+        nextStepNanos += (long) Math.min(TimeUnit.SECONDS.toNanos(1) / rate, MAX_STEP_NANOS);
+
+        long remaining = nextStepNanos - System.nanoTime();
+        if (remaining < -MAX_LAG_NANOS) {
+            nextStepNanos -= remaining;
+            return;
+        }
+
+        while (remaining > 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+            remaining = nextStepNanos - System.nanoTime();
+        }
+    }
+}
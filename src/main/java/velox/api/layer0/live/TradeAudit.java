@@ -5,91 +5,185 @@ import velox.api.layer1.data.ExecutionInfo;
 import java.math.BigDecimal;
 import java.math.MathContext;
 
-import static java.math.BigDecimal.valueOf;
-
 /**
+ * <p>
  * A container for a position and P&L information
+ * </p>
+ * <p>
+ * Prices, position cost and P&L are kept as longs in 1/{@link #SCALE} of a
+ * price unit, so executions are processed exactly and without allocations.
+ * Scale doesn't depend on the instrument, so an audit stays valid if pips of
+ * the alias change, e.g. after it is resubscribed. The only rounding happens
+ * when a part of the position is closed and its share of the cost is not a
+ * whole number of units; the rest of the cost stays with the position, so the
+ * sum of realized and unrealized P&L is still exact. Values are converted to
+ * prices (using BigDecimal) only when requested by getters.
+ * </p>
+ * <p>
+ * Not thread safe.
+ * </p>
  */
 class TradeAudit {
+    /** Number of price, cost and P&L units in one price unit */
+    private static final long SCALE = 100_000_000;
+    private static final int SCALE_DIGITS = 8;
+
+    private final TradeAuditTotals totals;
+
     int position;
     int volume;
-    double realizedPnl;
-    double averagePrice = Double.NaN;
-    
-    private BigDecimal position() {
-        return valueOf(position);
+
+    /** Cost of the open position, positive for both long and short */
+    private long openCost;
+    private long realizedPnl;
+    /** As of the last {@link #setExitPrice(double)} call */
+    private long unrealizedPnl;
+    /** In 1/{@link #SCALE} of a price unit */
+    private long exitPrice;
+    private boolean hasExitPrice = false;
+
+    /**
+     * @param totals aggregate the changes of this audit are added to
+     */
+    TradeAudit(TradeAuditTotals totals) {
+        this.totals = totals;
     }
-    
-    private BigDecimal realizedPnl() {
-        return valueOf(realizedPnl);
+
+    double getAveragePrice() {
+        if (position == 0) {
+            return Double.NaN;
+        }
+        return toPrice(openCost)
+                .divide(BigDecimal.valueOf(Math.abs(position)), MathContext.DECIMAL64)
+                .doubleValue();
     }
-    
-    private BigDecimal averagePrice() {
-        return valueOf(averagePrice);
+
+    double getRealizedPnl() {
+        return toPrice(realizedPnl).doubleValue();
     }
-    
+
     /**
-     * Unrealized P&L can be calculated as: 
+     * Unrealized P&L can be calculated as:
      * (Theoretical Exit Price – Average Open Price) * Position
      */
-    double getUnrealizedPnl(double theoreticalExitPrice) {
-        if (position == 0) {
-            return 0;
-        }
-        
-        BigDecimal diff = valueOf(theoreticalExitPrice).subtract(averagePrice());
-        return diff.multiply(position()).doubleValue();
+    double getUnrealizedPnl() {
+        return toPrice(unrealizedPnl).doubleValue();
+    }
+
+    /**
+     * Updates price used for unrealized P&L calculation
+     */
+    void setExitPrice(double theoreticalExitPrice) {
+        long newExitPrice = toScaled(theoreticalExitPrice);
+        long newUnrealizedPnl = computeUnrealizedPnl(position, openCost, newExitPrice);
+        exitPrice = newExitPrice;
+        hasExitPrice = true;
+        setUnrealizedPnl(newUnrealizedPnl);
     }
-    
+
     /**
-     * Recalculates trade audit information on each order execution 
-     * 
+     * Recalculates trade audit information on each order execution. If values
+     * would overflow, {@link ArithmeticException} is thrown and the audit is
+     * not changed.
+     *
      * @param isBuy Side of execution (buy/sell)
      * @param info Information about order execution
      */
     void recalculateInfo(boolean isBuy, ExecutionInfo info) {
-        volume += info.size;
-        
-        double oldPosition = position;
-        position += isBuy ? info.size : -info.size;
-        
-        if (oldPosition == 0) {
-            // open a position
-            averagePrice = info.price;
-        } else if (oldPosition > 0 && isBuy || oldPosition < 0 && !isBuy) {
-            // the case when increasing the existing position long or short
-            BigDecimal totalPrice = valueOf(oldPosition).abs()
-                    .multiply(averagePrice(), MathContext.DECIMAL64)
-                    .add(valueOf(info.size).multiply(valueOf(info.price)), MathContext.DECIMAL64);
-            
-            averagePrice = totalPrice
-                    .divide(position().abs(), MathContext.DECIMAL64)
-                    .doubleValue();
+        long price = toScaled(info.price);
+        int size = info.size;
+
+        // Everything is calculated before changing the state, so overflow
+        // can't leave the audit half updated
+        int oldPosition = position;
+        int newPosition = Math.addExact(oldPosition, isBuy ? size : -size);
+        long newOpenCost;
+        long newRealizedPnl = realizedPnl;
+
+        if (oldPosition == 0 || oldPosition > 0 == isBuy) {
+            // open a position or increase the existing position long or short
+            newOpenCost = Math.addExact(openCost, cost(price, size));
         } else {
             // the case when reducing the existing position,
             // also making a check if a counter-side position was opened
-            // e.g. the current position is 2, we're selling 3 contracts 
+            // e.g. the current position is 2, we're selling 3 contracts
             // and now the position is -1
-            double oldPosAbs = Math.abs(oldPosition);
-            double minQty = Math.min(oldPosAbs, info.size);
-            
+            int oldPosAbs = Math.abs(oldPosition);
+            int closedQty = Math.min(oldPosAbs, size);
+
+            long closedCost = closedQty == oldPosAbs ? openCost : splitCost(closedQty, oldPosAbs);
+            long closedValue = cost(price, closedQty);
             // PnL realized += (Sell Price - Buy Price) * Qty
-            BigDecimal sellPrice = isBuy ? averagePrice() : BigDecimal.valueOf(info.price);
-            BigDecimal buyPrice = isBuy ? BigDecimal.valueOf(info.price) : averagePrice();
-            BigDecimal priceDiff = sellPrice.subtract(buyPrice);
-            
-            realizedPnl = realizedPnl()
-                    .add(priceDiff.multiply(valueOf(minQty), MathContext.DECIMAL64))
-                    .doubleValue();
-            if (oldPosAbs >= info.size) {
-                // avg open price does not change since we're reducing the position
-                // but set it to NaN if the position is closed (0)
-                averagePrice = position == 0 ? Double.NaN : averagePrice;
-            } else {
+            newRealizedPnl = Math.addExact(realizedPnl, oldPosition > 0
+                    ? Math.subtractExact(closedValue, closedCost)
+                    : Math.subtractExact(closedCost, closedValue));
+            newOpenCost = openCost - closedCost;
+
+            if (size > oldPosAbs) {
                 // for a counter-side position,
                 // the average price will be the latest execution price
-                averagePrice = info.price;
+                newOpenCost = cost(price, size - oldPosAbs);
             }
         }
+        long newUnrealizedPnl = hasExitPrice ? computeUnrealizedPnl(newPosition, newOpenCost, exitPrice) : 0;
+
+        long realizedPnlChange = newRealizedPnl - realizedPnl;
+        volume += size;
+        position = newPosition;
+        openCost = newOpenCost;
+        realizedPnl = newRealizedPnl;
+
+        totals.onExecution(size, toDouble(realizedPnlChange));
+        setUnrealizedPnl(newUnrealizedPnl);
+    }
+
+    private static long computeUnrealizedPnl(int position, long openCost, long exitPrice) {
+        if (position == 0) {
+            return 0;
+        }
+        long exitValue = cost(exitPrice, Math.abs(position));
+        return position > 0 ? Math.subtractExact(exitValue, openCost) : Math.subtractExact(openCost, exitValue);
+    }
+
+    private void setUnrealizedPnl(long newUnrealizedPnl) {
+        long oldUnrealizedPnl = unrealizedPnl;
+        unrealizedPnl = newUnrealizedPnl;
+        totals.onUnrealizedPnlChanged(toDouble(unrealizedPnl - oldUnrealizedPnl));
+    }
+
+    /**
+     * Share of {@link #openCost} for a part of the position, rounded half up
+     */
+    private long splitCost(int qty, int totalQty) {
+        // Splitting to avoid overflow, remainder * qty fits into long
+        long quotient = openCost / totalQty;
+        long remainder = openCost % totalQty;
+        return Math.addExact(Math.multiplyExact(quotient, qty), (remainder * qty + totalQty / 2) / totalQty);
+    }
+
+    private static long cost(long price, int qty) {
+        return Math.multiplyExact(price, qty);
+    }
+
+    /**
+     * @throws ArithmeticException if price doesn't fit the scale, instead of
+     *                             silently saturating
+     */
+    private static long toScaled(double price) {
+        double scaledPrice = price * SCALE;
+        // Long.MAX_VALUE as double rounds up to 2^63, so comparing strictly
+        if (!(Math.abs(scaledPrice) < Long.MAX_VALUE)) {
+            throw new ArithmeticException("Price " + price + " is out of the trade audit range");
+        }
+        return Math.round(scaledPrice);
+    }
+
+    private static BigDecimal toPrice(long value) {
+        return BigDecimal.valueOf(value).movePointLeft(SCALE_DIGITS);
+    }
+
+    /** Approximate, for the aggregate */
+    private static double toDouble(long value) {
+        return (double) value / SCALE;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package velox.api.layer0.live;
+
+/**
+ * <p>
+ * Account-wide totals of {@link TradeAudit}s. Each audit adds its changes
+ * here, so totals are available in constant time regardless of number of
+ * aliases.
+ * </p>
+ * <p>
+ * P&L totals are sums of changes converted to prices, so unlike values of a
+ * single audit those are subject to floating point rounding.
+ * </p>
+ * <p>
+ * Not thread safe, should be guarded by same lock as the audits.
+ * </p>
+ */
+class TradeAuditTotals {
+    private long volume;
+    private double realizedPnl;
+    private double unrealizedPnl;
+
+    void onExecution(int size, double realizedPnlChange) {
+        volume += size;
+        realizedPnl += realizedPnlChange;
+    }
+
+    void onUnrealizedPnlChanged(double unrealizedPnlChange) {
+        unrealizedPnl += unrealizedPnlChange;
+    }
+
+    long getVolume() {
+        return volume;
+    }
+
+    double getRealizedPnl() {
+        return realizedPnl;
+    }
+
+    double getUnrealizedPnl() {
+        return unrealizedPnl;
+    }
+}
@@ -0,0 +1,157 @@
+package velox.api.layer0.live;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import velox.api.layer1.data.OrderInfoBuilder;
+import velox.api.layer1.data.OrderType;
+
+/**
+ * <p>
+ * Working orders of {@link DemoExternalRealtimeTradingProvider}, indexed by id
+ * and, for each alias, by side and limit price. This way orders that can be
+ * executed at current BBO are found without looking at the ones that can not,
+ * and cancel/move are logarithmic in the number of orders.
+ * </p>
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+class WorkingOrderBook {
+
+    private static class AliasOrders {
+        /** Buy limit orders by limit price, orders of a level by id */
+        final TreeMap<Double, Map<String, OrderInfoBuilder>> buyOrders = new TreeMap<>();
+        /** Sell limit orders by limit price, orders of a level by id */
+        final TreeMap<Double, Map<String, OrderInfoBuilder>> sellOrders = new TreeMap<>();
+        /** Market orders are executable at any price */
+        final Map<String, OrderInfoBuilder> marketOrders = new LinkedHashMap<>();
+
+        boolean isEmpty() {
+            return buyOrders.isEmpty() && sellOrders.isEmpty() && marketOrders.isEmpty();
+        }
+    }
+
+    private final Map<String, OrderInfoBuilder> orders = new HashMap<>();
+    private final Map<String, AliasOrders> ordersByAlias = new HashMap<>();
+
+    public void add(OrderInfoBuilder order) {
+        orders.put(order.getOrderId(), order);
+        index(order);
+    }
+
+    public OrderInfoBuilder get(String orderId) {
+        return orders.get(orderId);
+    }
+
+    /**
+     * @return removed order or null if there is no working order with this id
+     */
+    public OrderInfoBuilder remove(String orderId) {
+        OrderInfoBuilder order = orders.remove(orderId);
+        if (order != null) {
+            unindex(order);
+        }
+        return order;
+    }
+
+    /**
+     * Changes limit price of a working order. Should be used instead of
+     * changing it directly, since orders are indexed by limit price.
+     */
+    public void setLimitPrice(OrderInfoBuilder order, double limitPrice) {
+        unindex(order);
+        order.setLimitPrice(limitPrice);
+        index(order);
+    }
+
+    /** @return aliases that have working orders */
+    public Set<String> getAliases() {
+        return ordersByAlias.keySet();
+    }
+
+    /**
+     * Removes orders of the alias that would be executed at provided prices:
+     * market orders, buy orders with limit price at or above best ask and sell
+     * orders with limit price at or below best bid.
+     *
+     * @return removed orders, market orders first, then buy and sell orders
+     *         from the most aggressive price
+     */
+    public List<OrderInfoBuilder> removeExecutable(String alias, double bestBidPrice, double bestAskPrice) {
+        AliasOrders aliasOrders = ordersByAlias.get(alias);
+        if (aliasOrders == null) {
+            return Collections.emptyList();
+        }
+
+        NavigableMap<Double, Map<String, OrderInfoBuilder>> executableBuyOrders = aliasOrders.buyOrders
+                .tailMap(bestAskPrice, true).descendingMap();
+        NavigableMap<Double, Map<String, OrderInfoBuilder>> executableSellOrders = aliasOrders.sellOrders
+                .headMap(bestBidPrice, true);
+        if (aliasOrders.marketOrders.isEmpty() && executableBuyOrders.isEmpty() && executableSellOrders.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<OrderInfoBuilder> executableOrders = new ArrayList<>(aliasOrders.marketOrders.values());
+        aliasOrders.marketOrders.clear();
+        addAll(executableOrders, executableBuyOrders.values());
+        executableBuyOrders.clear();
+        addAll(executableOrders, executableSellOrders.values());
+        executableSellOrders.clear();
+
+        for (OrderInfoBuilder order : executableOrders) {
+            orders.remove(order.getOrderId());
+        }
+        if (aliasOrders.isEmpty()) {
+            ordersByAlias.remove(alias);
+        }
+        return executableOrders;
+    }
+
+    private static void addAll(List<OrderInfoBuilder> target, Collection<Map<String, OrderInfoBuilder>> levels) {
+        for (Map<String, OrderInfoBuilder> level : levels) {
+            target.addAll(level.values());
+        }
+    }
+
+    private void index(OrderInfoBuilder order) {
+        AliasOrders aliasOrders = ordersByAlias.computeIfAbsent(order.getInstrumentAlias(), k -> new AliasOrders());
+        if (order.getType() == OrderType.MKT) {
+            aliasOrders.marketOrders.put(order.getOrderId(), order);
+        } else {
+            TreeMap<Double, Map<String, OrderInfoBuilder>> sideOrders = order.isBuy()
+                    ? aliasOrders.buyOrders
+                    : aliasOrders.sellOrders;
+            sideOrders.computeIfAbsent(order.getLimitPrice(), k -> new LinkedHashMap<>())
+                    .put(order.getOrderId(), order);
+        }
+    }
+
+    private void unindex(OrderInfoBuilder order) {
+        String alias = order.getInstrumentAlias();
+        AliasOrders aliasOrders = ordersByAlias.get(alias);
+        if (order.getType() == OrderType.MKT) {
+            aliasOrders.marketOrders.remove(order.getOrderId());
+        } else {
+            TreeMap<Double, Map<String, OrderInfoBuilder>> sideOrders = order.isBuy()
+                    ? aliasOrders.buyOrders
+                    : aliasOrders.sellOrders;
+            Map<String, OrderInfoBuilder> level = sideOrders.get(order.getLimitPrice());
+            level.remove(order.getOrderId());
+            if (level.isEmpty()) {
+                sideOrders.remove(order.getLimitPrice());
+            }
+        }
+        if (aliasOrders.isEmpty()) {
+            ordersByAlias.remove(alias);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package velox.api.layer0.live.advanced;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import velox.api.layer0.common.BinaryIpcFormat;
+
+/**
+ * <p>
+ * Sends commands to the executable of {@link FullTextDataRealtimeProvider}
+ * from a dedicated thread, so callers (possibly UI thread) never block on the
+ * pipe. Commands queued while the previous batch was being written are
+ * encoded into a single reused buffer and flushed together, so e.g.
+ * subscribing to many instruments at once costs a few writes instead of one
+ * per instrument.
+ * </p>
+ * <p>
+ * Commands are encoded when written, in the format that is current at that
+ * moment - executable accepts both formats, so it does not matter if binary
+ * protocol is confirmed while commands are queued.
+ * </p>
+ */
+class CommandWriter {
+
+    private final OutputStream outputStream;
+    private final BooleanSupplier isBinaryProtocol;
+    /** Called from the writer thread on the first failed write */
+    private final Consumer<IOException> errorHandler;
+
+    private final ConcurrentLinkedQueue<String[]> commands = new ConcurrentLinkedQueue<>();
+    /** Encoded commands of the current batch, reused between batches */
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream(4096);
+
+    private final Thread thread;
+    private volatile boolean isClosing = false;
+    /** Only accessed by the writer thread, commands are dropped after a failure */
+    private boolean isFailed = false;
+
+    CommandWriter(OutputStream outputStream, BooleanSupplier isBinaryProtocol,
+            Consumer<IOException> errorHandler) {
+        this.outputStream = outputStream;
+        this.isBinaryProtocol = isBinaryProtocol;
+        this.errorHandler = errorHandler;
+
+        thread = new Thread(this::run, "Full text command writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the command, returns immediately
+     *
+     * @param lines command name followed by arguments
+     */
+    public void send(String... lines) {
+        commands.offer(lines);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Writes commands queued before this call and stops the thread. Commands
+     * sent after this call are ignored.
+     */
+    public void close() throws InterruptedException {
+        isClosing = true;
+        LockSupport.unpark(thread);
+        thread.join();
+    }
+
+    private void run() {
+        while (true) {
+            // Reading the flag before draining, so everything queued before
+            // close() is written
+            boolean isClosing = this.isClosing;
+
+            String[] lines;
+            while ((lines = commands.poll()) != null) {
+                encode(lines);
+            }
+            if (batch.size() > 0) {
+                write();
+            }
+
+            if (isClosing) {
+                return;
+            }
+            // Spurious wakeups are fine, queue is checked again
+            LockSupport.park(this);
+        }
+    }
+
+    private void encode(String[] lines) {
+        if (isBinaryProtocol.getAsBoolean()) {
+            byte[] frame = BinaryIpcFormat.encodeCommand(lines);
+            batch.write(frame, 0, frame.length);
+        } else {
+            for (String line : lines) {
+                byte[] data = line.getBytes(StandardCharsets.US_ASCII);
+                batch.write(data, 0, data.length);
+                batch.write('\n');
+            }
+        }
+    }
+
+    private void write() {
+        try {
+            if (!isFailed) {
+                batch.writeTo(outputStream);
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            isFailed = true;
+            errorHandler.accept(e);
+        } finally {
+            batch.reset();
+        }
+    }
+}
@@ -97,7 +97,9 @@ public class CrossPlatformTradingProvider extends DemoExternalRealtimeTradingPro
         // In this demo we just create instrument with provided alias to start
         // (very unrealistic) trading simulation.
         final Instrument newInstrument = new Instrument(alias, 0.25);
-        instruments.putIfAbsent(alias, newInstrument);
+        if (instruments.putIfAbsent(alias, newInstrument) == null) {
+            startSimulation(newInstrument);
+        }
 
         super.sendOrder(orderSendParameters);
     }
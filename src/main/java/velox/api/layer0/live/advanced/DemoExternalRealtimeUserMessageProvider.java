@@ -22,9 +22,7 @@ public class DemoExternalRealtimeUserMessageProvider extends DemoExternalRealtim
     protected void simulate() {
         // Perform data changes simulation
         super.simulate();
-        synchronized (instruments) {
-            instruments.forEach(this::simulateRandomData);
-        }
+        instruments.forEach(this::simulateRandomData);
     }
 
     private void simulateRandomData(String alias, Instrument instrument) {
@@ -1,29 +1,45 @@
 package velox.api.layer0.live.advanced;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 
 import velox.api.layer0.annotations.Layer0LiveModule;
+import velox.api.layer0.common.BinaryIpcFormat;
+import velox.api.layer0.common.PriceFormatCache;
+import velox.api.layer0.common.ResponseUserMessage;
+import velox.api.layer0.common.SharedMemoryRing;
 import velox.api.layer0.common.TextStreamParser;
 import velox.api.layer0.data.FileEndReachedUserMessage;
 import velox.api.layer1.annotations.Layer1ApiVersion;
 import velox.api.layer1.annotations.Layer1ApiVersionValue;
 import velox.api.layer1.common.ListenableHelper;
 import velox.api.layer1.common.Log;
+import velox.api.layer1.data.DisconnectionReason;
 import velox.api.layer1.data.InstrumentInfo;
 import velox.api.layer1.data.Layer1ApiProviderSupportedFeatures;
 import velox.api.layer1.data.Layer1ApiProviderSupportedFeaturesBuilder;
 import velox.api.layer1.data.LoginData;
 import velox.api.layer1.data.LoginFailedReason;
+import velox.api.layer1.data.OrderCancelParameters;
+import velox.api.layer1.data.OrderDuration;
+import velox.api.layer1.data.OrderMoveParameters;
+import velox.api.layer1.data.OrderResizeParameters;
 import velox.api.layer1.data.OrderSendParameters;
+import velox.api.layer1.data.OrderType;
 import velox.api.layer1.data.OrderUpdateParameters;
+import velox.api.layer1.data.SimpleOrderSendParameters;
 import velox.api.layer1.data.SubscribeInfo;
+import velox.api.layer1.data.SystemTextMessageType;
 import velox.api.layer1.data.UserPasswordDemoLoginData;
 import velox.api.layer1.layers.Layer1ApiRelay;
-import velox.api.layer1.providers.helper.PriceFormatHelper;
 
 /**
  * <p>
@@ -33,16 +49,61 @@ import velox.api.layer1.providers.helper.PriceFormatHelper;
 @Layer1ApiVersion(Layer1ApiVersionValue.VERSION2)
 @Layer0LiveModule(fullName = "Text external realtime", shortName = "TE")
 public class FullTextDataRealtimeProvider extends Layer1ApiRelay {
+
+    /**
+     * Set to false to always use the text protocol. Otherwise binary one is
+     * requested and used if the executable supports it (see
+     * {@link BinaryIpcFormat})
+     */
+    private static final String BINARY_PROTOCOL_PROPERTY = "velox.api.layer0.fulltext.binaryProtocol";
+    private static final boolean IS_BINARY_PROTOCOL_REQUESTED = Boolean
+            .parseBoolean(System.getProperty(BINARY_PROTOCOL_PROPERTY, "true"));
+
+    /**
+     * Set to true to request executable output through a
+     * {@link SharedMemoryRing} (in /dev/shm if available) instead of the
+     * standard output. Only used with binary protocol. Reading thread spins
+     * while waiting for data, which gives the lowest latency, but costs CPU.
+     */
+    private static final String SHARED_MEMORY_PROPERTY = "velox.api.layer0.fulltext.sharedMemory";
+    private static final boolean IS_SHARED_MEMORY_REQUESTED = Boolean
+            .parseBoolean(System.getProperty(SHARED_MEMORY_PROPERTY, "false"));
+    /** Size of the shared memory ring data in bytes */
+    private static final String SHARED_MEMORY_SIZE_PROPERTY = "velox.api.layer0.fulltext.sharedMemorySize";
+    private static final int DEFAULT_SHARED_MEMORY_SIZE = 4 << 20;
+
+    /**
+     * Set to true to report trading support and route orders to the
+     * executable as requests (see {@link RequestChannel}). Executable reports
+     * orders and executions itself, as OrderUpdated/OrderExecuted events.
+     * Requires binary protocol.
+     */
+    private static final String TRADING_PROPERTY = "velox.api.layer0.fulltext.trading";
+    private static final boolean IS_TRADING_ENABLED = Boolean
+            .parseBoolean(System.getProperty(TRADING_PROPERTY, "false"));
+    private static final long REQUEST_TIMEOUT_MILLIS = 10_000;
     
     /** Subprocess that will do all the job */
     private Process childProcess = null;
-    private OutputStream outputStream = null;
+    /** Sends commands to the subprocess without blocking the caller */
+    private CommandWriter commandWriter = null;
+    /** Requests that expect a response, sent through {@link #commandWriter} */
+    private RequestChannel requestChannel = null;
     
     /** Parser for the data received from the subprocess */
     private TextStreamParser parser;
+
+    /** True once the subprocess confirmed binary protocol, commands are sent as frames after that */
+    private volatile boolean isBinaryProtocol = false;
+
+    /** Created if shared memory is requested, null if not used */
+    private SharedMemoryRing sharedMemoryRing;
     
-    /** Used to provide price formatting on Java side (for simplicity). */
-    private final Map<String, Double> pipsMap = new ConcurrentHashMap<>();    
+    /**
+     * Used to provide price formatting on Java side (for simplicity). Replaced
+     * when instrument is added again, since pips might change.
+     */
+    private final Map<String, PriceFormatCache> priceFormatCaches = new ConcurrentHashMap<>();
     
     public FullTextDataRealtimeProvider() {
         super(null);
@@ -79,7 +140,22 @@ public class FullTextDataRealtimeProvider extends Layer1ApiRelay {
                 // (so you can edit the file without rebuilding the jar).
                 // Running executable directly might be preferred in real use case.
                 childProcess = Runtime.getRuntime().exec("adapter.bat");
-                outputStream = childProcess.getOutputStream();
+                commandWriter = new CommandWriter(childProcess.getOutputStream(), () -> isBinaryProtocol,
+                        this::onCommandWriteFailed);
+                requestChannel = new RequestChannel(commandWriter, REQUEST_TIMEOUT_MILLIS);
+
+                if (IS_BINARY_PROTOCOL_REQUESTED) {
+                    // Executables that don't support it will just ignore this
+                    send(BinaryIpcFormat.PROTOCOL_COMMAND, BinaryIpcFormat.PROTOCOL_BINARY);
+
+                    if (IS_SHARED_MEMORY_REQUESTED) {
+                        sharedMemoryRing = createSharedMemoryRing();
+                        if (sharedMemoryRing != null) {
+                            send(BinaryIpcFormat.TRANSPORT_COMMAND, BinaryIpcFormat.TRANSPORT_SHARED_MEMORY,
+                                    sharedMemoryRing.getPath().toString());
+                        }
+                    }
+                }
             } catch (IOException e) {
                 Log.error("Failed to start adapter", e);
                 // Report failed login
@@ -103,15 +179,97 @@ public class FullTextDataRealtimeProvider extends Layer1ApiRelay {
             if (parser == null) {
                 parser = new TextStreamParser();
                 ListenableHelper.addListeners(parser, this);
-                parser.start(childProcess.getInputStream());
+
+                // Executable either confirms binary protocol before anything
+                // else or starts with a text response to the login
+                InputStream inputStream = new BufferedInputStream(childProcess.getInputStream());
+                if (IS_BINARY_PROTOCOL_REQUESTED && readBinaryHeader(inputStream)) {
+                    isBinaryProtocol = true;
+                    parser.startBinary(getBinaryInputStream(inputStream));
+                } else {
+                    closeSharedMemoryRing();
+                    parser.start(inputStream);
+                }
             }            
         }
     }
+
+    private SharedMemoryRing createSharedMemoryRing() {
+        int size = DEFAULT_SHARED_MEMORY_SIZE;
+        String sizeString = System.getProperty(SHARED_MEMORY_SIZE_PROPERTY);
+        if (sizeString != null) {
+            try {
+                size = Integer.parseInt(sizeString);
+            } catch (NumberFormatException e) {
+                Log.warn("Invalid " + SHARED_MEMORY_SIZE_PROPERTY + ": " + sizeString, e);
+            }
+        }
+
+        Path directory = Paths.get("/dev/shm");
+        if (!Files.isDirectory(directory)) {
+            directory = Paths.get(System.getProperty("java.io.tmpdir"));
+        }
+        Path path = directory.resolve("bookmap-fulltext-" + ProcessHandle.current().pid()
+                + "-" + System.nanoTime() + ".ring");
+        try {
+            return SharedMemoryRing.create(path, size);
+        } catch (IOException e) {
+            // Standard output will be used instead
+            Log.warn("Failed to create shared memory ring " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return shared memory ring stream if executable switched to it, stdout
+     *         otherwise
+     */
+    private InputStream getBinaryInputStream(InputStream inputStream) {
+        if (sharedMemoryRing == null) {
+            return inputStream;
+        }
+
+        try {
+            String transport = BinaryIpcFormat.readTransportSwitch(inputStream);
+            if (BinaryIpcFormat.TRANSPORT_SHARED_MEMORY.equals(transport)) {
+                return sharedMemoryRing.getInputStream(childProcess::isAlive);
+            }
+        } catch (IOException e) {
+            Log.warn("Failed to switch to shared memory transport", e);
+        }
+
+        closeSharedMemoryRing();
+        return inputStream;
+    }
+
+    private void closeSharedMemoryRing() {
+        if (sharedMemoryRing != null) {
+            try {
+                sharedMemoryRing.close();
+            } catch (IOException e) {
+                Log.warn("Failed to remove shared memory ring", e);
+            }
+            sharedMemoryRing = null;
+        }
+    }
+
+    private boolean readBinaryHeader(InputStream inputStream) {
+        try {
+            return BinaryIpcFormat.readHeader(inputStream);
+        } catch (IOException e) {
+            // Parser will report the problem when it fails to read the rest
+            Log.warn("Failed to negotiate binary protocol", e);
+            return false;
+        }
+    }
     
     @Override
     public void onUserMessage(Object data) {
         if (data instanceof FileEndReachedUserMessage) {
             // Ignore it - this means stream end was reached
+        } else if (data instanceof ResponseUserMessage) {
+            // Response to one of our requests, not interesting for anyone else
+            requestChannel.onResponse((ResponseUserMessage) data);
         } else {
             super.onUserMessage(data);
         }
@@ -125,7 +283,7 @@ public class FullTextDataRealtimeProvider extends Layer1ApiRelay {
     @Override
     public void onInstrumentAdded(String alias, InstrumentInfo instrumentInfo) {
         // Intercepting instrument additions and remembering minimal increment to use later
-        pipsMap.put(alias, instrumentInfo.pips);
+        priceFormatCaches.put(alias, new PriceFormatCache(instrumentInfo.pips));
         
         super.onInstrumentAdded(alias, instrumentInfo);
     }
@@ -134,30 +292,29 @@ public class FullTextDataRealtimeProvider extends Layer1ApiRelay {
     public String formatPrice(String alias, double price) {
         // Formatting could be moved into native code too
         // if advanced logic is needed.
-        // One way to do it would be assigning request some ID and then waiting
-        // for a response marked by the same ID to be printed by the executable
-        return PriceFormatHelper.formatPriceDefault(pipsMap.get(alias), price);
+        // It would have to be prefetched though: requests (see RequestChannel)
+        // are asynchronous, while this method has to return the result
+        // right away and is called often enough that a round trip would
+        // slow down the UI
+        return priceFormatCaches.get(alias).formatPrice(price);
     }
     
     /**
      * Send string to executable. We'll use primitive format just to simplify
      * parsing (generating JSON is much simpler than parsing it). It's a bit
      * inconsistent, but easier to use this way. Feel free to replace this by more
-     * advanced format if it suits your code better.
+     * advanced format if it suits your code better. Once binary protocol is
+     * negotiated same lines are sent as a {@link BinaryIpcFormat#FRAME_COMMAND}.
+     * Command is written asynchronously, see {@link CommandWriter}.
      */
     private void send(String... lines) {
-        try {
-            StringBuilder builder = new StringBuilder();
-            for (String line : lines) {
-                builder.append(line);
-                builder.append('\n');
-            }
-            byte[] data = builder.toString().getBytes(StandardCharsets.US_ASCII);
-            outputStream.write(data);
-            outputStream.flush();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        commandWriter.send(lines);
+    }
+
+    private void onCommandWriteFailed(IOException e) {
+        Log.error("Failed to send command to the adapter", e);
+        adminListeners.forEach(l -> l.onConnectionLost(DisconnectionReason.FATAL,
+                "Failed to send command to the adapter: " + e.getMessage()));
     }
 
     @Override
@@ -166,6 +323,7 @@ public class FullTextDataRealtimeProvider extends Layer1ApiRelay {
             send("close");
             try {
                 childProcess.waitFor();
+                commandWriter.close();
             } catch (InterruptedException e) {
                 throw new RuntimeException("Interrupted while waiting"
                         + " for the subprocess to terminate", e);
@@ -174,29 +332,88 @@ public class FullTextDataRealtimeProvider extends Layer1ApiRelay {
         if (parser != null) {
             parser.close();
         }
+        if (requestChannel != null) {
+            requestChannel.close();
+        }
+        closeSharedMemoryRing();
     }
     
     @Override
     public Layer1ApiProviderSupportedFeatures getSupportedFeatures() {
-        return new Layer1ApiProviderSupportedFeaturesBuilder().build();
+        Layer1ApiProviderSupportedFeaturesBuilder builder = new Layer1ApiProviderSupportedFeaturesBuilder();
+        if (IS_TRADING_ENABLED) {
+            // Executable decides what it can actually do and rejects the rest
+            builder.setTrading(true)
+                    .setSupportedOrderDurations(Arrays.asList(OrderDuration.GTC))
+                    .setSupportedStopOrders(Arrays.asList(OrderType.LMT, OrderType.MKT));
+        }
+        return builder.build();
     }
 
     @Override
     public void sendOrder(OrderSendParameters orderSendParameters) {
-        // This method will not be called because this adapter does not report
-        // trading capabilities
-        // It could be forwarded into the executable in a similar way, but it would be
-        // important to define a protocol to not lose types in the process
-        // (e.g. print types along with other data)
-        throw new UnsupportedOperationException("Not trading capable");
+        // This method will only be called if trading is enabled
+        // (see getSupportedFeatures). Order is forwarded into the executable,
+        // which reports it via OrderUpdated events, so the response only
+        // tells if it was accepted.
+        // instanceof is not recommended here because subclass, if it appears,
+        // will anyway mean an action that existing code can not process as
+        // expected
+        if (orderSendParameters.getClass() != SimpleOrderSendParameters.class) {
+            onOrderRequestFailed("This provider only supports simple orders");
+            return;
+        }
+
+        SimpleOrderSendParameters simpleParameters = (SimpleOrderSendParameters) orderSendParameters;
+        sendOrderRequest("sendOrder",
+                simpleParameters.alias,
+                Boolean.toString(simpleParameters.isBuy),
+                Integer.toString(simpleParameters.size),
+                Double.toString(simpleParameters.limitPrice),
+                Double.toString(simpleParameters.stopPrice),
+                String.valueOf(simpleParameters.clientId));
     }
 
     @Override
     public void updateOrder(OrderUpdateParameters orderUpdateParameters) {
-        // This method will not be called because this adapter does not report
-        // trading capabilities
-        // It could be forwarded into the executable in a similar way, but it would be
-        // (e.g. print types along with other data)
-        throw new UnsupportedOperationException("Not trading capable");
+        // Same as sendOrder - results are reported by the executable
+        if (orderUpdateParameters.getClass() == OrderCancelParameters.class) {
+            OrderCancelParameters orderCancelParameters = (OrderCancelParameters) orderUpdateParameters;
+            sendOrderRequest("cancelOrder", orderCancelParameters.orderId);
+        } else if (orderUpdateParameters.getClass() == OrderResizeParameters.class) {
+            OrderResizeParameters orderResizeParameters = (OrderResizeParameters) orderUpdateParameters;
+            sendOrderRequest("resizeOrder",
+                    orderResizeParameters.orderId,
+                    Integer.toString(orderResizeParameters.size));
+        } else if (orderUpdateParameters.getClass() == OrderMoveParameters.class) {
+            OrderMoveParameters orderMoveParameters = (OrderMoveParameters) orderUpdateParameters;
+            sendOrderRequest("moveOrder",
+                    orderMoveParameters.orderId,
+                    Double.toString(orderMoveParameters.limitPrice),
+                    Double.toString(orderMoveParameters.stopPrice));
+        } else {
+            throw new UnsupportedOperationException("Unsupported order type");
+        }
+    }
+
+    private void sendOrderRequest(String name, String... arguments) {
+        if (!isBinaryProtocol) {
+            // Text-only executables don't know about requests
+            onOrderRequestFailed("Executable does not support trading");
+            return;
+        }
+
+        requestChannel.request(name, arguments).whenComplete((result, error) -> {
+            if (error instanceof TimeoutException) {
+                onOrderRequestFailed("No response from the executable to " + name);
+            } else if (error instanceof RequestChannel.RequestFailedException) {
+                onOrderRequestFailed(error.getMessage());
+            }
+            // Cancelled requests mean the provider is closing, nothing to report
+        });
+    }
+
+    private void onOrderRequestFailed(String message) {
+        adminListeners.forEach(l -> l.onSystemTextMessage(message, SystemTextMessageType.ORDER_FAILURE));
     }
 }
@@ -0,0 +1,97 @@
+package velox.api.layer0.live.advanced;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import velox.api.layer0.common.ResponseUserMessage;
+
+/**
+ * <p>
+ * Requests to the executable of {@link FullTextDataRealtimeProvider} that
+ * expect a response. Each request gets a unique id, which the executable
+ * copies into its Response event, so any number of requests can be in flight
+ * at the same time and responses can come in any order.
+ * </p>
+ * <p>
+ * Request is sent as a "request" command: request id, request name, number of
+ * arguments and the arguments. Pending requests are kept in a concurrent map
+ * until the response arrives or the timeout expires, whichever is first, so
+ * neither sending nor receiving blocks.
+ * </p>
+ */
+class RequestChannel {
+
+    static final String REQUEST_COMMAND = "request";
+
+    /** Executable reported that it could not perform the request */
+    static class RequestFailedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        RequestFailedException(String message) {
+            super(message);
+        }
+    }
+
+    private final CommandWriter commandWriter;
+    private final long timeoutMillis;
+
+    private final AtomicLong lastRequestId = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<String>> pendingRequests = new ConcurrentHashMap<>();
+
+    RequestChannel(CommandWriter commandWriter, long timeoutMillis) {
+        this.commandWriter = commandWriter;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sends the request without waiting for the response
+     *
+     * @return completed with the result from the executable, or exceptionally
+     *         with {@link RequestFailedException}, TimeoutException or
+     *         CancellationException (channel was closed). Completed from the
+     *         thread that received the response (or detected the timeout), so
+     *         callbacks should not block.
+     */
+    public CompletableFuture<String> request(String name, String... arguments) {
+        long requestId = lastRequestId.incrementAndGet();
+        CompletableFuture<String> response = new CompletableFuture<>();
+        pendingRequests.put(requestId, response);
+        // Removing on any kind of completion, so timed out requests don't stay
+        response.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((result, error) -> pendingRequests.remove(requestId));
+
+        String[] lines = new String[arguments.length + 4];
+        lines[0] = REQUEST_COMMAND;
+        lines[1] = Long.toString(requestId);
+        lines[2] = name;
+        lines[3] = Integer.toString(arguments.length);
+        System.arraycopy(arguments, 0, lines, 4, arguments.length);
+        commandWriter.send(lines);
+
+        return response;
+    }
+
+    /**
+     * Completes the matching request. Responses to requests that already
+     * timed out are ignored.
+     */
+    public void onResponse(ResponseUserMessage response) {
+        CompletableFuture<String> pendingRequest = pendingRequests.remove(response.requestId);
+        if (pendingRequest == null) {
+            return;
+        }
+
+        if (response.error != null) {
+            pendingRequest.completeExceptionally(new RequestFailedException(response.error));
+        } else {
+            pendingRequest.complete(response.result);
+        }
+    }
+
+    /** Cancels all pending requests */
+    public void close() {
+        pendingRequests.values().forEach(pendingRequest -> pendingRequest.cancel(false));
+    }
+}
@@ -87,52 +87,57 @@ public class DemoTextDataReplayProvider extends ExternalReaderBaseProvider {
         if (line == null && play) {
             reportFileEnd();
         } else {
-            String[] tokens = line.split(";;;");
-            currentTime = Long.parseLong(tokens[0]);
-            String eventCode = tokens[1];
-            switch (eventCode) {
-            case "onInstrumentAdded": {
-                String alias = tokens[2];
-                InstrumentInfo instrumentInfo = gson.fromJson(tokens[3], InstrumentInfo.class);
-                instrumentListeners.forEach(
-                        l -> l.onInstrumentAdded(alias, instrumentInfo));
-                break;
-            }
-            case "onTrade": {
-                String alias = tokens[2];
-                double price = Double.parseDouble(tokens[3]);
-                int size = Integer.parseInt(tokens[4]);
-                TradeInfo tradeInfo = gson.fromJson(tokens[5], TradeInfo.class);
-                dataListeners.forEach(
-                        l -> l.onTrade(alias, price, size, tradeInfo));
-                break;
-            }
-            case "onDepth": {
-                String alias = tokens[2];
-                boolean isBid = Boolean.parseBoolean(tokens[3]);
-                int price = Integer.parseInt(tokens[4]);
-                int size = Integer.parseInt(tokens[5]);
-
-                dataListeners.forEach(
-                        l -> l.onDepth(alias, isBid, price, size));
-                break;
-            }
-            case "onUserDataUserMessage": {
-                String tag = tokens[2];
-                String alias = tokens[3];
-                byte[] data = tokens[4].getBytes();
-
-                adminListeners.forEach(
-                        l -> l.onUserMessage(
-                                new UserDataUserMessage(tag, alias, data)
-                        ));
-                break;
-            }
+            readLine(line);
+        }
+    }
 
-            default:
-                reportFileEnd();
-                throw new RuntimeException("Unknown event code " + eventCode);
-            }
+    /** Parses and dispatches a single line, accessible for benchmarks */
+    void readLine(String line) {
+        String[] tokens = line.split(";;;");
+        currentTime = Long.parseLong(tokens[0]);
+        String eventCode = tokens[1];
+        switch (eventCode) {
+        case "onInstrumentAdded": {
+            String alias = tokens[2];
+            InstrumentInfo instrumentInfo = gson.fromJson(tokens[3], InstrumentInfo.class);
+            instrumentListeners.forEach(
+                    l -> l.onInstrumentAdded(alias, instrumentInfo));
+            break;
+        }
+        case "onTrade": {
+            String alias = tokens[2];
+            double price = Double.parseDouble(tokens[3]);
+            int size = Integer.parseInt(tokens[4]);
+            TradeInfo tradeInfo = gson.fromJson(tokens[5], TradeInfo.class);
+            dataListeners.forEach(
+                    l -> l.onTrade(alias, price, size, tradeInfo));
+            break;
+        }
+        case "onDepth": {
+            String alias = tokens[2];
+            boolean isBid = Boolean.parseBoolean(tokens[3]);
+            int price = Integer.parseInt(tokens[4]);
+            int size = Integer.parseInt(tokens[5]);
+
+            dataListeners.forEach(
+                    l -> l.onDepth(alias, isBid, price, size));
+            break;
+        }
+        case "onUserDataUserMessage": {
+            String tag = tokens[2];
+            String alias = tokens[3];
+            byte[] data = tokens[4].getBytes();
+
+            adminListeners.forEach(
+                    l -> l.onUserMessage(
+                            new UserDataUserMessage(tag, alias, data)
+                    ));
+            break;
+        }
+
+        default:
+            reportFileEnd();
+            throw new RuntimeException("Unknown event code " + eventCode);
         }
     }
 
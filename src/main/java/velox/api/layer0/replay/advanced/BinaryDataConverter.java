@@ -0,0 +1,218 @@
+package velox.api.layer0.replay.advanced;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+
+import com.google.gson.Gson;
+
+import velox.api.layer0.common.TextStreamParser;
+import velox.api.layer0.data.FileEndReachedUserMessage;
+import velox.api.layer0.data.FileNotSupportedUserMessage;
+import velox.api.layer0.replay.DemoTextDataReplayProvider;
+import velox.api.layer1.common.ListenableHelper;
+import velox.api.layer1.data.InstrumentInfo;
+import velox.api.layer1.data.TradeInfo;
+import velox.api.layer1.layers.Layer1ApiUpstreamRelay;
+
+/**
+ * <p>
+ * Converts files readable by {@link FullTextDataReplayProvider}
+ * (.bmtext/.bmtext.gz) and {@link DemoTextDataReplayProvider}
+ * (.simpleformat.txt) into the binary format read by
+ * {@link BinaryDataReplayProvider}.
+ * </p>
+ * <p>
+ * Usage: <code>BinaryDataConverter &lt;input file&gt; [output file]</code>. By
+ * default output is written next to the input with .bmbin extension.
+ * </p>
+ * <p>
+ * Only market data, instrument and user data events are converted, other
+ * events (orders, indicators, etc) are skipped.
+ * </p>
+ */
+public class BinaryDataConverter {
+
+    private final Gson gson = new Gson();
+
+    private final BinaryDataWriter writer;
+
+    private long eventsWritten = 0;
+    private long eventsSkipped = 0;
+
+    private BinaryDataConverter(BinaryDataWriter writer) {
+        this.writer = writer;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: BinaryDataConverter <input file> [output file]");
+            return;
+        }
+        File input = new File(args[0]);
+        File output = new File(args.length == 2 ? args[1] : getDefaultOutputName(input.getPath()));
+
+        convert(input, output);
+    }
+
+    private static String getDefaultOutputName(String inputName) {
+        for (String extension : new String[] {".bmtext.gz", ".bmtext", ".simpleformat.txt"}) {
+            if (inputName.endsWith(extension)) {
+                return inputName.substring(0, inputName.length() - extension.length())
+                        + BinaryDataFormat.FILE_EXTENSION;
+            }
+        }
+        return inputName + BinaryDataFormat.FILE_EXTENSION;
+    }
+
+    public static void convert(File input, File output) throws Exception {
+        String inputName = input.getName();
+        try (BinaryDataWriter writer = new BinaryDataWriter(new FileOutputStream(output))) {
+            BinaryDataConverter converter = new BinaryDataConverter(writer);
+            if (inputName.endsWith(".bmtext") || inputName.endsWith(".bmtext.gz")) {
+                converter.convertFullText(input, inputName.endsWith(".gz"));
+            } else if (inputName.endsWith(".simpleformat.txt")) {
+                converter.convertSimpleFormat(input);
+            } else {
+                throw new IOException("File extension not supported: " + inputName);
+            }
+            System.out.println("Events written: " + converter.eventsWritten
+                    + ", events skipped: " + converter.eventsSkipped);
+        }
+    }
+
+    private void convertFullText(File input, boolean isGzipped) throws Exception {
+        InputStream inputStream = new FileInputStream(input);
+        if (isGzipped) {
+            inputStream = new GZIPInputStream(inputStream);
+        }
+
+        TextStreamParser parser = new TextStreamParser();
+        TextStreamWriter textStreamWriter = new TextStreamWriter(parser);
+        ListenableHelper.addListeners(parser, textStreamWriter);
+
+        parser.start(inputStream);
+        textStreamWriter.fileEndLatch.await();
+        parser.close();
+
+        if (textStreamWriter.error != null) {
+            throw textStreamWriter.error;
+        }
+    }
+
+    /**
+     * Receives events from {@link TextStreamParser} and writes ones that are
+     * supported by binary format
+     */
+    private class TextStreamWriter extends Layer1ApiUpstreamRelay {
+        private final TextStreamParser parser;
+        private final CountDownLatch fileEndLatch = new CountDownLatch(1);
+        private IOException error;
+
+        public TextStreamWriter(TextStreamParser parser) {
+            this.parser = parser;
+        }
+
+        @Override
+        public void onInstrumentAdded(String alias, InstrumentInfo instrumentInfo) {
+            write(() -> writer.writeInstrumentAdded(parser.getCurrentTime(), alias, instrumentInfo));
+        }
+
+        @Override
+        public void onInstrumentRemoved(String alias) {
+            write(() -> writer.writeInstrumentRemoved(parser.getCurrentTime(), alias));
+        }
+
+        @Override
+        public void onDepth(String alias, boolean isBid, int price, int size) {
+            write(() -> writer.writeDepth(parser.getCurrentTime(), alias, isBid, price, size));
+        }
+
+        @Override
+        public void onTrade(String alias, double price, int size, TradeInfo tradeInfo) {
+            write(() -> writer.writeTrade(parser.getCurrentTime(), alias, price, size, tradeInfo));
+        }
+
+        @Override
+        public void onMboSend(String alias, String orderId, boolean isBid, int price, int size) {
+            write(() -> writer.writeMboSend(parser.getCurrentTime(), alias, orderId, isBid, price, size));
+        }
+
+        @Override
+        public void onMboReplace(String alias, String orderId, int price, int size) {
+            write(() -> writer.writeMboReplace(parser.getCurrentTime(), alias, orderId, price, size));
+        }
+
+        @Override
+        public void onMboCancel(String alias, String orderId) {
+            write(() -> writer.writeMboCancel(parser.getCurrentTime(), alias, orderId));
+        }
+
+        @Override
+        public void onUserMessage(Object data) {
+            if (data instanceof FileEndReachedUserMessage) {
+                fileEndLatch.countDown();
+            } else if (data instanceof FileNotSupportedUserMessage) {
+                error = new IOException("Failed to read the file");
+                fileEndLatch.countDown();
+            } else {
+                ++eventsSkipped;
+            }
+        }
+
+        private void write(WriteAction action) {
+            if (error != null) {
+                return;
+            }
+            try {
+                action.write();
+                ++eventsWritten;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    private interface WriteAction {
+        void write() throws IOException;
+    }
+
+    /**
+     * Same format as read by {@link DemoTextDataReplayProvider}
+     */
+    private void convertSimpleFormat(File input) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(input))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split(";;;");
+                long time = Long.parseLong(tokens[0]);
+                String eventCode = tokens[1];
+                switch (eventCode) {
+                case "onInstrumentAdded":
+                    writer.writeInstrumentAdded(time, tokens[2], gson.fromJson(tokens[3], InstrumentInfo.class));
+                    break;
+                case "onTrade":
+                    writer.writeTrade(time, tokens[2], Double.parseDouble(tokens[3]), Integer.parseInt(tokens[4]),
+                            gson.fromJson(tokens[5], TradeInfo.class));
+                    break;
+                case "onDepth":
+                    writer.writeDepth(time, tokens[2], Boolean.parseBoolean(tokens[3]),
+                            Integer.parseInt(tokens[4]), Integer.parseInt(tokens[5]));
+                    break;
+                case "onUserDataUserMessage":
+                    writer.writeUserData(time, tokens[2], tokens[3], tokens[4].getBytes());
+                    break;
+                default:
+                    throw new IOException("Unknown event code " + eventCode);
+                }
+                ++eventsWritten;
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package velox.api.layer0.replay.advanced;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>
+ * Constants of the compact binary format read by
+ * {@link BinaryDataReplayProvider} and written by {@link BinaryDataWriter}.
+ * </p>
+ * <p>
+ * File starts with {@link #MAGIC} followed by {@link #VERSION} (int). Then
+ * records follow until the end of the file. Each record is:
+ * <ul>
+ * <li>tag (1 byte, one of RECORD_* constants)</li>
+ * <li>time delta from previous record (zigzag varint, nanoseconds; first
+ * record is relative to 0)</li>
+ * <li>payload, depends on tag</li>
+ * </ul>
+ * Aliases are not repeated in every record: {@link #RECORD_ALIAS} assigns an
+ * id (varint) to an alias once and later records only reference the id.
+ * Prices and sizes are fixed-width big-endian ints (trade price is a double),
+ * strings are varint length + 1 followed by UTF-8 bytes (0 length means null).
+ * </p>
+ */
+public final class BinaryDataFormat {
+
+    public static final String FILE_EXTENSION = ".bmbin";
+
+    public static final byte[] MAGIC = "BMBIN".getBytes(StandardCharsets.US_ASCII);
+    public static final int VERSION = 1;
+
+    /** Payload: alias id, alias string */
+    public static final byte RECORD_ALIAS = 1;
+    /** Payload: alias id, {@link velox.api.layer1.data.InstrumentInfo} as JSON string */
+    public static final byte RECORD_INSTRUMENT_ADDED = 2;
+    /** Payload: alias id */
+    public static final byte RECORD_INSTRUMENT_REMOVED = 3;
+    /** Payload: alias id, price (int), size (int) */
+    public static final byte RECORD_DEPTH_BID = 4;
+    /** Payload: alias id, price (int), size (int) */
+    public static final byte RECORD_DEPTH_ASK = 5;
+    /** Payload: alias id, price (double), size (int), trade flags (byte) */
+    public static final byte RECORD_TRADE = 6;
+    /** Payload: alias id, order id, price (int), size (int) */
+    public static final byte RECORD_MBO_SEND_BID = 7;
+    /** Payload: alias id, order id, price (int), size (int) */
+    public static final byte RECORD_MBO_SEND_ASK = 8;
+    /** Payload: alias id, order id, price (int), size (int) */
+    public static final byte RECORD_MBO_REPLACE = 9;
+    /** Payload: alias id, order id */
+    public static final byte RECORD_MBO_CANCEL = 10;
+    /** Payload: tag string, alias string, data length (varint), data */
+    public static final byte RECORD_USER_DATA = 11;
+
+    /** Trade flags. If {@link #TRADE_HAS_INFO} isn't set, trade info is null */
+    public static final int TRADE_HAS_INFO = 1;
+    public static final int TRADE_IS_OTC = 2;
+    public static final int TRADE_IS_BID_AGGRESSOR = 4;
+    public static final int TRADE_IS_EXECUTION_START = 8;
+    public static final int TRADE_IS_EXECUTION_END = 16;
+
+    /**
+     * Upper bound of a single record size. Reader relies on it to know when the
+     * next part of the file has to be mapped.
+     */
+    public static final int MAX_RECORD_SIZE = 1 << 20;
+
+    private BinaryDataFormat() {
+    }
+}
@@ -0,0 +1,305 @@
+package velox.api.layer0.replay.advanced;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.gson.Gson;
+
+import velox.api.layer0.annotations.Layer0ReplayModule;
+import velox.api.layer0.common.DataEventBatch;
+import velox.api.layer0.data.FileEndReachedUserMessage;
+import velox.api.layer0.data.FileNotSupportedUserMessage;
+import velox.api.layer0.data.ReadFileLoginData;
+import velox.api.layer0.replay.ExternalReaderBaseProvider;
+import velox.api.layer1.annotations.Layer1ApiVersion;
+import velox.api.layer1.annotations.Layer1ApiVersionValue;
+import velox.api.layer1.data.InstrumentInfo;
+import velox.api.layer1.data.LoginData;
+import velox.api.layer1.data.TradeInfo;
+import velox.api.layer1.reading.UserDataUserMessage;
+
+/**
+ * <p>
+ * Replays files in the binary format described in {@link BinaryDataFormat}.
+ * Such files can be produced from text formats with
+ * {@link BinaryDataConverter}.
+ * </p>
+ * <p>
+ * File is memory-mapped, so data is decoded right from the page cache without
+ * any intermediate copying or parsing of text.
+ * </p>
+ * <p>
+ * Consecutive depth updates and trades with the same time are delivered to
+ * listeners as a {@link DataEventBatch}.
+ * </p>
+ */
+@Layer1ApiVersion(Layer1ApiVersionValue.VERSION2)
+@Layer0ReplayModule
+public class BinaryDataReplayProvider extends ExternalReaderBaseProvider {
+
+    /** How much of the file is mapped at once */
+    private static final long MAPPING_SIZE = 1L << 30;
+
+    private final Gson gson = new Gson();
+
+    private Thread readerThread;
+    private long currentTime = 0;
+
+    private boolean play = true;
+
+    private FileChannel channel;
+    private long fileSize;
+    /** Position of {@link #buffer} start in the file */
+    private long mappingStart;
+    private MappedByteBuffer buffer;
+
+    /** Aliases by id, see {@link BinaryDataFormat#RECORD_ALIAS} */
+    private String[] aliases = new String[16];
+
+    /**
+     * Trade flags only have 5 meaningful bits, so all possible trade infos are
+     * cached instead of creating one per trade
+     */
+    private final TradeInfo[] tradeInfos = new TradeInfo[32];
+
+    private final DataEventBatch batch = new DataEventBatch();
+
+    @Override
+    public void login(LoginData loginData) {
+        ReadFileLoginData fileData = (ReadFileLoginData) loginData;
+
+        try {
+            File file = fileData.file;
+            if (!file.getName().endsWith(BinaryDataFormat.FILE_EXTENSION)) {
+                throw new IOException("File extension not supported");
+            } else {
+                channel = new RandomAccessFile(file, "r").getChannel();
+                fileSize = channel.size();
+                map(0);
+                readHeader();
+
+                // Reading one record to guarantee that when we exit this method
+                // getCurrentTime will return meaningful result.
+                readRecord();
+
+                readerThread = new Thread(this::read);
+                readerThread.start();
+            }
+        } catch (@SuppressWarnings("unused") IOException e) {
+            adminListeners.forEach(listener -> listener.onUserMessage(new FileNotSupportedUserMessage()));
+        }
+    }
+
+    private void readHeader() throws IOException {
+        if (buffer.remaining() < BinaryDataFormat.MAGIC.length + Integer.BYTES) {
+            throw new IOException("File is too short");
+        }
+        byte[] magic = new byte[BinaryDataFormat.MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, BinaryDataFormat.MAGIC)) {
+            throw new IOException("Not a binary data file");
+        }
+        int version = buffer.getInt();
+        if (version != BinaryDataFormat.VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+    }
+
+    private void read() {
+        try {
+            while (!Thread.interrupted() && play) {
+                readRecord();
+            }
+        } catch (@SuppressWarnings("unused") IOException | BufferUnderflowException e) {
+            // Underflow means that the last record is truncated
+            reportFileEnd();
+        }
+    }
+
+    public void reportFileEnd() {
+        batch.flush(dataListeners);
+        adminListeners.forEach(listener -> listener.onUserMessage(new FileEndReachedUserMessage()));
+        play = false;
+    }
+
+    private void map(long position) throws IOException {
+        mappingStart = position;
+        long size = Math.min(MAPPING_SIZE, fileSize - position);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    private void readRecord() throws IOException {
+        // Record might continue past the mapped region - map the next part
+        // while we are still at the record boundary
+        long mappingEnd = mappingStart + buffer.limit();
+        if (buffer.remaining() < BinaryDataFormat.MAX_RECORD_SIZE && mappingEnd < fileSize) {
+            map(mappingStart + buffer.position());
+        }
+
+        if (!buffer.hasRemaining()) {
+            if (play) {
+                reportFileEnd();
+            }
+            return;
+        }
+
+        byte tag = buffer.get();
+        long delta = readVarLong();
+        long time = currentTime + ((delta >>> 1) ^ -(delta & 1));
+
+        // Batch has to be delivered before time changes, since listeners
+        // might query it. Other events must not overtake batched ones either.
+        boolean isBatchable = tag == BinaryDataFormat.RECORD_DEPTH_BID
+                || tag == BinaryDataFormat.RECORD_DEPTH_ASK
+                || tag == BinaryDataFormat.RECORD_TRADE;
+        if (time != currentTime || !isBatchable && tag != BinaryDataFormat.RECORD_ALIAS) {
+            batch.flush(dataListeners);
+        }
+        currentTime = time;
+
+        switch (tag) {
+        case BinaryDataFormat.RECORD_ALIAS: {
+            int aliasId = (int) readVarLong();
+            if (aliasId >= aliases.length) {
+                aliases = Arrays.copyOf(aliases, Math.max(aliases.length * 2, aliasId + 1));
+            }
+            aliases[aliasId] = readString();
+            break;
+        }
+        case BinaryDataFormat.RECORD_INSTRUMENT_ADDED: {
+            String alias = readAlias();
+            InstrumentInfo instrumentInfo = gson.fromJson(readString(), InstrumentInfo.class);
+            instrumentListeners.forEach(l -> l.onInstrumentAdded(alias, instrumentInfo));
+            break;
+        }
+        case BinaryDataFormat.RECORD_INSTRUMENT_REMOVED: {
+            String alias = readAlias();
+            instrumentListeners.forEach(l -> l.onInstrumentRemoved(alias));
+            break;
+        }
+        case BinaryDataFormat.RECORD_DEPTH_BID:
+        case BinaryDataFormat.RECORD_DEPTH_ASK: {
+            boolean isBid = tag == BinaryDataFormat.RECORD_DEPTH_BID;
+            String alias = readAlias();
+            int price = buffer.getInt();
+            int size = buffer.getInt();
+            batch.addDepth(alias, isBid, price, size);
+            break;
+        }
+        case BinaryDataFormat.RECORD_TRADE: {
+            String alias = readAlias();
+            double price = buffer.getDouble();
+            int size = buffer.getInt();
+            TradeInfo tradeInfo = getTradeInfo(buffer.get());
+            batch.addTrade(alias, price, size, tradeInfo);
+            break;
+        }
+        case BinaryDataFormat.RECORD_MBO_SEND_BID:
+        case BinaryDataFormat.RECORD_MBO_SEND_ASK: {
+            boolean isBid = tag == BinaryDataFormat.RECORD_MBO_SEND_BID;
+            String alias = readAlias();
+            String orderId = readString();
+            int price = buffer.getInt();
+            int size = buffer.getInt();
+            dataListeners.forEach(l -> l.onMboSend(alias, orderId, isBid, price, size));
+            break;
+        }
+        case BinaryDataFormat.RECORD_MBO_REPLACE: {
+            String alias = readAlias();
+            String orderId = readString();
+            int price = buffer.getInt();
+            int size = buffer.getInt();
+            dataListeners.forEach(l -> l.onMboReplace(alias, orderId, price, size));
+            break;
+        }
+        case BinaryDataFormat.RECORD_MBO_CANCEL: {
+            String alias = readAlias();
+            String orderId = readString();
+            dataListeners.forEach(l -> l.onMboCancel(alias, orderId));
+            break;
+        }
+        case BinaryDataFormat.RECORD_USER_DATA: {
+            String userDataTag = readString();
+            String alias = readString();
+            byte[] data = new byte[(int) readVarLong()];
+            buffer.get(data);
+            adminListeners.forEach(l -> l.onUserMessage(new UserDataUserMessage(userDataTag, alias, data)));
+            break;
+        }
+        default:
+            reportFileEnd();
+            throw new RuntimeException("Unknown record tag " + tag);
+        }
+    }
+
+    private TradeInfo getTradeInfo(int flags) {
+        if ((flags & BinaryDataFormat.TRADE_HAS_INFO) == 0) {
+            return null;
+        }
+        TradeInfo tradeInfo = tradeInfos[flags];
+        if (tradeInfo == null) {
+            tradeInfo = new TradeInfo(
+                    (flags & BinaryDataFormat.TRADE_IS_OTC) != 0,
+                    (flags & BinaryDataFormat.TRADE_IS_BID_AGGRESSOR) != 0,
+                    (flags & BinaryDataFormat.TRADE_IS_EXECUTION_START) != 0,
+                    (flags & BinaryDataFormat.TRADE_IS_EXECUTION_END) != 0);
+            tradeInfos[flags] = tradeInfo;
+        }
+        return tradeInfo;
+    }
+
+    private String readAlias() {
+        return aliases[(int) readVarLong()];
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private String readString() {
+        int length = (int) readVarLong() - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long getCurrentTime() {
+        return currentTime;
+    }
+
+    @Override
+    public String getSource() {
+        // String identifying where data came from.
+        // For example you can use that later in your indicator.
+        return "binary data";
+    }
+
+    @Override
+    public void close() {
+        readerThread.interrupt();
+        try {
+            channel.close();
+        } catch (@SuppressWarnings("unused") IOException e) {
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+package velox.api.layer0.replay.advanced;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.Gson;
+
+import velox.api.layer1.data.InstrumentInfo;
+import velox.api.layer1.data.TradeInfo;
+
+/**
+ * Writes events in the format described in {@link BinaryDataFormat}. Methods
+ * should be called in the order events happened.
+ */
+public class BinaryDataWriter implements Closeable {
+
+    private final Gson gson = new Gson();
+
+    private final DataOutputStream outputStream;
+
+    private final Map<String, Integer> aliasIds = new HashMap<>();
+
+    private long previousTime = 0;
+
+    public BinaryDataWriter(OutputStream outputStream) throws IOException {
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+        this.outputStream.write(BinaryDataFormat.MAGIC);
+        this.outputStream.writeInt(BinaryDataFormat.VERSION);
+    }
+
+    public void writeInstrumentAdded(long time, String alias, InstrumentInfo instrumentInfo) throws IOException {
+        int aliasId = getAliasId(time, alias);
+        writeHeader(BinaryDataFormat.RECORD_INSTRUMENT_ADDED, time);
+        writeVarLong(aliasId);
+        writeString(gson.toJson(instrumentInfo));
+    }
+
+    public void writeInstrumentRemoved(long time, String alias) throws IOException {
+        int aliasId = getAliasId(time, alias);
+        writeHeader(BinaryDataFormat.RECORD_INSTRUMENT_REMOVED, time);
+        writeVarLong(aliasId);
+    }
+
+    public void writeDepth(long time, String alias, boolean isBid, int price, int size) throws IOException {
+        int aliasId = getAliasId(time, alias);
+        writeHeader(isBid ? BinaryDataFormat.RECORD_DEPTH_BID : BinaryDataFormat.RECORD_DEPTH_ASK, time);
+        writeVarLong(aliasId);
+        outputStream.writeInt(price);
+        outputStream.writeInt(size);
+    }
+
+    public void writeTrade(long time, String alias, double price, int size, TradeInfo tradeInfo) throws IOException {
+        int aliasId = getAliasId(time, alias);
+        writeHeader(BinaryDataFormat.RECORD_TRADE, time);
+        writeVarLong(aliasId);
+        outputStream.writeDouble(price);
+        outputStream.writeInt(size);
+
+        int flags = 0;
+        if (tradeInfo != null) {
+            flags |= BinaryDataFormat.TRADE_HAS_INFO;
+            flags |= tradeInfo.isOtc ? BinaryDataFormat.TRADE_IS_OTC : 0;
+            flags |= tradeInfo.isBidAggressor ? BinaryDataFormat.TRADE_IS_BID_AGGRESSOR : 0;
+            flags |= tradeInfo.isExecutionStart ? BinaryDataFormat.TRADE_IS_EXECUTION_START : 0;
+            flags |= tradeInfo.isExecutionEnd ? BinaryDataFormat.TRADE_IS_EXECUTION_END : 0;
+        }
+        outputStream.writeByte(flags);
+    }
+
+    public void writeMboSend(long time, String alias, String orderId, boolean isBid, int price, int size)
+            throws IOException {
+        int aliasId = getAliasId(time, alias);
+        writeHeader(isBid ? BinaryDataFormat.RECORD_MBO_SEND_BID : BinaryDataFormat.RECORD_MBO_SEND_ASK, time);
+        writeVarLong(aliasId);
+        writeString(orderId);
+        outputStream.writeInt(price);
+        outputStream.writeInt(size);
+    }
+
+    public void writeMboReplace(long time, String alias, String orderId, int price, int size) throws IOException {
+        int aliasId = getAliasId(time, alias);
+        writeHeader(BinaryDataFormat.RECORD_MBO_REPLACE, time);
+        writeVarLong(aliasId);
+        writeString(orderId);
+        outputStream.writeInt(price);
+        outputStream.writeInt(size);
+    }
+
+    public void writeMboCancel(long time, String alias, String orderId) throws IOException {
+        int aliasId = getAliasId(time, alias);
+        writeHeader(BinaryDataFormat.RECORD_MBO_CANCEL, time);
+        writeVarLong(aliasId);
+        writeString(orderId);
+    }
+
+    public void writeUserData(long time, String tag, String alias, byte[] data) throws IOException {
+        byte[] tagBytes = toBytes(tag);
+        byte[] aliasBytes = toBytes(alias);
+        // Header and length prefixes can't take more than 64 bytes
+        long recordSize = 64L + data.length
+                + (tagBytes == null ? 0 : tagBytes.length)
+                + (aliasBytes == null ? 0 : aliasBytes.length);
+        if (recordSize > BinaryDataFormat.MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("User data is too large: " + data.length + " bytes");
+        }
+
+        writeHeader(BinaryDataFormat.RECORD_USER_DATA, time);
+        writeBytes(tagBytes);
+        writeBytes(aliasBytes);
+        writeVarLong(data.length);
+        outputStream.write(data);
+    }
+
+    private int getAliasId(long time, String alias) throws IOException {
+        Integer aliasId = aliasIds.get(alias);
+        if (aliasId == null) {
+            aliasId = aliasIds.size();
+            aliasIds.put(alias, aliasId);
+
+            writeHeader(BinaryDataFormat.RECORD_ALIAS, time);
+            writeVarLong(aliasId);
+            writeString(alias);
+        }
+        return aliasId;
+    }
+
+    private void writeHeader(byte tag, long time) throws IOException {
+        outputStream.writeByte(tag);
+        long delta = time - previousTime;
+        // Zigzag encoding, so that small negative deltas are also short
+        writeVarLong((delta << 1) ^ (delta >> 63));
+        previousTime = time;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            outputStream.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.writeByte((int) value);
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = toBytes(s);
+        if (bytes != null && bytes.length > BinaryDataFormat.MAX_RECORD_SIZE / 4) {
+            throw new IllegalArgumentException("String is too long: " + bytes.length + " bytes");
+        }
+        writeBytes(bytes);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            writeVarLong(0);
+        } else {
+            writeVarLong(bytes.length + 1);
+            outputStream.write(bytes);
+        }
+    }
+
+    private static byte[] toBytes(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        outputStream.close();
+    }
+}
@@ -52,6 +52,11 @@ public class DemoAdvancedReplayProvider extends ExternalReaderBaseProvider imple
             } else {
 
                 handler = new HandlerBookmapIndicators(this, fileData.file.getAbsolutePath());
+                // Parsing is the slowest part for large files, so it's spread
+                // across cores. Events are still delivered in file order.
+                handler.setParallelParsing(true);
+                // Indicators are only computed on the first replay of the file
+                handler.setIndicatorCache(IndicatorCache.open(fileData.file, handler.getParametersKey()));
 
                 readerThread = new Thread(this::read);
                 readerThread.start();
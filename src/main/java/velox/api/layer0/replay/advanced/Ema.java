@@ -2,7 +2,9 @@ package velox.api.layer0.replay.advanced;
 
 public class Ema {
     private double value = 0;
-    private Long nanosecondsPrev = null;
+    private long nanosecondsPrev;
+    /** False until the first call, {@link #nanosecondsPrev} is undefined before that */
+    private boolean isStarted = false;
     private final double halfLifeFactor;
 
     public Ema(double halfLifeNanoseconds) {
@@ -10,8 +12,9 @@ public class Ema {
     }
 
     public void onUpdate(long nanoseconds, double x) {
-        if (nanosecondsPrev == null) {
+        if (!isStarted) {
             nanosecondsPrev = nanoseconds;
+            isStarted = true;
         }
         value = getValue(nanoseconds);
         value += x;
@@ -19,8 +22,9 @@ public class Ema {
     }
 
     public double getValue(long nanoseconds) {
-        if (nanosecondsPrev == null) {
+        if (!isStarted) {
             nanosecondsPrev = nanoseconds;
+            isStarted = true;
         }
         long dt = nanoseconds - nanosecondsPrev;
         return value * Math.exp(dt * halfLifeFactor);
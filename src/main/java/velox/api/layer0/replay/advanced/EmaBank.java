@@ -0,0 +1,103 @@
+package velox.api.layer0.replay.advanced;
+
+/**
+ * <p>
+ * Several {@link Ema}s of the same series with different half-lives. Values
+ * and decay factors are kept in primitive arrays and there is a single
+ * timestamp, so an update is one multiply-add loop over all horizons instead
+ * of a separate object (and exp call) per horizon.
+ * </p>
+ * <p>
+ * Decay factors depend only on the time since the previous update, so those
+ * are cached for the last time delta. Events with the same timestamp (dt = 0)
+ * and regular time steps don't call exp at all.
+ * </p>
+ * <p>
+ * Results are the same as of separate {@link Ema}s with the same half-lives.
+ * Not thread safe.
+ * </p>
+ */
+public class EmaBank {
+    private final double[] halfLifeFactors;
+    private final double[] values;
+
+    private long nanosecondsPrev;
+    /** False until the first call, {@link #nanosecondsPrev} is undefined before that */
+    private boolean isStarted = false;
+
+    /** Decay factors for {@link #cachedDt} */
+    private final double[] cachedDecays;
+    private long cachedDt = 0;
+
+    public EmaBank(double[] halfLivesNanoseconds) {
+        int n = halfLivesNanoseconds.length;
+        halfLifeFactors = new double[n];
+        values = new double[n];
+        cachedDecays = new double[n];
+        for (int i = 0; i < n; i++) {
+            halfLifeFactors[i] = -Math.log(2) / halfLivesNanoseconds[i];
+            // Matches cachedDt = 0
+            cachedDecays[i] = 1;
+        }
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Decays all horizons to the provided time and adds x to each of them
+     */
+    public void onUpdate(long nanoseconds, double x) {
+        start(nanoseconds);
+        double[] decays = getDecays(nanoseconds - nanosecondsPrev);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = values[i] * decays[i] + x;
+        }
+        nanosecondsPrev = nanoseconds;
+    }
+
+    /**
+     * Value of a single horizon at the provided time, same as
+     * {@link Ema#getValue(long)}
+     */
+    public double getValue(long nanoseconds, int index) {
+        start(nanoseconds);
+        long dt = nanoseconds - nanosecondsPrev;
+        if (dt == cachedDt) {
+            return values[index] * cachedDecays[index];
+        }
+        // Not updating the cache for a single horizon
+        return values[index] * Math.exp(dt * halfLifeFactors[index]);
+    }
+
+    /**
+     * Values of all horizons at the provided time
+     *
+     * @param result array of at least {@link #size()} elements
+     */
+    public void getValues(long nanoseconds, double[] result) {
+        start(nanoseconds);
+        double[] decays = getDecays(nanoseconds - nanosecondsPrev);
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i] * decays[i];
+        }
+    }
+
+    private void start(long nanoseconds) {
+        if (!isStarted) {
+            nanosecondsPrev = nanoseconds;
+            isStarted = true;
+        }
+    }
+
+    private double[] getDecays(long dt) {
+        if (dt != cachedDt) {
+            for (int i = 0; i < cachedDecays.length; i++) {
+                cachedDecays[i] = Math.exp(dt * halfLifeFactors[i]);
+            }
+            cachedDt = dt;
+        }
+        return cachedDecays;
+    }
+}
@@ -5,9 +5,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import velox.api.layer0.annotations.Layer0ReplayModule;
+import velox.api.layer0.common.BmtextSeekIndex;
 import velox.api.layer0.common.TextStreamParser;
 import velox.api.layer0.data.FileNotSupportedUserMessage;
 import velox.api.layer0.data.ReadFileLoginData;
@@ -33,11 +37,24 @@ import velox.api.layer1.layers.Layer1ApiRelay;
  * <p>
  * You can download sample file <a href="https://bookmap.com/shared/feeds/FullTextDataReplayProviderDemo-1.bmtext.gz">here</a>
  * </p>
+ * <p>
+ * Replay can be started from the middle of the file by setting
+ * {@value #START_TIME_PROPERTY} system property to epoch nanoseconds or an
+ * ISO-8601 instant (e.g. 2020-01-01T10:00:00Z). Replay then starts from the
+ * closest checkpoint of {@link BmtextSeekIndex} before that time. Index is
+ * built on first such request, which takes about as long as reading the file.
+ * </p>
+ * <p>
+ * Indicators of {@link IndicatorRelay} are computed while replaying if
+ * {@value IndicatorRelay#ENABLED_PROPERTY} system property is set to true.
+ * </p>
  */
 @Layer1ApiVersion(Layer1ApiVersionValue.VERSION2)
 @Layer0ReplayModule
 public class FullTextDataReplayProvider extends Layer1ApiRelay {
 
+    public static final String START_TIME_PROPERTY = "velox.api.layer0.bmtext.startTime";
+
     TextStreamParser parser;
 
     public FullTextDataReplayProvider() {
@@ -58,19 +75,50 @@ public class FullTextDataReplayProvider extends Layer1ApiRelay {
             } else {
 
                 parser = new TextStreamParser();
-                ListenableHelper.addListeners(parser, this);
+                IndicatorRelay indicatorRelay = IndicatorRelay.fromSystemProperties(parser::getCurrentTime);
+                if (indicatorRelay != null) {
+                    ListenableHelper.addListeners(parser, indicatorRelay);
+                    ListenableHelper.addListeners(indicatorRelay, this);
+                } else {
+                    ListenableHelper.addListeners(parser, this);
+                }
                 
-                InputStream inputStream = new FileInputStream(file);
-                if (isGzippedBmtext) {
-                    inputStream = new GZIPInputStream(inputStream);
+                InputStream inputStream;
+                Long startTime = getStartTime();
+                if (startTime != null) {
+                    inputStream = BmtextSeekIndex.openFrom(file, startTime);
+                } else {
+                    inputStream = new FileInputStream(file);
+                    if (isGzippedBmtext) {
+                        inputStream = new GZIPInputStream(inputStream);
+                    }
                 }
-                parser.start(inputStream);
+                // Inflating, decoding and dispatching are done in different
+                // threads, which matters for large files
+                parser.startPipelined(inputStream);
             }
         } catch (@SuppressWarnings("unused") IOException e) {
             adminListeners.forEach(listener -> listener.onUserMessage(new FileNotSupportedUserMessage()));
         }
     }
     
+    private static Long getStartTime() throws IOException {
+        String value = System.getProperty(START_TIME_PROPERTY);
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (@SuppressWarnings("unused") NumberFormatException e) {
+            try {
+                Instant instant = Instant.parse(value);
+                return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+            } catch (DateTimeParseException e2) {
+                throw new IOException("Can't parse " + START_TIME_PROPERTY + ": " + value, e2);
+            }
+        }
+    }
+
     @Override
     public Layer1ApiProviderSupportedFeatures getSupportedFeatures() {
         return new Layer1ApiProviderSupportedFeaturesBuilder().build();
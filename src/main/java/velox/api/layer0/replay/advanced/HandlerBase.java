@@ -1,13 +1,27 @@
 package velox.api.layer0.replay.advanced;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public abstract class HandlerBase {
 
+    /** Approximate size of a file range parsed by one task in parallel mode */
+    private static final int CHUNK_SIZE = 1 << 20;
+
     protected final HandlerListener listener;
     private final String filenameIn;
     protected boolean skipFirstLine = false;
+    private boolean parallelParsing = false;
     private volatile boolean shouldStop = false;
 
     public HandlerBase(HandlerListener listener, String fin) {
@@ -15,9 +29,40 @@ public abstract class HandlerBase {
         this.filenameIn = fin;
     }
 
+    /**
+     * In parallel mode file is split into chunks at line boundaries, which are
+     * parsed by {@link #parseChunk} on {@link ForkJoinPool#commonPool()}, while
+     * the calling thread dispatches parsed events strictly in file order.
+     *
+     * @throws UnsupportedOperationException if enabling it and
+     *                                       {@link #supportsParallelParsing()}
+     *                                       is false
+     */
+    public void setParallelParsing(boolean parallelParsing) {
+        if (parallelParsing && !supportsParallelParsing()) {
+            throw new UnsupportedOperationException("Parallel parsing is not supported by " + getClass().getSimpleName());
+        }
+        this.parallelParsing = parallelParsing;
+    }
+
+    /**
+     * Handlers that implement {@link #parseChunk} and {@link #processEvent}
+     * return true, so that {@link #setParallelParsing(boolean)} can be used
+     */
+    protected boolean supportsParallelParsing() {
+        return false;
+    }
+
     public void run() throws Exception {
+        if (parallelParsing) {
+            runParallel();
+            return;
+        }
+
         String line;
-        BufferedReader reader = new BufferedReader(new FileReader(filenameIn));
+        // Same charset as parseChunk implementations use in parallel mode
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(filenameIn), StandardCharsets.UTF_8));
         if (skipFirstLine) {
             reader.readLine();
         }
@@ -30,10 +75,103 @@ public abstract class HandlerBase {
         listener.onFileEnd();
         reader.close();
     }
-    
+
+    private void runParallel() throws Exception {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        // Enough to keep all workers busy while limiting memory usage
+        int maxTasksInFlight = 2 * pool.getParallelism() + 1;
+        ArrayDeque<ForkJoinTask<RecorderEventBlock>> tasks = new ArrayDeque<>();
+
+        int n = 0;
+        try (FileChannel channel = FileChannel.open(Paths.get(filenameIn))) {
+            long fileSize = channel.size();
+            long position = skipFirstLine ? findNextLineStart(channel, 0, fileSize) : 0;
+            while (!shouldStop && (position < fileSize || !tasks.isEmpty())) {
+                while (position < fileSize && tasks.size() < maxTasksInFlight) {
+                    long chunkStart = position;
+                    long chunkEnd = findNextLineStart(channel, Math.min(fileSize, position + CHUNK_SIZE), fileSize);
+                    tasks.add(pool.submit(() -> readAndParseChunk(channel, chunkStart, chunkEnd)));
+                    position = chunkEnd;
+                }
+
+                RecorderEventBlock block = tasks.poll().join();
+                for (int i = 0; i < block.count && !shouldStop; ++i) {
+                    processEvent(block, i);
+                }
+                n += block.linesCount;
+                if (block.error != null) {
+                    throw block.error;
+                }
+            }
+        } finally {
+            tasks.forEach(task -> task.cancel(false));
+        }
+        System.out.println("Lines processed: " + n);
+        listener.onFileEnd();
+    }
+
+    private RecorderEventBlock readAndParseChunk(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("File was truncated while reading");
+            }
+        }
+        RecorderEventBlock block = new RecorderEventBlock();
+        parseChunk(buffer.array(), buffer.position(), block);
+        return block;
+    }
+
+    /**
+     * @return position right after the first '\n' at or after provided
+     *         position, or file size if there is none
+     */
+    private static long findNextLineStart(FileChannel channel, long position, long fileSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position < fileSize) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; ++i) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return fileSize;
+    }
+
     public void stop() {
         shouldStop = true;
     }
 
+    /** @return true if {@link #stop()} was called, so the file might not have been read completely */
+    protected boolean isStopped() {
+        return shouldStop;
+    }
+
     protected abstract void processLine(String line) throws Exception;
+
+    /**
+     * Parses complete lines from data into the block. Called from worker
+     * threads in parallel mode, so it must not access the handler state.
+     * Parsing errors should be reported through {@link RecorderEventBlock#error}
+     * after adding events from all preceding lines. Text should be decoded as
+     * UTF-8, like lines passed to {@link #processLine}. Only called if
+     * {@link #supportsParallelParsing()} is true.
+     */
+    protected void parseChunk(byte[] data, int length, RecorderEventBlock block) {
+        throw new IllegalStateException("parseChunk called without parallel parsing support");
+    }
+
+    /**
+     * Dispatches a single event parsed by {@link #parseChunk}. Only called if
+     * {@link #supportsParallelParsing()} is true.
+     */
+    protected void processEvent(RecorderEventBlock block, int index) throws Exception {
+        throw new IllegalStateException("processEvent called without parallel parsing support");
+    }
 }
@@ -1,46 +1,121 @@
 package velox.api.layer0.replay.advanced;
 
-import java.awt.Color;
-import java.util.HashMap;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
 import velox.api.layer0.data.IndicatorDefinitionUserMessage;
 import velox.api.layer0.data.IndicatorPointUserMessage;
 import velox.api.layer0.data.TextDataMessage;
+import velox.api.layer1.common.Log;
 import velox.api.layer1.data.InstrumentInfo;
 
+/**
+ * <p>
+ * Computes indicators for recorder data (see {@link IndicatorsPack}) and
+ * emits points of randomly chosen indicators after depth updates and trades,
+ * each event having the same probability to be followed by a point.
+ * </p>
+ * <p>
+ * Schedule is generated from {@value #SEED_PROPERTY} (fixed by default), so
+ * the same file always produces the same points. Instead of drawing a number
+ * per event, gaps between points are drawn from the geometric distribution
+ * with the same probability, so events without a point only decrement a
+ * counter.
+ * </p>
+ */
 @SuppressWarnings("deprecation")
 public class HandlerBookmapIndicators extends HandlerBookmapSimple {
 
+    public static final String SEED_PROPERTY = "velox.api.layer0.indicators.seed";
+    private static final long DEFAULT_SEED = 20181002;
+
     private double probability = 0.2;
+    private final double logOfMissProbability = Math.log(1 - probability);
 
     private final int numIntrinsicIndicators = 10;
-    private final double[] intrinsicParams = generateParams(numIntrinsicIndicators, 4, 1.4);
+    private final double[] intrinsicParams = IndicatorsPack.generateParams(numIntrinsicIndicators, 4, 1.4);
 
     private final int numVolumeEmaIndicators = 10;
-    private final double[] emaParams = generateParams(numVolumeEmaIndicators, 1e9, 2);
+    private final double[] emaParams = IndicatorsPack.generateParams(numVolumeEmaIndicators, 1e9, 2);
+
+    private final long seed = getSeed();
+    private final SplittableRandom rand = new SplittableRandom(seed);
+    /** Events left until the next point is emitted */
+    private long eventsUntilPoint = nextGap();
 
-    private Random rand = new Random();
-    private HashMap<Integer, IndicatorsPack> datas = new HashMap<>();
+    /** Indexed by dense instrument index, same as {@link #instruments} */
+    private IndicatorsPack[] datas = new IndicatorsPack[4];
+    private int[] firstIndicatorIds = new int[4];
+
+    private IndicatorCache indicatorCache;
+    /**
+     * Depth updates and trades so far, cached points are delivered after the
+     * same event they were computed after
+     */
+    private long eventsCount = 0;
 
     public HandlerBookmapIndicators(HandlerListener listener, String fin) throws Exception {
         super(listener, fin);
     }
 
+    /**
+     * If cache has points, those are replayed instead of computing indicators.
+     * Otherwise computed points are written to it and committed if the whole
+     * file is read. Cache is closed when {@link #run()} finishes.
+     */
+    void setIndicatorCache(IndicatorCache indicatorCache) {
+        this.indicatorCache = indicatorCache;
+    }
+
+    /**
+     * @return everything except the source data that affects indicator points
+     */
+    String getParametersKey() {
+        return "probability=" + probability
+                + ";seed=" + seed
+                + ";intrinsic=" + Arrays.toString(intrinsicParams)
+                + ";ema=" + Arrays.toString(emaParams);
+    }
+
+    @Override
+    public void run() throws Exception {
+        try {
+            super.run();
+            if (indicatorCache != null && !isStopped()) {
+                indicatorCache.commit();
+            }
+        } finally {
+            if (indicatorCache != null) {
+                indicatorCache.close();
+            }
+        }
+    }
+
     @Override
     protected void onDepth(long t, int id, boolean isBuy, long price, long size) throws Exception {
         super.onDepth(t, id, isBuy, price, size);
-        datas.get(id).onDepth(isBuy, price, size);
-        onEvent(t);
+        ++eventsCount;
+        if (isReadingCache()) {
+            indicatorCache.readPoints(eventsCount, listener);
+        } else {
+            datas[getIndex(id)].onDepth(isBuy, price, size);
+            onEvent(t);
+        }
     }
 
     @Override
     protected void onTrade(long t, int id, boolean isBuy, double price, long size) throws Exception {
         super.onTrade(t, id, isBuy, price, size);
-        datas.get(id).onTrade(t, isBuy, size);
-        onEvent(t);
+        int index = getIndex(id);
+        ++eventsCount;
+        if (isReadingCache()) {
+            indicatorCache.readPoints(eventsCount, listener);
+        } else {
+            datas[index].onTrade(t, isBuy, size);
+            onEvent(t);
+        }
         if (size >= 5) {
-            InstrumentInfo instrumentInfo = instruments.get(id);
+            InstrumentInfo instrumentInfo = instruments[index];
             listener.onTextData(t, new TextDataMessage(instrumentInfo.symbol, "Big trade", 
                     isBuy, instrumentInfo.pips * price, size, "Big trade of size " + size));
         }
@@ -52,71 +127,80 @@ public class HandlerBookmapIndicators extends HandlerBookmapSimple {
         initIndicators(t, id);
     }
 
+    private boolean isReadingCache() {
+        return indicatorCache != null && indicatorCache.isReading();
+    }
+
     private int getFirstIndicatorId(int instrId) {
         return instrId * 2 * (numIntrinsicIndicators + numVolumeEmaIndicators);
     }
 
     private void initIndicators(long t, int id) throws Exception {
-        datas.put(id, new IndicatorsPack(intrinsicParams, emaParams));
-        int currentIndicatorId = getFirstIndicatorId(id);
-        String alias = instruments.get(id).symbol;
-        for (int i = 0; i < numIntrinsicIndicators; i++) {
-            listener.onIndicatorDefinition(t, new IndicatorDefinitionUserMessage(
-                    currentIndicatorId, alias, "Intrinsic bid #" + i,
-                    (short) 0xFFFF, (short) 1, 1, Color.WHITE,
-                    (short) 0xFF08, (short) 1, 1, null, 0, 0, true));
-            currentIndicatorId++;
+        int index = getIndex(id);
+        if (index >= datas.length) {
+            datas = Arrays.copyOf(datas, Math.max(datas.length * 2, index + 1));
+            firstIndicatorIds = Arrays.copyOf(firstIndicatorIds, datas.length);
         }
-        for (int i = 0; i < numIntrinsicIndicators; i++) {
-            listener.onIndicatorDefinition(t, new IndicatorDefinitionUserMessage(
-                    currentIndicatorId, alias, "Intrinsic ask #" + i,
-                    (short) 0xFFFF, (short) 1, 1, Color.WHITE,
-                    (short) 0xFF08, (short) 1, 1, null, 0, 0, true));
-            currentIndicatorId++;
+        datas[index] = new IndicatorsPack(intrinsicParams, emaParams);
+        firstIndicatorIds[index] = getFirstIndicatorId(id);
+
+        String alias = instruments[index].symbol;
+        for (IndicatorDefinitionUserMessage definition : IndicatorsPack.createDefinitions(firstIndicatorIds[index],
+                alias, numIntrinsicIndicators, numVolumeEmaIndicators)) {
+            listener.onIndicatorDefinition(t, definition);
         }
-        for (int i = 0; i < numVolumeEmaIndicators; i++) {
-            listener.onIndicatorDefinition(t, new IndicatorDefinitionUserMessage(
-                    currentIndicatorId, alias, "Volume EMA bid #" + i,
-                    (short) 0xFFFF, (short) 1, 1,
-                    new Color(46, 204, 113), (short) 0xFF08, (short) 1, 1, null, 0, 0, false, "%6.3e"));
-            currentIndicatorId++;
+    }
+
+    private void onEvent(long t) throws Exception {
+        if (eventsUntilPoint > 0) {
+            --eventsUntilPoint;
+            return;
         }
-        for (int i = 0; i < numVolumeEmaIndicators; i++) {
-            listener.onIndicatorDefinition(t, new IndicatorDefinitionUserMessage(
-                    currentIndicatorId, alias, "Volume EMA ask #" + i, 
-                    (short) 0xFFFF, (short) 1, 1,
-                    new Color(213, 76, 60), (short) 0xFF08, (short) 1, 1, null, 0, 0, false, "%6.3e"));
-            currentIndicatorId++;
+        eventsUntilPoint = nextGap();
+
+        int index = rand.nextInt(instrumentsCount);
+        IndicatorsPack pack = datas[index];
+        int firstIndicatorId = firstIndicatorIds[index];
+        if (rand.nextBoolean()) {
+            boolean isBid = rand.nextBoolean();
+            int idx = rand.nextInt(numIntrinsicIndicators);
+            double intrinsic = instruments[index].pips * pack.getIntrinsic(isBid, idx);
+            int indicatorId = firstIndicatorId + (isBid ? 0 : numIntrinsicIndicators) + idx;
+            onIndicatorPoint(t, indicatorId, intrinsic);
+        } else {
+            int idx = rand.nextInt(numVolumeEmaIndicators);
+            boolean isBuy = rand.nextBoolean();
+            double ema = pack.getEma(t, isBuy, idx);
+            int indicatorId = firstIndicatorId + 2 * numIntrinsicIndicators + (isBuy ? 0 : numVolumeEmaIndicators)
+                    + idx;
+            onIndicatorPoint(t, indicatorId, ema);
         }
     }
 
-    private void onEvent(long t) throws Exception {
-        if (rand.nextDouble() < probability) {
-            int id = (int) datas.keySet().toArray()[rand.nextInt(instruments.size())];
-            IndicatorsPack pack = datas.get(id);
-            int firstIndicatorId = getFirstIndicatorId(id);
-            if (rand.nextBoolean()) {
-                boolean isBid = rand.nextBoolean();
-                int idx = rand.nextInt(numIntrinsicIndicators);
-                double intrinsic = instruments.get(id).pips * pack.getIntrinsic(isBid, idx);
-                int indicatorId = firstIndicatorId + (isBid ? 0 : numIntrinsicIndicators) + idx;
-                listener.onIndicatorPoint(t, new IndicatorPointUserMessage(indicatorId, intrinsic));
-            } else {
-                int idx = rand.nextInt(numVolumeEmaIndicators);
-                boolean isBuy = rand.nextBoolean();
-                double ema = pack.getEma(t, isBuy, idx);
-                int indicatorId = firstIndicatorId + 2 * numIntrinsicIndicators + (isBuy ? 0 : numVolumeEmaIndicators)
-                        + idx;
-                listener.onIndicatorPoint(t, new IndicatorPointUserMessage(indicatorId, ema));
+    /**
+     * @return number of events without a point before the next one
+     */
+    private long nextGap() {
+        // 1 - nextDouble() is in (0, 1], so logarithm is finite
+        return (long) (Math.log(1 - rand.nextDouble()) / logOfMissProbability);
+    }
+
+    private static long getSeed() {
+        String seed = System.getProperty(SEED_PROPERTY);
+        if (seed != null) {
+            try {
+                return Long.parseLong(seed);
+            } catch (NumberFormatException e) {
+                Log.warn("Invalid " + SEED_PROPERTY + ": " + seed, e);
             }
         }
+        return DEFAULT_SEED;
     }
 
-    private static double[] generateParams(int len, double first, double factor) {
-        double[] params = new double[len];
-        for (int i = 0; i < len; i++) {
-            params[i] = first * Math.pow(factor, i);
+    private void onIndicatorPoint(long t, int indicatorId, double value) {
+        listener.onIndicatorPoint(t, new IndicatorPointUserMessage(indicatorId, value));
+        if (indicatorCache != null) {
+            indicatorCache.writePoint(eventsCount, t, indicatorId, value);
         }
-        return params;
     }
 }
@@ -1,30 +1,46 @@
 package velox.api.layer0.replay.advanced;
 
-import java.text.SimpleDateFormat;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import velox.api.layer1.data.InstrumentInfo;
 
 public class HandlerBookmapSimple extends HandlerBase {
 
-    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd HH:mm:ss.SSS");
-    protected final HashMap<Integer, InstrumentInfo> instruments = new HashMap<>();
+    /** Fields after the last one used are ignored */
+    private static final int FIELDS_COUNT = 6;
+
+    /**
+     * Recorder assigns small consecutive ids, those are mapped to indexes
+     * through an array. Other ids (if any) go through an open addressing
+     * table, so lookups never box the id.
+     */
+    private static final int MAX_ARRAY_MAPPED_ID = 1 << 16;
+
+    private final TimestampParser timestampParser = new TimestampParser();
+
+    /**
+     * Instruments by dense index, assigned in the order of
+     * {@link #onInstrument}. Subclasses can keep their per-instrument state in
+     * arrays with the same indexes (see {@link #getIndex(int)}).
+     */
+    protected InstrumentInfo[] instruments = new InstrumentInfo[4];
+    protected int instrumentsCount = 0;
+    /** Dense index by instrument id, -1 if there is no such instrument */
+    private int[] indexesById = new int[0];
+    /** Linear probing table, slot is free if its index is -1 */
+    private int[] largeIds = new int[16];
+    private int[] largeIdIndexes = newFreeSlots(16);
+    private int largeIdsCount = 0;
 
     public HandlerBookmapSimple(HandlerListener listener, String fin) throws Exception {
         super(listener, fin);
     }
 
-    private long getNanoseconds(String s) throws Exception {
-        String strMillis = s.substring(0, 21);
-        String strNanos = s.substring(21);
-        long t = 1_000_000L * sdf.parse(strMillis).getTime() + Long.parseLong(strNanos);
-        return t;
-    }
-
     @Override
     protected void processLine(String line) throws Exception {
         String[] s = line.split(",");
-        long t = getNanoseconds(s[0]);
+        long t = timestampParser.parse(s[0]);
         int instrID = Integer.parseInt(s[1]);
         String eventType = s[2];
         if (eventType.equals("Quote")) {
@@ -41,19 +57,293 @@ public class HandlerBookmapSimple extends HandlerBase {
         }
     }
 
+    @Override
+    protected boolean supportsParallelParsing() {
+        return true;
+    }
+
+    @Override
+    protected void parseChunk(byte[] data, int length, RecorderEventBlock block) {
+        // Chunks are parsed concurrently, so nothing can be shared between those
+        TimestampParser chunkTimestampParser = new TimestampParser();
+        CharSequence chars = new AsciiChars(data);
+        int[] fieldStarts = new int[FIELDS_COUNT];
+        int[] fieldEnds = new int[FIELDS_COUNT];
+
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && data[lineEnd] != '\n') {
+                ++lineEnd;
+            }
+            int nextLineStart = lineEnd + 1;
+            if (lineEnd > lineStart && data[lineEnd - 1] == '\r') {
+                --lineEnd;
+            }
+
+            try {
+                int fieldsCount = 0;
+                int fieldStart = lineStart;
+                for (int i = lineStart; i <= lineEnd && fieldsCount < FIELDS_COUNT; ++i) {
+                    if (i == lineEnd || data[i] == ',') {
+                        fieldStarts[fieldsCount] = fieldStart;
+                        fieldEnds[fieldsCount] = i;
+                        ++fieldsCount;
+                        fieldStart = i + 1;
+                    }
+                }
+                if (fieldsCount < 3) {
+                    throw new Exception("HandlerBookmapSimple: malformed line: " + toString(data, lineStart, lineEnd));
+                }
+
+                long t = chunkTimestampParser.parse(chars, fieldStarts[0], fieldEnds[0]);
+                int instrID = Math.toIntExact(parseLong(data, fieldStarts[1], fieldEnds[1]));
+                int typeStart = fieldStarts[2];
+                int typeEnd = fieldEnds[2];
+                if (equals(data, typeStart, typeEnd, "Quote")) {
+                    checkFieldsCount(fieldsCount, data, lineStart, lineEnd);
+                    block.addQuote(t, instrID, equals(data, fieldStarts[3], fieldEnds[3], "Buy"),
+                            parseLong(data, fieldStarts[4], fieldEnds[4]),
+                            parseLong(data, fieldStarts[5], fieldEnds[5]));
+                } else if (equals(data, typeStart, typeEnd, "BBO")) {
+                } else if (equals(data, typeStart, typeEnd, "Trade")) {
+                    checkFieldsCount(fieldsCount, data, lineStart, lineEnd);
+                    block.addTrade(t, instrID, equals(data, fieldStarts[3], fieldEnds[3], "Buy"),
+                            Double.parseDouble(toString(data, fieldStarts[4], fieldEnds[4])),
+                            parseLong(data, fieldStarts[5], fieldEnds[5]));
+                } else if (equals(data, typeStart, typeEnd, "InstrumentAdded")) {
+                    checkFieldsCount(fieldsCount, data, lineStart, lineEnd);
+                    block.addInstrument(t, instrID, getValue(data, fieldStarts[3], fieldEnds[3]),
+                            Double.parseDouble(getValue(data, fieldStarts[4], fieldEnds[4])),
+                            Double.parseDouble(getValue(data, fieldStarts[5], fieldEnds[5])));
+                } else if (equals(data, typeStart, typeEnd, "InstrumentRemoved")) {
+                } else {
+                    throw new Exception("HandlerBookmapSimple: unrecognized event type: "
+                            + toString(data, typeStart, typeEnd));
+                }
+            } catch (Exception e) {
+                block.error = e;
+                return;
+            }
+
+            ++block.linesCount;
+            lineStart = nextLineStart;
+        }
+    }
+
+    @Override
+    protected void processEvent(RecorderEventBlock block, int i) throws Exception {
+        long t = block.times[i];
+        int instrID = block.instrumentIds[i];
+        switch (block.types[i]) {
+        case RecorderEventBlock.QUOTE:
+            onDepth(t, instrID, block.isBuys[i], block.prices[i], block.sizes[i]);
+            break;
+        case RecorderEventBlock.TRADE:
+            onTrade(t, instrID, block.isBuys[i], block.doublePrices[i], block.sizes[i]);
+            break;
+        case RecorderEventBlock.INSTRUMENT_ADDED:
+            onInstrument(t, instrID, block.aliases[i], block.doublePrices[i], block.multipliers[i]);
+            break;
+        default:
+            throw new IllegalArgumentException("Unexpected event type " + block.types[i]);
+        }
+    }
+
+    private static void checkFieldsCount(int fieldsCount, byte[] data, int lineStart, int lineEnd) throws Exception {
+        if (fieldsCount < FIELDS_COUNT) {
+            throw new Exception("HandlerBookmapSimple: malformed line: " + toString(data, lineStart, lineEnd));
+        }
+    }
+
+    private static boolean equals(byte[] data, int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); ++i) {
+            if (data[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Same as Long.parseLong, but without creating a string */
+    private static long parseLong(byte[] data, int start, int end) {
+        boolean isNegative = start < end && data[start] == '-';
+        int i = start < end && (data[start] == '-' || data[start] == '+') ? start + 1 : start;
+        if (i == end) {
+            throw new NumberFormatException("For input string: \"" + toString(data, start, end) + "\"");
+        }
+        long value = 0;
+        for (; i < end; ++i) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException("For input string: \"" + toString(data, start, end) + "\"");
+            }
+            // Accumulating negative value to cover Long.MIN_VALUE
+            value = value * 10 - digit;
+        }
+        if (!isNegative) {
+            if (value == Long.MIN_VALUE) {
+                throw new NumberFormatException("For input string: \"" + toString(data, start, end) + "\"");
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    /** Value of a "key=value" field */
+    private static String getValue(byte[] data, int start, int end) {
+        int valueStart = start;
+        while (valueStart < end && data[valueStart] != '=') {
+            ++valueStart;
+        }
+        if (valueStart == end) {
+            throw new IllegalArgumentException("Expected key=value, got " + toString(data, start, end));
+        }
+        ++valueStart;
+        int valueEnd = valueStart;
+        while (valueEnd < end && data[valueEnd] != '=') {
+            ++valueEnd;
+        }
+        return toString(data, valueStart, valueEnd);
+    }
+
+    private static String toString(byte[] data, int start, int end) {
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read-only view of ASCII bytes as chars, to parse timestamps in place.
+     * Bytes of multi-byte UTF-8 characters never match ASCII delimiters.
+     */
+    private static class AsciiChars implements CharSequence {
+        private final byte[] data;
+
+        AsciiChars(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int length() {
+            return data.length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (data[index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return HandlerBookmapSimple.toString(data, start, end);
+        }
+
+        @Override
+        public String toString() {
+            return HandlerBookmapSimple.toString(data, 0, data.length);
+        }
+    }
+
+    /**
+     * @return dense index of the instrument, in range [0,
+     *         {@link #instrumentsCount})
+     * @throws IllegalArgumentException if instrument was not added
+     */
+    protected int getIndex(int id) {
+        int index = -1;
+        if (id >= 0 && id < indexesById.length) {
+            index = indexesById[id];
+        } else if (id < 0 || id >= MAX_ARRAY_MAPPED_ID) {
+            index = largeIdIndexes[findLargeIdSlot(id)];
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown instrument id " + id);
+        }
+        return index;
+    }
+
     protected void onDepth(long t, int id, boolean isBuy, long price, long size) throws Exception {
-        InstrumentInfo instrumentInfo = instruments.get(id);
+        InstrumentInfo instrumentInfo = instruments[getIndex(id)];
         listener.onDepth(t, instrumentInfo.symbol, isBuy, (int)price, (int)size);
     }
 
     protected void onTrade(long t, int id, boolean isBuy, double price, long size) throws Exception {
-        InstrumentInfo instrumentInfo = instruments.get(id);
+        InstrumentInfo instrumentInfo = instruments[getIndex(id)];
         listener.onTrade(t, instrumentInfo.symbol, price, (int)size, isBuy);
     }
 
+    /**
+     * Instrument that is added again with the same id keeps its index
+     */
     protected void onInstrument(long t, int id, String alias, double pips, double multiplier) throws Exception {
         InstrumentInfo instrumentInfo = new InstrumentInfo(alias, null, null, pips, multiplier, alias, true);
-        instruments.put(id, instrumentInfo);
+        // Index first, adding it might replace the array
+        int index = addIndex(id);
+        instruments[index] = instrumentInfo;
         listener.onInstrument(t, instrumentInfo);
     }
+
+    private int addIndex(int id) {
+        boolean isArrayMapped = id >= 0 && id < MAX_ARRAY_MAPPED_ID;
+        if (isArrayMapped && id >= indexesById.length) {
+            int oldLength = indexesById.length;
+            indexesById = Arrays.copyOf(indexesById, Math.min(MAX_ARRAY_MAPPED_ID, Math.max(id + 1, oldLength * 2)));
+            Arrays.fill(indexesById, oldLength, indexesById.length, -1);
+        }
+
+        int index = isArrayMapped ? indexesById[id] : largeIdIndexes[findLargeIdSlot(id)];
+        if (index >= 0) {
+            return index;
+        }
+
+        index = instrumentsCount++;
+        if (index == instruments.length) {
+            instruments = Arrays.copyOf(instruments, index * 2);
+        }
+        if (isArrayMapped) {
+            indexesById[id] = index;
+        } else {
+            putLargeId(id, index);
+        }
+        return index;
+    }
+
+    /** @return slot of the id, or the free slot where it would be added */
+    private int findLargeIdSlot(int id) {
+        int mask = largeIds.length - 1;
+        int slot = (id * 0x9E3779B9) >>> 16 & mask;
+        while (largeIdIndexes[slot] >= 0 && largeIds[slot] != id) {
+            slot = slot + 1 & mask;
+        }
+        return slot;
+    }
+
+    private void putLargeId(int id, int index) {
+        // Keeping at least half of the slots free, so probing stays short
+        if (2 * (largeIdsCount + 1) > largeIds.length) {
+            int[] oldIds = largeIds;
+            int[] oldIndexes = largeIdIndexes;
+            largeIds = new int[oldIds.length * 2];
+            largeIdIndexes = newFreeSlots(oldIds.length * 2);
+            for (int i = 0; i < oldIds.length; ++i) {
+                if (oldIndexes[i] >= 0) {
+                    int slot = findLargeIdSlot(oldIds[i]);
+                    largeIds[slot] = oldIds[i];
+                    largeIdIndexes[slot] = oldIndexes[i];
+                }
+            }
+        }
+        int slot = findLargeIdSlot(id);
+        largeIds[slot] = id;
+        largeIdIndexes[slot] = index;
+        ++largeIdsCount;
+    }
+
+    private static int[] newFreeSlots(int length) {
+        int[] slots = new int[length];
+        Arrays.fill(slots, -1);
+        return slots;
+    }
 }
@@ -0,0 +1,479 @@
+package velox.api.layer0.replay.advanced;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import velox.api.layer0.data.IndicatorPointUserMessage;
+import velox.api.layer1.common.Log;
+
+/**
+ * <p>
+ * Indicator points computed by {@link HandlerBookmapIndicators} for a source
+ * file, so that replaying the same file with the same parameters again
+ * doesn't recompute them. Cache is a sidecar file next to the source (or in
+ * {@value #DIRECTORY_PROPERTY}), named after the source and a hash of the
+ * key. Key covers the source file (size, modification time and a hash of its
+ * first and last {@link #FINGERPRINT_PART_SIZE} bytes - hashing the whole file
+ * would take about as long as replaying it) and the indicator parameters.
+ * </p>
+ * <p>
+ * If there is no cache, points are written to a temporary file while
+ * replaying, which replaces the cache only if the replay reached the end of
+ * the file. Otherwise points are read from the cache and delivered after the
+ * same data event they were computed after (events are numbered by the
+ * handler), so their order relative to the data is the same as when computing,
+ * including events with the same time. Indicator definitions are not cached,
+ * those only depend on the parameters.
+ * </p>
+ * <p>
+ * File is {@link #MAGIC}, {@link #VERSION} (int), key (UTF) followed by
+ * blocks of up to {@link #BLOCK_SIZE} points, stored column by column: count
+ * (int, 0 terminates the file), length of the events column (int) and varint
+ * event number deltas, length of the times column (int) and zigzag varint
+ * time deltas, length of the ids column (int) and varint ids, values
+ * (doubles).
+ * </p>
+ * <p>
+ * After a cache is written, caches in its directory that were not used for
+ * {@value #MAX_AGE_DAYS_PROPERTY} are removed, and then the least recently
+ * used ones until the total size is within {@value #MAX_SIZE_MB_PROPERTY}.
+ * </p>
+ * <p>
+ * Cache problems never break the replay: errors are logged, a broken cache
+ * file is removed and indicators are either recomputed next time or missing
+ * after the point of failure.
+ * </p>
+ */
+class IndicatorCache implements Closeable {
+
+    public static final String ENABLED_PROPERTY = "velox.api.layer0.indicatorCache.enabled";
+    public static final String DIRECTORY_PROPERTY = "velox.api.layer0.indicatorCache.directory";
+    public static final String MAX_SIZE_MB_PROPERTY = "velox.api.layer0.indicatorCache.maxSizeMb";
+    public static final String MAX_AGE_DAYS_PROPERTY = "velox.api.layer0.indicatorCache.maxAgeDays";
+
+    static final String FILE_EXTENSION = ".bmindcache";
+    private static final String TEMPORARY_FILE_EXTENSION = FILE_EXTENSION + ".tmp";
+
+    private static final byte[] MAGIC = "BMIND".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int FINGERPRINT_PART_SIZE = 1 << 20;
+
+    private static final long DEFAULT_MAX_SIZE_MB = 1024;
+    private static final long DEFAULT_MAX_AGE_DAYS = 30;
+
+    private final Path path;
+    private final String key;
+
+    /** Null when reading */
+    private final Path temporaryPath;
+    private DataOutputStream outputStream;
+    private DataInputStream inputStream;
+
+    private final long[] events = new long[BLOCK_SIZE];
+    private final long[] times = new long[BLOCK_SIZE];
+    private final int[] ids = new int[BLOCK_SIZE];
+    private final double[] values = new double[BLOCK_SIZE];
+    /** Points in the current block */
+    private int count = 0;
+    /** Next point to read from the current block */
+    private int index = 0;
+    private long previousEvent = 0;
+    private long previousTime = 0;
+    private final ByteArrayOutputStream column = new ByteArrayOutputStream();
+
+    private boolean isFailed = false;
+    private boolean isFinished = false;
+
+    private IndicatorCache(Path path, String key, Path temporaryPath) {
+        this.path = path;
+        this.key = key;
+        this.temporaryPath = temporaryPath;
+    }
+
+    /**
+     * @param parametersKey describes everything except the source data that
+     *                      affects the points
+     * @return cache that is either read or written, depending on whether it
+     *         exists. Null if caching is disabled or the cache can't be
+     *         created.
+     */
+    static IndicatorCache open(File source, String parametersKey) {
+        if (!Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"))) {
+            return null;
+        }
+
+        try {
+            String key = computeKey(source.toPath(), parametersKey);
+            Path directory = getDirectory(source);
+            Path path = directory.resolve(source.getName() + "." + key.substring(0, 16) + FILE_EXTENSION);
+
+            if (Files.isRegularFile(path)) {
+                IndicatorCache cache = new IndicatorCache(path, key, null);
+                if (cache.openForReading()) {
+                    // Modification time is what eviction considers last use
+                    Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+                    return cache;
+                }
+                cache.close();
+                Files.deleteIfExists(path);
+            }
+
+            Files.createDirectories(directory);
+            Path temporaryPath = Files.createTempFile(directory, source.getName() + ".", TEMPORARY_FILE_EXTENSION);
+            IndicatorCache cache = new IndicatorCache(path, key, temporaryPath);
+            cache.openForWriting();
+            return cache;
+        } catch (IOException e) {
+            Log.warn("Indicator cache is not available for " + source, e);
+            return null;
+        }
+    }
+
+    /** @return true if points should be taken from the cache */
+    boolean isReading() {
+        return temporaryPath == null;
+    }
+
+    /**
+     * Delivers cached points written with event number up to and including
+     * the provided one
+     */
+    void readPoints(long event, HandlerListener listener) {
+        while (!isFailed && !isFinished) {
+            if (index == count) {
+                try {
+                    readBlock();
+                } catch (IOException e) {
+                    fail("Indicator cache is broken: " + path, e);
+                }
+                continue;
+            }
+            if (events[index] > event) {
+                return;
+            }
+            listener.onIndicatorPoint(times[index], new IndicatorPointUserMessage(ids[index], values[index]));
+            ++index;
+        }
+    }
+
+    /**
+     * @param event number of the data event the point follows, non-decreasing
+     */
+    void writePoint(long event, long t, int id, double value) {
+        if (isFailed) {
+            return;
+        }
+        events[count] = event;
+        times[count] = t;
+        ids[count] = id;
+        values[count] = value;
+        ++count;
+        if (count == BLOCK_SIZE) {
+            try {
+                writeBlock();
+            } catch (IOException e) {
+                fail("Failed to write indicator cache " + temporaryPath, e);
+            }
+        }
+    }
+
+    /**
+     * Makes written points available for later replays, should only be
+     * called if everything was written
+     */
+    void commit() {
+        if (isReading() || isFailed || isFinished) {
+            return;
+        }
+        try {
+            if (count > 0) {
+                writeBlock();
+            }
+            outputStream.writeInt(0);
+            outputStream.close();
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            isFinished = true;
+            evict(path.getParent());
+        } catch (IOException e) {
+            fail("Failed to write indicator cache " + temporaryPath, e);
+        }
+    }
+
+    /** Discards written points unless those were committed */
+    @Override
+    public void close() {
+        try {
+            if (inputStream != null) {
+                inputStream.close();
+            }
+            if (outputStream != null) {
+                outputStream.close();
+            }
+            if (temporaryPath != null) {
+                Files.deleteIfExists(temporaryPath);
+            }
+        } catch (IOException e) {
+            Log.warn("Failed to close indicator cache " + path, e);
+        }
+    }
+
+    private void fail(String message, IOException e) {
+        Log.warn(message, e);
+        isFailed = true;
+        close();
+        if (isReading()) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e2) {
+                Log.warn("Failed to remove indicator cache " + path, e2);
+            }
+        }
+    }
+
+    private boolean openForReading() throws IOException {
+        inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            inputStream.readFully(magic);
+            return Arrays.equals(magic, MAGIC) && inputStream.readInt() == VERSION
+                    && inputStream.readUTF().equals(key);
+        } catch (@SuppressWarnings("unused") EOFException e) {
+            return false;
+        }
+    }
+
+    private void openForWriting() throws IOException {
+        outputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryPath), 1 << 16));
+        outputStream.write(MAGIC);
+        outputStream.writeInt(VERSION);
+        outputStream.writeUTF(key);
+    }
+
+    private void writeBlock() throws IOException {
+        outputStream.writeInt(count);
+
+        column.reset();
+        for (int i = 0; i < count; ++i) {
+            writeVarLong(events[i] - previousEvent);
+            previousEvent = events[i];
+        }
+        writeColumn();
+
+        column.reset();
+        for (int i = 0; i < count; ++i) {
+            long delta = times[i] - previousTime;
+            writeVarLong((delta << 1) ^ (delta >> 63));
+            previousTime = times[i];
+        }
+        writeColumn();
+
+        column.reset();
+        for (int i = 0; i < count; ++i) {
+            writeVarLong(ids[i]);
+        }
+        writeColumn();
+
+        for (int i = 0; i < count; ++i) {
+            outputStream.writeDouble(values[i]);
+        }
+        count = 0;
+    }
+
+    private void writeColumn() throws IOException {
+        outputStream.writeInt(column.size());
+        column.writeTo(outputStream);
+    }
+
+    private void writeVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            column.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        column.write((int) value);
+    }
+
+    private void readBlock() throws IOException {
+        index = 0;
+        count = inputStream.readInt();
+        if (count == 0) {
+            isFinished = true;
+            return;
+        }
+        if (count < 0 || count > BLOCK_SIZE) {
+            throw new IOException("Invalid block size " + count);
+        }
+
+        ByteBuffer eventsColumn = readColumn();
+        for (int i = 0; i < count; ++i) {
+            previousEvent += readVarLong(eventsColumn);
+            events[i] = previousEvent;
+        }
+
+        ByteBuffer timesColumn = readColumn();
+        for (int i = 0; i < count; ++i) {
+            long delta = readVarLong(timesColumn);
+            previousTime += (delta >>> 1) ^ -(delta & 1);
+            times[i] = previousTime;
+        }
+
+        ByteBuffer idsColumn = readColumn();
+        for (int i = 0; i < count; ++i) {
+            ids[i] = (int) readVarLong(idsColumn);
+        }
+
+        for (int i = 0; i < count; ++i) {
+            values[i] = inputStream.readDouble();
+        }
+    }
+
+    private ByteBuffer readColumn() throws IOException {
+        int length = inputStream.readInt();
+        if (length < 0 || length > BLOCK_SIZE * 10) {
+            throw new IOException("Invalid column length " + length);
+        }
+        byte[] bytes = new byte[length];
+        inputStream.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new EOFException("Column ended in the middle of a value");
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+
+    private static Path getDirectory(File source) {
+        String directory = System.getProperty(DIRECTORY_PROPERTY);
+        if (directory != null && !directory.isEmpty()) {
+            return new File(directory).toPath();
+        }
+        return source.getAbsoluteFile().toPath().getParent();
+    }
+
+    private static String computeKey(Path source, String parametersKey) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        long size = Files.size(source);
+        String header = VERSION + "\n" + size + "\n" + Files.getLastModifiedTime(source).toMillis() + "\n"
+                + parametersKey + "\n";
+        digest.update(header.getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(source)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, FINGERPRINT_PART_SIZE));
+            readFully(channel, buffer, 0);
+            digest.update(buffer.array(), 0, buffer.position());
+            if (size > FINGERPRINT_PART_SIZE) {
+                buffer.clear();
+                readFully(channel, buffer, Math.max(FINGERPRINT_PART_SIZE, size - FINGERPRINT_PART_SIZE));
+                digest.update(buffer.array(), 0, buffer.position());
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Removes caches (and temporary files left by interrupted writes) that
+     * were not used for too long, then least recently used caches until the
+     * total size fits the limit
+     */
+    static void evict(Path directory) {
+        long maxSizeBytes = getLongProperty(MAX_SIZE_MB_PROPERTY, DEFAULT_MAX_SIZE_MB) << 20;
+        long maxAgeMillis = TimeUnit.DAYS.toMillis(getLongProperty(MAX_AGE_DAYS_PROPERTY, DEFAULT_MAX_AGE_DAYS));
+        long now = System.currentTimeMillis();
+
+        List<Path> caches = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                "*{" + FILE_EXTENSION + "," + TEMPORARY_FILE_EXTENSION + "}")) {
+            for (Path file : files) {
+                long lastUsed = Files.getLastModifiedTime(file).toMillis();
+                if (now - lastUsed > maxAgeMillis) {
+                    Files.deleteIfExists(file);
+                } else if (file.getFileName().toString().endsWith(FILE_EXTENSION)) {
+                    caches.add(file);
+                }
+            }
+
+            caches.sort(Comparator.comparingLong(IndicatorCache::getLastModifiedMillis).reversed());
+            long totalSize = 0;
+            for (Path cache : caches) {
+                totalSize += Files.size(cache);
+                if (totalSize > maxSizeBytes) {
+                    Files.deleteIfExists(cache);
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Failed to clean up indicator caches in " + directory, e);
+        }
+    }
+
+    private static long getLastModifiedMillis(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (@SuppressWarnings("unused") IOException e) {
+            return 0;
+        }
+    }
+
+    private static long getLongProperty(String property, long defaultValue) {
+        String value = System.getProperty(property);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                Log.warn("Invalid " + property + ": " + value, e);
+            }
+        }
+        return defaultValue;
+    }
+}
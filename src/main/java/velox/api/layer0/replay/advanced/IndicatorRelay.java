@@ -0,0 +1,312 @@
+package velox.api.layer0.replay.advanced;
+
+import java.util.HashMap;
+import java.util.function.LongSupplier;
+
+import velox.api.layer0.common.DataEventBatch;
+import velox.api.layer0.data.IndicatorDefinitionUserMessage;
+import velox.api.layer0.data.IndicatorPointUserMessage;
+import velox.api.layer1.common.Log;
+import velox.api.layer1.data.InstrumentInfo;
+import velox.api.layer1.data.TradeInfo;
+import velox.api.layer1.layers.Layer1ApiUpstreamRelay;
+
+/**
+ * <p>
+ * Computes the same indicators as {@link HandlerBookmapIndicators} (see
+ * {@link IndicatorsPack}) while data is being streamed, instead of in a
+ * separate preprocessing pass. Can be put in front of any provider: register
+ * it as a listener of the provider (or of its parser) and register the
+ * downstream listeners on the relay, e.g.
+ * <code>ListenableHelper.addListeners(parser, relay)</code> followed by
+ * <code>ListenableHelper.addListeners(relay, this)</code> as done by
+ * {@link FullTextDataReplayProvider}.
+ * </p>
+ * <p>
+ * All events are forwarded unchanged, except for indicators already present in
+ * the data (e.g. recorded in the file) whose ids fall into the range used by
+ * the relay (starting at {@link #FIRST_INDICATOR_ID}): those are forwarded
+ * with remapped ids. For every added instrument relay sends
+ * {@link IndicatorDefinitionUserMessage}s, and then
+ * {@link IndicatorPointUserMessage}s after depth updates and trades of that
+ * instrument, according to the sampling policy:
+ * </p>
+ * <ul>
+ * <li>every sampleEveryEvents events of the instrument, if positive</li>
+ * <li>once sampleEveryNanos passed since the previous sample of the
+ * instrument, if positive</li>
+ * <li>after every event if neither is set</li>
+ * </ul>
+ * <p>
+ * With isOnChangeOnly only values that differ from the previously sent ones
+ * are sent. Batches of {@link DataEventBatch} are forwarded as batches and
+ * sampled once per batch. Trades without {@link TradeInfo} have unknown
+ * aggressor side and don't affect volume EMAs.
+ * </p>
+ * <p>
+ * Events are expected to come from a single thread, as providers deliver
+ * them. Time is taken from the time source (usually getCurrentTime of the
+ * provider), since listener calls don't carry it.
+ * </p>
+ */
+public class IndicatorRelay extends Layer1ApiUpstreamRelay implements DataEventBatch.Listener {
+
+    public static final String ENABLED_PROPERTY = "velox.api.layer0.indicators.enabled";
+    public static final String SAMPLE_EVERY_EVENTS_PROPERTY = "velox.api.layer0.indicators.sampleEveryEvents";
+    public static final String SAMPLE_EVERY_NANOS_PROPERTY = "velox.api.layer0.indicators.sampleEveryNanos";
+    public static final String ON_CHANGE_ONLY_PROPERTY = "velox.api.layer0.indicators.onChangeOnly";
+
+    private static final long DEFAULT_SAMPLE_EVERY_NANOS = 100_000_000L;
+
+    /**
+     * Relay ids start high, so that they don't overlap with usual ids of
+     * indicators passed through
+     */
+    static final int FIRST_INDICATOR_ID = 1 << 30;
+
+    private static final int NUM_INTRINSIC_INDICATORS = 10;
+    private static final int NUM_VOLUME_EMA_INDICATORS = 10;
+    private static final int INDICATORS_PER_INSTRUMENT = 2 * (NUM_INTRINSIC_INDICATORS + NUM_VOLUME_EMA_INDICATORS);
+
+    private final double[] intrinsicParams = IndicatorsPack.generateParams(NUM_INTRINSIC_INDICATORS, 4, 1.4);
+    private final double[] emaParams = IndicatorsPack.generateParams(NUM_VOLUME_EMA_INDICATORS, 1e9, 2);
+
+    /** Indicator state and sampling state of one instrument */
+    private static class InstrumentState {
+        final IndicatorsPack pack;
+        final double pips;
+        final int firstIndicatorId;
+
+        /** Values in the order of indicator ids, reused between samples */
+        final double[] values = new double[INDICATORS_PER_INSTRUMENT];
+        final double[] sentValues = new double[INDICATORS_PER_INSTRUMENT];
+        final double[] sideValues = new double[Math.max(NUM_INTRINSIC_INDICATORS, NUM_VOLUME_EMA_INDICATORS)];
+        boolean isSent = false;
+
+        int eventsSinceSample = 0;
+        long lastSampleTime = Long.MIN_VALUE;
+        /** Set by events, cleared by sampling */
+        boolean isUpdated = false;
+
+        InstrumentState(IndicatorsPack pack, double pips, int firstIndicatorId) {
+            this.pack = pack;
+            this.pips = pips;
+            this.firstIndicatorId = firstIndicatorId;
+        }
+    }
+
+    private final LongSupplier timeSource;
+    private final int sampleEveryEvents;
+    private final long sampleEveryNanos;
+    private final boolean isOnChangeOnly;
+
+    private final HashMap<String, InstrumentState> instruments = new HashMap<>();
+    /** Ids are not reused when instrument is removed */
+    private int nextIndicatorId = FIRST_INDICATOR_ID;
+    /** Ids of passed through indicators that were in the relay range */
+    private final HashMap<Integer, Integer> remappedIndicatorIds = new HashMap<>();
+
+    /**
+     * @param timeSource        time of the event being delivered, in
+     *                          nanoseconds
+     * @param sampleEveryEvents sample after this many events of an
+     *                          instrument, 0 to disable
+     * @param sampleEveryNanos  sample once this much time passed since the
+     *                          previous sample of an instrument, 0 to disable
+     * @param isOnChangeOnly    only send values that changed since the
+     *                          previous sample
+     */
+    public IndicatorRelay(LongSupplier timeSource, int sampleEveryEvents, long sampleEveryNanos,
+            boolean isOnChangeOnly) {
+        this.timeSource = timeSource;
+        this.sampleEveryEvents = sampleEveryEvents;
+        this.sampleEveryNanos = sampleEveryNanos;
+        this.isOnChangeOnly = isOnChangeOnly;
+    }
+
+    /**
+     * @return relay configured by system properties, or null if
+     *         {@value #ENABLED_PROPERTY} is not set to true
+     */
+    public static IndicatorRelay fromSystemProperties(LongSupplier timeSource) {
+        if (!Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "false"))) {
+            return null;
+        }
+
+        int sampleEveryEvents = 0;
+        String sampleEveryEventsString = System.getProperty(SAMPLE_EVERY_EVENTS_PROPERTY);
+        if (sampleEveryEventsString != null) {
+            try {
+                sampleEveryEvents = Integer.parseInt(sampleEveryEventsString);
+            } catch (NumberFormatException e) {
+                Log.warn("Invalid " + SAMPLE_EVERY_EVENTS_PROPERTY + ": " + sampleEveryEventsString, e);
+            }
+        }
+
+        long sampleEveryNanos = DEFAULT_SAMPLE_EVERY_NANOS;
+        String sampleEveryNanosString = System.getProperty(SAMPLE_EVERY_NANOS_PROPERTY);
+        if (sampleEveryNanosString != null) {
+            try {
+                sampleEveryNanos = Long.parseLong(sampleEveryNanosString);
+            } catch (NumberFormatException e) {
+                Log.warn("Invalid " + SAMPLE_EVERY_NANOS_PROPERTY + ": " + sampleEveryNanosString, e);
+            }
+        }
+
+        boolean isOnChangeOnly = Boolean.parseBoolean(System.getProperty(ON_CHANGE_ONLY_PROPERTY, "true"));
+
+        return new IndicatorRelay(timeSource, sampleEveryEvents, sampleEveryNanos, isOnChangeOnly);
+    }
+
+    @Override
+    public void onInstrumentAdded(String alias, InstrumentInfo instrumentInfo) {
+        super.onInstrumentAdded(alias, instrumentInfo);
+
+        int firstIndicatorId = nextIndicatorId;
+        nextIndicatorId += INDICATORS_PER_INSTRUMENT;
+        instruments.put(alias, new InstrumentState(new IndicatorsPack(intrinsicParams, emaParams),
+                instrumentInfo.pips, firstIndicatorId));
+
+        for (IndicatorDefinitionUserMessage definition : IndicatorsPack.createDefinitions(firstIndicatorId, alias,
+                NUM_INTRINSIC_INDICATORS, NUM_VOLUME_EMA_INDICATORS)) {
+            adminListeners.forEach(l -> l.onUserMessage(definition));
+        }
+    }
+
+    @Override
+    public void onUserMessage(Object data) {
+        if (data instanceof IndicatorDefinitionUserMessage) {
+            IndicatorDefinitionUserMessage definition = (IndicatorDefinitionUserMessage) data;
+            if (definition.id >= FIRST_INDICATOR_ID) {
+                int id = remappedIndicatorIds.computeIfAbsent(definition.id, k -> nextIndicatorId++);
+                data = new IndicatorDefinitionUserMessage(id, definition.alias, definition.indicatorName,
+                        definition.mainLineStyleMask, definition.mainLineStyleMultiplier, definition.mainLineWidth,
+                        definition.lineColor, definition.rightLineStyleMask, definition.rightLineStyleMultiplier,
+                        definition.rightLineWidth, definition.icon, definition.iconOffsetX, definition.iconOffsetY,
+                        definition.showOnMainChart, definition.valueFormat);
+            }
+        } else if (data instanceof IndicatorPointUserMessage) {
+            IndicatorPointUserMessage point = (IndicatorPointUserMessage) data;
+            if (point.id >= FIRST_INDICATOR_ID) {
+                int id = remappedIndicatorIds.computeIfAbsent(point.id, k -> nextIndicatorId++);
+                data = new IndicatorPointUserMessage(id, point.price);
+            }
+        }
+        super.onUserMessage(data);
+    }
+
+    @Override
+    public void onInstrumentRemoved(String alias) {
+        super.onInstrumentRemoved(alias);
+        instruments.remove(alias);
+    }
+
+    @Override
+    public void onDepth(String alias, boolean isBid, int price, int size) {
+        super.onDepth(alias, isBid, price, size);
+        InstrumentState state = instruments.get(alias);
+        if (state != null) {
+            state.pack.onDepth(isBid, price, size);
+            onEvent(state, timeSource.getAsLong());
+        }
+    }
+
+    @Override
+    public void onTrade(String alias, double price, int size, TradeInfo tradeInfo) {
+        super.onTrade(alias, price, size, tradeInfo);
+        InstrumentState state = instruments.get(alias);
+        if (state != null) {
+            long time = timeSource.getAsLong();
+            // Side is unknown without trade info, so volume EMAs are not
+            // updated, but the trade still counts for sampling
+            if (tradeInfo != null) {
+                state.pack.onTrade(time, tradeInfo.isBidAggressor, size);
+            }
+            onEvent(state, time);
+        }
+    }
+
+    @Override
+    public void onDataBatch(DataEventBatch batch) {
+        // Whole batch has the same time, so indicators are updated first and
+        // sampled once, after downstream listeners got the data
+        long time = timeSource.getAsLong();
+        for (int i = 0; i < batch.size(); ++i) {
+            InstrumentState state = instruments.get(batch.getAlias(i));
+            if (state == null) {
+                continue;
+            }
+            if (batch.isTrade(i)) {
+                TradeInfo tradeInfo = batch.getTradeInfo(i);
+                if (tradeInfo != null) {
+                    state.pack.onTrade(time, tradeInfo.isBidAggressor, batch.getSize(i));
+                }
+            } else {
+                state.pack.onDepth(batch.isBid(i), batch.getPrice(i), batch.getSize(i));
+            }
+            ++state.eventsSinceSample;
+            state.isUpdated = true;
+        }
+
+        batch.dispatchToAll(dataListeners);
+
+        for (int i = 0; i < batch.size(); ++i) {
+            InstrumentState state = instruments.get(batch.getAlias(i));
+            if (state != null && state.isUpdated) {
+                state.isUpdated = false;
+                if (isSampleDue(state, time)) {
+                    sample(state, time);
+                }
+            }
+        }
+    }
+
+    private void onEvent(InstrumentState state, long time) {
+        ++state.eventsSinceSample;
+        if (isSampleDue(state, time)) {
+            sample(state, time);
+        }
+    }
+
+    private boolean isSampleDue(InstrumentState state, long time) {
+        if (sampleEveryEvents <= 0 && sampleEveryNanos <= 0) {
+            return true;
+        }
+        return sampleEveryEvents > 0 && state.eventsSinceSample >= sampleEveryEvents
+                || sampleEveryNanos > 0 && (state.lastSampleTime == Long.MIN_VALUE
+                        || time - state.lastSampleTime >= sampleEveryNanos);
+    }
+
+    private void sample(InstrumentState state, long time) {
+        state.eventsSinceSample = 0;
+        state.lastSampleTime = time;
+
+        double[] values = state.values;
+        double[] sideValues = state.sideValues;
+        int offset = 0;
+        for (int side = 0; side < 2; ++side) {
+            state.pack.getIntrinsics(side == 0, sideValues);
+            for (int i = 0; i < NUM_INTRINSIC_INDICATORS; ++i) {
+                values[offset++] = state.pips * sideValues[i];
+            }
+        }
+        for (int side = 0; side < 2; ++side) {
+            state.pack.getEmas(time, side == 0, sideValues);
+            System.arraycopy(sideValues, 0, values, offset, NUM_VOLUME_EMA_INDICATORS);
+            offset += NUM_VOLUME_EMA_INDICATORS;
+        }
+
+        for (int i = 0; i < INDICATORS_PER_INSTRUMENT; ++i) {
+            // Comparing bits, so that NaN (not enough liquidity) is only
+            // sent once as well
+            if (isOnChangeOnly && state.isSent
+                    && Double.doubleToLongBits(values[i]) == Double.doubleToLongBits(state.sentValues[i])) {
+                continue;
+            }
+            state.sentValues[i] = values[i];
+            IndicatorPointUserMessage point = new IndicatorPointUserMessage(state.firstIndicatorId + i, values[i]);
+            adminListeners.forEach(l -> l.onUserMessage(point));
+        }
+        state.isSent = true;
+    }
+}
@@ -1,22 +1,25 @@
 package velox.api.layer0.replay.advanced;
 
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+
+import velox.api.layer0.data.IndicatorDefinitionUserMessage;
+
 public class IndicatorsPack {
 
     private final IntrinsicPrice intrinsicPrice = new IntrinsicPrice();
     private final double[] intrinsicParams;
+    private final long[] hypotheticalMarketOrderSizes;
     private final DynamicAverage avgSize = new DynamicAverage();
-    private final Ema[] emaBuy;
-    private final Ema[] emaSell;
+    private final EmaBank emaBuy;
+    private final EmaBank emaSell;
 
     public IndicatorsPack(double[] intrinsicParams, double[] emaParams) {
         this.intrinsicParams = intrinsicParams;
-        int n = emaParams.length;
-        emaBuy = new Ema[n];
-        emaSell = new Ema[n];
-        for (int i = 0; i < n; i++) {
-            emaBuy[i] = new Ema(emaParams[i]);
-            emaSell[i] = new Ema(emaParams[i]);
-        }
+        hypotheticalMarketOrderSizes = new long[intrinsicParams.length];
+        emaBuy = new EmaBank(emaParams);
+        emaSell = new EmaBank(emaParams);
     }
 
     public void onDepth(boolean isBuy, long price, long size) {
@@ -25,10 +28,7 @@ public class IndicatorsPack {
     }
 
     public void onTrade(long t, boolean isBuy, long size) {
-        Ema[] ema = isBuy ? emaBuy : emaSell;
-        for (Ema e : ema) {
-            e.onUpdate(t, size);
-        }
+        (isBuy ? emaBuy : emaSell).onUpdate(t, size);
     }
 
     public double getIntrinsic(boolean isBid, int idx) {
@@ -37,8 +37,75 @@ public class IndicatorsPack {
         return intrinsic;
     }
 
+    /**
+     * Computes intrinsic prices for all parameters at once
+     */
+    public void getIntrinsics(boolean isBid, double[] result) {
+        double averageSize = avgSize.getAverage();
+        for (int i = 0; i < intrinsicParams.length; i++) {
+            hypotheticalMarketOrderSizes[i] = Math.round(intrinsicParams[i] * averageSize);
+        }
+        intrinsicPrice.calcIntrinsic(isBid, hypotheticalMarketOrderSizes, result);
+    }
+
     public double getEma(long t, boolean isBuy, int idx) {
-        double ema = (isBuy ? emaBuy : emaSell)[idx].getValue(t);
+        double ema = (isBuy ? emaBuy : emaSell).getValue(t, idx);
         return ema;
     }
+
+    /**
+     * Computes EMAs for all parameters at once
+     */
+    public void getEmas(long t, boolean isBuy, double[] result) {
+        (isBuy ? emaBuy : emaSell).getValues(t, result);
+    }
+
+    /**
+     * Definitions of the indicators of one instrument, ids are consecutive
+     * starting from firstIndicatorId: intrinsic bid, intrinsic ask, volume
+     * EMA bid, volume EMA ask.
+     */
+    public static List<IndicatorDefinitionUserMessage> createDefinitions(int firstIndicatorId, String alias,
+            int numIntrinsicIndicators, int numVolumeEmaIndicators) {
+        List<IndicatorDefinitionUserMessage> definitions = new ArrayList<>();
+        int currentIndicatorId = firstIndicatorId;
+        for (int i = 0; i < numIntrinsicIndicators; i++) {
+            definitions.add(new IndicatorDefinitionUserMessage(
+                    currentIndicatorId, alias, "Intrinsic bid #" + i,
+                    (short) 0xFFFF, (short) 1, 1, Color.WHITE,
+                    (short) 0xFF08, (short) 1, 1, null, 0, 0, true));
+            currentIndicatorId++;
+        }
+        for (int i = 0; i < numIntrinsicIndicators; i++) {
+            definitions.add(new IndicatorDefinitionUserMessage(
+                    currentIndicatorId, alias, "Intrinsic ask #" + i,
+                    (short) 0xFFFF, (short) 1, 1, Color.WHITE,
+                    (short) 0xFF08, (short) 1, 1, null, 0, 0, true));
+            currentIndicatorId++;
+        }
+        for (int i = 0; i < numVolumeEmaIndicators; i++) {
+            definitions.add(new IndicatorDefinitionUserMessage(
+                    currentIndicatorId, alias, "Volume EMA bid #" + i,
+                    (short) 0xFFFF, (short) 1, 1,
+                    new Color(46, 204, 113), (short) 0xFF08, (short) 1, 1, null, 0, 0, false, "%6.3e"));
+            currentIndicatorId++;
+        }
+        for (int i = 0; i < numVolumeEmaIndicators; i++) {
+            definitions.add(new IndicatorDefinitionUserMessage(
+                    currentIndicatorId, alias, "Volume EMA ask #" + i,
+                    (short) 0xFFFF, (short) 1, 1,
+                    new Color(213, 76, 60), (short) 0xFF08, (short) 1, 1, null, 0, 0, false, "%6.3e"));
+            currentIndicatorId++;
+        }
+        return definitions;
+    }
+
+    /** @return geometric sequence of len parameters */
+    public static double[] generateParams(int len, double first, double factor) {
+        double[] params = new double[len];
+        for (int i = 0; i < len; i++) {
+            params[i] = first * Math.pow(factor, i);
+        }
+        return params;
+    }
 }
@@ -1,8 +1,5 @@
 package velox.api.layer0.replay.advanced;
 
-import java.util.Map;
-import java.util.Map.Entry;
-
 public class IntrinsicPrice {
     private final OrderBookMbp orderBook = new OrderBookMbp();
 
@@ -10,18 +7,26 @@ public class IntrinsicPrice {
         orderBook.onDepth(isBuy, price, size);
     }
 
+    /**
+     * @return average execution price of a market order of the provided size,
+     *         or NaN if there is not enough liquidity
+     */
     public double calcIntrinsic(boolean isBid, long hmos) {
-        Map<Long, Long> book = isBid ? orderBook.bids : orderBook.asks;
-        double executionPrice = 0;
-        long size = hmos;
-        for (Entry<Long, Long> entry : book.entrySet()) {
-            if (size == 0) {
-                break;
-            }
-            long matchedSize = Math.min(entry.getValue(), size);
-            size -= matchedSize;
-            executionPrice += entry.getKey() * matchedSize;
+        if (hmos <= 0) {
+            return Double.NaN;
+        }
+        long executionNotional = (isBid ? orderBook.bids : orderBook.asks).getExecutionNotional(hmos);
+        return executionNotional == Long.MIN_VALUE ? Double.NaN : (double) executionNotional / hmos;
+    }
+
+    /**
+     * Same as {@link #calcIntrinsic(boolean, long)} for multiple sizes at once,
+     * each size is one descent of the book's Fenwick trees, so it doesn't
+     * depend on how many levels (or empty prices between them) are taken
+     */
+    public void calcIntrinsic(boolean isBid, long[] hmos, double[] result) {
+        for (int i = 0; i < hmos.length; i++) {
+            result[i] = calcIntrinsic(isBid, hmos[i]);
         }
-        return size == 0 ? executionPrice / hmos : Double.NaN;
     }
 }
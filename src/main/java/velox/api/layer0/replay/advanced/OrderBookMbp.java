@@ -1,18 +1,415 @@
 package velox.api.layer0.replay.advanced;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
 
+/**
+ * <p>
+ * Price-level order book. Each side stores sizes in a plain array indexed by
+ * price relative to a window start, so updates do not box or allocate (unless
+ * the window has to grow to fit a new price).
+ * </p>
+ * <p>
+ * Levels can be walked from the best price with a {@link Cursor}, which can be
+ * reused between walks.
+ * </p>
+ * <p>
+ * Each side also maintains Fenwick trees of sizes and of size * price, ordered
+ * from the best price, so cumulative depth queries like
+ * {@link Side#getExecutionNotional(long)} take O(log(window size)) regardless
+ * of how many levels they cover.
+ * </p>
+ * <p>
+ * Window is limited to {@link #MAX_CAPACITY} prices. If levels of a side are
+ * further apart, window keeps the best prices and the rest are stored in a
+ * sparse map, which is slower but bounds memory for outliers.
+ * </p>
+ */
 public class OrderBookMbp {
-    public TreeMap<Long, Long> bids = new TreeMap<>(Collections.reverseOrder());
-    public TreeMap<Long, Long> asks = new TreeMap<>();
+
+    private static final int INITIAL_CAPACITY = 1024;
+    /** Largest window, 3 arrays of this size per side */
+    static final int MAX_CAPACITY = 1 << 18;
+
+    public static class Side {
+        private final boolean isBid;
+
+        /** Sizes by (price - {@link #base}), 0 for empty levels */
+        private long[] sizes = new long[INITIAL_CAPACITY];
+        private long base;
+        /** Non-empty levels in the window */
+        private int windowLevelsCount = 0;
+        /** Index of the best level, undefined if there are no levels */
+        private int bestIndex;
+
+        /**
+         * Fenwick trees (1-based) over levels ordered from the best possible
+         * price of the window, see {@link #toPosition(int)}
+         */
+        private long[] sizeTree = new long[INITIAL_CAPACITY + 1];
+        private long[] notionalTree = new long[INITIAL_CAPACITY + 1];
+        /** Totals of the window, levels in {@link #overflow} are not included */
+        private long totalSize = 0;
+        private long totalNotional = 0;
+
+        /**
+         * Levels that don't fit into the window, ordered from the best price.
+         * All of them are worse than any price of the window, so the window is
+         * only empty if this is empty too.
+         */
+        private final TreeMap<Long, Long> overflow;
+        private long overflowSize = 0;
+
+        private Side(boolean isBid) {
+            this.isBid = isBid;
+            overflow = new TreeMap<>(isBid ? Collections.reverseOrder() : null);
+        }
+
+        public void onDepth(long price, long size) {
+            if (size == 0) {
+                remove(price);
+            } else {
+                put(price, size);
+            }
+        }
+
+        private void put(long price, long size) {
+            if (!isInWindow(price)) {
+                if (windowLevelsCount == 0) {
+                    // Empty book, just center the window at the new price
+                    base = price - sizes.length / 2;
+                } else if (overflow.containsKey(price)
+                        || sizes.length == MAX_CAPACITY && isWorseThanWindow(price)) {
+                    putOverflow(price, size);
+                    return;
+                } else {
+                    relayout(price);
+                    if (!isInWindow(price)) {
+                        putOverflow(price, size);
+                        return;
+                    }
+                }
+            }
+
+            int index = (int) (price - base);
+            if (sizes[index] == 0) {
+                ++windowLevelsCount;
+                if (windowLevelsCount == 1 || isBetter(index, bestIndex)) {
+                    bestIndex = index;
+                }
+            }
+            updateTrees(index, price, size - sizes[index]);
+            sizes[index] = size;
+        }
+
+        private void remove(long price) {
+            if (!isInWindow(price)) {
+                Long size = overflow.remove(price);
+                if (size != null) {
+                    overflowSize -= size;
+                }
+                return;
+            }
+            int index = (int) (price - base);
+            if (sizes[index] == 0) {
+                return;
+            }
+            updateTrees(index, price, -sizes[index]);
+            sizes[index] = 0;
+            --windowLevelsCount;
+            if (index == bestIndex && windowLevelsCount > 0) {
+                bestIndex = nextIndex(bestIndex);
+            }
+            if (windowLevelsCount == 0 && !overflow.isEmpty()) {
+                relayout(overflow.firstKey());
+            }
+        }
+
+        private void putOverflow(long price, long size) {
+            Long previousSize = overflow.put(price, size);
+            overflowSize += size - (previousSize == null ? 0 : previousSize);
+        }
+
+        private boolean isInWindow(long price) {
+            return price >= base && price - base < sizes.length;
+        }
+
+        private boolean isWorseThanWindow(long price) {
+            return isBid ? price < base : price - base >= sizes.length;
+        }
+
+        private boolean isBetter(int index, int otherIndex) {
+            return isBid ? index > otherIndex : index < otherIndex;
+        }
+
+        /** Next non-empty level after the provided one, going away from the best price */
+        private int nextIndex(int index) {
+            if (isBid) {
+                do {
+                    --index;
+                } while (index >= 0 && sizes[index] == 0);
+            } else {
+                do {
+                    ++index;
+                } while (index < sizes.length && sizes[index] == 0);
+            }
+            return index;
+        }
+
+        /**
+         * Reallocates the window so that it covers all levels of the window
+         * and the new price, or as many of them as fit, starting from the
+         * best. Levels that end up outside go to {@link #overflow}, and
+         * overflow levels that are inside are moved into the window.
+         */
+        private void relayout(long price) {
+            long lowPrice = price;
+            long highPrice = price;
+            if (windowLevelsCount > 0) {
+                int low = 0;
+                while (sizes[low] == 0) {
+                    ++low;
+                }
+                int high = sizes.length - 1;
+                while (sizes[high] == 0) {
+                    --high;
+                }
+                lowPrice = Math.min(base + low, price);
+                highPrice = Math.max(base + high, price);
+            }
+
+            // In long, span of far apart prices doesn't fit an int
+            long span = highPrice - lowPrice + 1;
+            int capacity;
+            long newBase;
+            if (span > 0 && span <= MAX_CAPACITY / 2) {
+                // Starting from the initial size, so that window shrinks back
+                // once outliers are gone
+                capacity = INITIAL_CAPACITY;
+                while (capacity < span * 2) {
+                    capacity *= 2;
+                }
+                newBase = lowPrice - (capacity - span) / 2;
+            } else {
+                capacity = MAX_CAPACITY;
+                long bestPrice = windowLevelsCount == 0 ? price
+                        : isBid ? Math.max(base + bestIndex, price) : Math.min(base + bestIndex, price);
+                // Leaving a quarter of the window for better prices
+                newBase = isBid ? bestPrice - capacity * 3 / 4 : bestPrice - capacity / 4;
+            }
+
+            long[] oldSizes = sizes;
+            long oldBase = base;
+            sizes = new long[capacity];
+            base = newBase;
+            windowLevelsCount = 0;
+            for (int index = 0; index < oldSizes.length; ++index) {
+                if (oldSizes[index] != 0) {
+                    long levelPrice = oldBase + index;
+                    if (isInWindow(levelPrice)) {
+                        sizes[(int) (levelPrice - base)] = oldSizes[index];
+                        ++windowLevelsCount;
+                    } else {
+                        putOverflow(levelPrice, oldSizes[index]);
+                    }
+                }
+            }
+            // Overflow levels are worse than the window, so the ones that fit
+            // now are at the start
+            while (!overflow.isEmpty() && isInWindow(overflow.firstKey())) {
+                Map.Entry<Long, Long> level = overflow.pollFirstEntry();
+                overflowSize -= level.getValue();
+                sizes[(int) (level.getKey() - base)] = level.getValue();
+                ++windowLevelsCount;
+            }
+
+            if (windowLevelsCount > 0) {
+                bestIndex = isBid ? nextIndex(sizes.length) : nextIndex(-1);
+            }
+            rebuildTrees();
+        }
+
+        /** Fenwick position of the level, so that better prices come first */
+        private int toPosition(int index) {
+            return isBid ? sizes.length - index : index + 1;
+        }
+
+        private int toIndex(int position) {
+            return isBid ? sizes.length - position : position - 1;
+        }
+
+        private void updateTrees(int index, long price, long sizeDelta) {
+            totalSize += sizeDelta;
+            long notionalDelta = price * sizeDelta;
+            totalNotional += notionalDelta;
+            for (int position = toPosition(index); position < sizeTree.length; position += position & -position) {
+                sizeTree[position] += sizeDelta;
+                notionalTree[position] += notionalDelta;
+            }
+        }
+
+        private void rebuildTrees() {
+            int capacity = sizes.length;
+            sizeTree = new long[capacity + 1];
+            notionalTree = new long[capacity + 1];
+            totalSize = 0;
+            totalNotional = 0;
+            for (int index = 0; index < capacity; ++index) {
+                int position = toPosition(index);
+                sizeTree[position] = sizes[index];
+                notionalTree[position] = (base + index) * sizes[index];
+                totalSize += sizeTree[position];
+                totalNotional += notionalTree[position];
+            }
+            for (int position = 1; position <= capacity; ++position) {
+                int parent = position + (position & -position);
+                if (parent <= capacity) {
+                    sizeTree[parent] += sizeTree[position];
+                    notionalTree[parent] += notionalTree[position];
+                }
+            }
+        }
+
+        /**
+         * Sum of size * price over levels that a market order of provided size
+         * would consume, starting from the best price (last level is taken
+         * partially).
+         *
+         * @return notional, or {@link Long#MIN_VALUE} if there is not enough
+         *         size on this side
+         */
+        public long getExecutionNotional(long size) {
+            if (size > totalSize) {
+                return getExecutionNotionalWithOverflow(size);
+            }
+            // Finding the longest prefix of levels with total size below the
+            // requested one - next level is the one taken partially
+            int position = 0;
+            long prefixSize = 0;
+            long prefixNotional = 0;
+            for (int step = Integer.highestOneBit(sizes.length); step > 0; step >>= 1) {
+                int next = position + step;
+                if (next < sizeTree.length && prefixSize + sizeTree[next] < size) {
+                    position = next;
+                    prefixSize += sizeTree[next];
+                    prefixNotional += notionalTree[next];
+                }
+            }
+            long lastLevelPrice = base + toIndex(position + 1);
+            return prefixNotional + lastLevelPrice * (size - prefixSize);
+        }
+
+        /** Whole window is taken, the rest comes from the overflow levels */
+        private long getExecutionNotionalWithOverflow(long size) {
+            if (size > totalSize + overflowSize) {
+                return Long.MIN_VALUE;
+            }
+            long notional = totalNotional;
+            long remainingSize = size - totalSize;
+            for (Map.Entry<Long, Long> level : overflow.entrySet()) {
+                long takenSize = Math.min(remainingSize, level.getValue());
+                notional += level.getKey() * takenSize;
+                remainingSize -= takenSize;
+                if (remainingSize == 0) {
+                    break;
+                }
+            }
+            return notional;
+        }
+
+        public long getTotalSize() {
+            return totalSize + overflowSize;
+        }
+
+        public boolean isEmpty() {
+            return windowLevelsCount == 0;
+        }
+
+        public int getLevelsCount() {
+            return windowLevelsCount + overflow.size();
+        }
+
+        /**
+         * @return best price, or {@link Long#MIN_VALUE} if side is empty
+         */
+        public long getBestPrice() {
+            return windowLevelsCount == 0 ? Long.MIN_VALUE : base + bestIndex;
+        }
+
+        public long getBestSize() {
+            return windowLevelsCount == 0 ? 0 : sizes[bestIndex];
+        }
+
+        public long getSize(long price) {
+            if (!isInWindow(price)) {
+                return overflow.getOrDefault(price, 0L);
+            }
+            return sizes[(int) (price - base)];
+        }
+    }
+
+    /**
+     * Walks non-empty levels of one side starting from the best price. Cursor
+     * is invalidated by any update of the book.
+     */
+    public static class Cursor {
+        private Side side;
+        private int index;
+        /** Set once the window levels are walked and there are overflow levels */
+        private Iterator<Map.Entry<Long, Long>> overflowLevels;
+
+        public long price;
+        public long size;
+
+        public void reset(Side side) {
+            this.side = side;
+            this.index = side.windowLevelsCount == 0 ? -1 : Integer.MIN_VALUE;
+            this.overflowLevels = null;
+        }
+
+        /**
+         * Moves to the next level, filling {@link #price} and {@link #size}
+         *
+         * @return false if there are no more levels
+         */
+        public boolean next() {
+            if (overflowLevels != null) {
+                return nextOverflowLevel();
+            }
+            if (index == -1) {
+                return false;
+            }
+            index = index == Integer.MIN_VALUE ? side.bestIndex : side.nextIndex(index);
+            if (index < 0 || index >= side.sizes.length) {
+                index = -1;
+                if (side.overflow.isEmpty()) {
+                    return false;
+                }
+                overflowLevels = side.overflow.entrySet().iterator();
+                return nextOverflowLevel();
+            }
+            price = side.base + index;
+            size = side.sizes[index];
+            return true;
+        }
+
+        private boolean nextOverflowLevel() {
+            if (!overflowLevels.hasNext()) {
+                return false;
+            }
+            Map.Entry<Long, Long> level = overflowLevels.next();
+            price = level.getKey();
+            size = level.getValue();
+            return true;
+        }
+    }
+
+    public final Side bids = new Side(true);
+    public final Side asks = new Side(false);
 
     public void onDepth(boolean isBid, long price, long size) {
-        Map<Long, Long> book = isBid ? bids : asks;
-        if (size == 0)
-            book.remove(price);
-        else
-            book.put(price, size);
+        (isBid ? bids : asks).onDepth(price, size);
     }
 }
@@ -0,0 +1,82 @@
+package velox.api.layer0.replay.advanced;
+
+import java.util.Arrays;
+
+/**
+ * Events parsed from a chunk of a recorder file, stored in primitive arrays.
+ * Filled by {@link HandlerBase#parseChunk} in a worker thread and dispatched
+ * by {@link HandlerBase#processEvent} in the reading thread.
+ */
+public class RecorderEventBlock {
+
+    public static final byte QUOTE = 0;
+    public static final byte TRADE = 1;
+    public static final byte INSTRUMENT_ADDED = 2;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Number of events */
+    public int count = 0;
+    /** Number of lines the events were parsed from (including ignored ones) */
+    public int linesCount = 0;
+    /**
+     * Set if parsing failed. Events parsed before the failing line are still
+     * in the block, and are expected to be dispatched before reporting it.
+     */
+    public Exception error;
+
+    public byte[] types = new byte[INITIAL_CAPACITY];
+    public long[] times = new long[INITIAL_CAPACITY];
+    public int[] instrumentIds = new int[INITIAL_CAPACITY];
+    public boolean[] isBuys = new boolean[INITIAL_CAPACITY];
+    /** Quote price */
+    public long[] prices = new long[INITIAL_CAPACITY];
+    /** Trade price or instrument pips */
+    public double[] doublePrices = new double[INITIAL_CAPACITY];
+    /** Quote and trade size */
+    public long[] sizes = new long[INITIAL_CAPACITY];
+    /** Only set for instruments */
+    public String[] aliases = new String[INITIAL_CAPACITY];
+    /** Only set for instruments */
+    public double[] multipliers = new double[INITIAL_CAPACITY];
+
+    public void addQuote(long time, int instrumentId, boolean isBuy, long price, long size) {
+        int i = next(QUOTE, time, instrumentId);
+        isBuys[i] = isBuy;
+        prices[i] = price;
+        sizes[i] = size;
+    }
+
+    public void addTrade(long time, int instrumentId, boolean isBuy, double price, long size) {
+        int i = next(TRADE, time, instrumentId);
+        isBuys[i] = isBuy;
+        doublePrices[i] = price;
+        sizes[i] = size;
+    }
+
+    public void addInstrument(long time, int instrumentId, String alias, double pips, double multiplier) {
+        int i = next(INSTRUMENT_ADDED, time, instrumentId);
+        aliases[i] = alias;
+        doublePrices[i] = pips;
+        multipliers[i] = multiplier;
+    }
+
+    private int next(byte type, long time, int instrumentId) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            times = Arrays.copyOf(times, capacity);
+            instrumentIds = Arrays.copyOf(instrumentIds, capacity);
+            isBuys = Arrays.copyOf(isBuys, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            doublePrices = Arrays.copyOf(doublePrices, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            aliases = Arrays.copyOf(aliases, capacity);
+            multipliers = Arrays.copyOf(multipliers, capacity);
+        }
+        types[count] = type;
+        times[count] = time;
+        instrumentIds[count] = instrumentId;
+        return count++;
+    }
+}
@@ -0,0 +1,124 @@
+package velox.api.layer0.replay.advanced;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneRules;
+
+/**
+ * <p>
+ * Parses timestamps in fixed <code>yyyyMMdd HH:mm:ss.SSS</code> layout
+ * followed by extra digits that are added as nanoseconds (same as
+ * <code>SimpleDateFormat</code> for the first 21 characters plus
+ * <code>Long.parseLong</code> for the rest), in the default time zone.
+ * </p>
+ * <p>
+ * Start of the current day is cached, so as long as consecutive timestamps
+ * belong to the same day parsing does not allocate or look into time zone
+ * rules. Days with an offset transition (DST) are handled by the generic
+ * java.time path.
+ * </p>
+ * <p>
+ * Not thread safe, use one instance per thread.
+ * </p>
+ */
+public class TimestampParser {
+
+    private static final int DATE_LENGTH = 8;
+    private static final int MILLIS_LENGTH = 21;
+
+    private final ZoneRules zoneRules;
+    private final ZoneId zoneId;
+
+    /** yyyyMMdd of the cached day, -1 if nothing is cached */
+    private int cachedDate = -1;
+    private long cachedDayStartNanos;
+    /** False if offset changes during the cached day */
+    private boolean isCachedDayRegular;
+
+    public TimestampParser() {
+        this(ZoneId.systemDefault());
+    }
+
+    public TimestampParser(ZoneId zoneId) {
+        this.zoneId = zoneId;
+        this.zoneRules = zoneId.getRules();
+    }
+
+    public long parse(CharSequence s) {
+        return parse(s, 0, s.length());
+    }
+
+    /**
+     * @return nanoseconds since epoch
+     * @throws NumberFormatException if timestamp does not match the layout
+     */
+    public long parse(CharSequence s, int start, int end) {
+        if (end - start <= MILLIS_LENGTH || s.charAt(start + DATE_LENGTH) != ' '
+                || s.charAt(start + 11) != ':' || s.charAt(start + 14) != ':' || s.charAt(start + 17) != '.') {
+            throw new NumberFormatException("Unexpected timestamp: " + s.subSequence(start, end));
+        }
+
+        int date = parseDigits(s, start, start + DATE_LENGTH);
+        int hours = parseDigits(s, start + 9, start + 11);
+        int minutes = parseDigits(s, start + 12, start + 14);
+        int seconds = parseDigits(s, start + 15, start + 17);
+        int millis = parseDigits(s, start + 18, start + MILLIS_LENGTH);
+        long extraNanos = parseLong(s, start + MILLIS_LENGTH, end);
+
+        if (date != cachedDate) {
+            cacheDay(date);
+        }
+
+        long nanosOfDay = ((hours * 60L + minutes) * 60 + seconds) * 1_000_000_000L + millis * 1_000_000L;
+        if (isCachedDayRegular) {
+            return cachedDayStartNanos + nanosOfDay + extraNanos;
+        }
+
+        // Offset transition on this day. Ambiguous local times resolve to the
+        // later offset, as SimpleDateFormat does
+        LocalDateTime localDateTime = LocalDateTime.of(date / 10000, date / 100 % 100, date % 100,
+                hours, minutes, seconds, millis * 1_000_000);
+        ZonedDateTime zonedDateTime = localDateTime.atZone(zoneId).withLaterOffsetAtOverlap();
+        return zonedDateTime.toEpochSecond() * 1_000_000_000L + zonedDateTime.getNano() + extraNanos;
+    }
+
+    private void cacheDay(int date) {
+        LocalDate localDate = LocalDate.of(date / 10000, date / 100 % 100, date % 100);
+        // Midnight might not exist on DST days, so using start of day
+        long dayStartSeconds = localDate.atStartOfDay(zoneId).toEpochSecond();
+        long nextDayStartSeconds = localDate.plusDays(1).atStartOfDay(zoneId).toEpochSecond();
+
+        cachedDate = date;
+        cachedDayStartNanos = dayStartSeconds * 1_000_000_000L;
+        isCachedDayRegular = nextDayStartSeconds - dayStartSeconds == 24 * 60 * 60
+                && zoneRules.getOffset(Instant.ofEpochSecond(dayStartSeconds))
+                        .equals(zoneRules.getOffset(Instant.ofEpochSecond(nextDayStartSeconds - 1)));
+    }
+
+    private static int parseDigits(CharSequence s, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; ++i) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Unexpected timestamp: " + s.subSequence(start, end));
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static long parseLong(CharSequence s, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; ++i) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Unexpected timestamp: " + s.subSequence(start, end));
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,149 @@
+package velox.api.layer0.live;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import velox.api.layer1.data.ExecutionInfo;
+
+/**
+ * Compares {@link TradeAudit} and {@link TradeAuditTotals} with a
+ * straightforward BigDecimal implementation on random executions that open,
+ * increase, reduce and flip positions.
+ */
+public class TradeAuditTest {
+
+    /** Tick sizes the alias can be resubscribed with */
+    private static final double[] PIPS = {0.25, 0.5, 0.01, 1};
+
+    /** Average cost audit in BigDecimal, the share of closed cost is not rounded */
+    private static class ReferenceAudit {
+        int position;
+        int volume;
+        BigDecimal openCost = BigDecimal.ZERO;
+        BigDecimal realizedPnl = BigDecimal.ZERO;
+        BigDecimal exitPrice;
+        /** Number of partial closes, each of those can be rounded by the audit */
+        int roundingsCount;
+
+        void onExecution(boolean isBuy, double executionPrice, int size) {
+            BigDecimal price = BigDecimal.valueOf(executionPrice);
+            volume += size;
+            int oldPosition = position;
+            position += isBuy ? size : -size;
+
+            if (oldPosition == 0 || oldPosition > 0 == isBuy) {
+                openCost = openCost.add(price.multiply(BigDecimal.valueOf(size)));
+                return;
+            }
+
+            int oldPosAbs = Math.abs(oldPosition);
+            int closedQty = Math.min(oldPosAbs, size);
+            BigDecimal closedCost = openCost;
+            if (closedQty != oldPosAbs) {
+                closedCost = openCost.multiply(BigDecimal.valueOf(closedQty))
+                        .divide(BigDecimal.valueOf(oldPosAbs), MathContext.DECIMAL128);
+                ++roundingsCount;
+            }
+            BigDecimal closedValue = price.multiply(BigDecimal.valueOf(closedQty));
+            realizedPnl = realizedPnl.add(oldPosition > 0
+                    ? closedValue.subtract(closedCost)
+                    : closedCost.subtract(closedValue));
+            openCost = openCost.subtract(closedCost);
+            if (size > oldPosAbs) {
+                openCost = price.multiply(BigDecimal.valueOf(size - oldPosAbs));
+            }
+        }
+
+        BigDecimal getUnrealizedPnl() {
+            if (position == 0 || exitPrice == null) {
+                return BigDecimal.ZERO;
+            }
+            BigDecimal exitValue = exitPrice.multiply(BigDecimal.valueOf(Math.abs(position)));
+            return position > 0 ? exitValue.subtract(openCost) : openCost.subtract(exitValue);
+        }
+    }
+
+    @Test
+    public void matchesBigDecimalImplementation() {
+        Random random = new Random(42);
+        for (int run = 0; run < 200; ++run) {
+            TradeAuditTotals totals = new TradeAuditTotals();
+            List<TradeAudit> audits = new ArrayList<>();
+            List<ReferenceAudit> references = new ArrayList<>();
+            for (int i = 0; i < 3; ++i) {
+                audits.add(new TradeAudit(totals));
+                references.add(new ReferenceAudit());
+            }
+
+            double pips = PIPS[random.nextInt(PIPS.length)];
+            long totalVolume = 0;
+            for (int step = 0; step < 500; ++step) {
+                int index = random.nextInt(audits.size());
+                TradeAudit audit = audits.get(index);
+                ReferenceAudit reference = references.get(index);
+
+                if (random.nextInt(50) == 0) {
+                    // Resubscribed with a different tick size
+                    pips = PIPS[random.nextInt(PIPS.length)];
+                }
+                double price = (4000 + random.nextInt(2000)) * pips;
+
+                if (random.nextInt(4) == 0) {
+                    audit.setExitPrice(price);
+                    reference.exitPrice = BigDecimal.valueOf(price);
+                } else {
+                    boolean isBuy = random.nextBoolean();
+                    // Mostly small sizes, so that positions are often reduced
+                    // partially and flipped
+                    int size = 1 + (random.nextInt(10) == 0 ? random.nextInt(1000) : random.nextInt(7));
+                    audit.recalculateInfo(isBuy, new ExecutionInfo("o", size, price, "e" + step, 0));
+                    reference.onExecution(isBuy, price, size);
+                    totalVolume += size;
+                }
+
+                assertMatches(reference, audit);
+            }
+
+            double realizedPnl = 0;
+            double unrealizedPnl = 0;
+            for (TradeAudit audit : audits) {
+                realizedPnl += audit.getRealizedPnl();
+                unrealizedPnl += audit.getUnrealizedPnl();
+            }
+            assertEquals(totalVolume, totals.getVolume());
+            assertEquals(realizedPnl, totals.getRealizedPnl(), 1e-6);
+            assertEquals(unrealizedPnl, totals.getUnrealizedPnl(), 1e-6);
+        }
+    }
+
+    private static void assertMatches(ReferenceAudit reference, TradeAudit audit) {
+        assertEquals(reference.position, audit.position);
+        assertEquals(reference.volume, audit.volume);
+
+        // Each partial close may round the closed cost by half of the unit
+        double tolerance = 1e-8 * (reference.roundingsCount + 1);
+        assertEquals(reference.realizedPnl.doubleValue(), audit.getRealizedPnl(), tolerance);
+        assertEquals(reference.getUnrealizedPnl().doubleValue(), audit.getUnrealizedPnl(), tolerance);
+        if (reference.position == 0) {
+            assertEquals(Double.NaN, audit.getAveragePrice());
+        } else {
+            BigDecimal averagePrice = reference.openCost.divide(BigDecimal.valueOf(Math.abs(reference.position)),
+                    MathContext.DECIMAL64);
+            assertEquals(averagePrice.doubleValue(), audit.getAveragePrice(), tolerance);
+        }
+
+        // Rounding only moves cost between realized and unrealized P&L, so
+        // their sum is exact
+        BigDecimal totalPnl = reference.realizedPnl.add(reference.getUnrealizedPnl());
+        BigDecimal auditTotalPnl = BigDecimal.valueOf(audit.getRealizedPnl())
+                .add(BigDecimal.valueOf(audit.getUnrealizedPnl()));
+        assertEquals(totalPnl.doubleValue(), auditTotalPnl.doubleValue(), 1e-6);
+    }
+}